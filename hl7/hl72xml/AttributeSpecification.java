@@ -69,10 +69,10 @@ class AttributeSpecification extends HL72XMLSpecificationItem {
    } // toXMLString
 
 
-   static AttributeMap attributeMap(ArrayList<AttributeSpecification> attributes, HL7Message msg) {
+   static AttributeMap attributeMap(ArrayList<AttributeSpecification> attributes, String[] values) {
       if (attributes == null || attributes.isEmpty()) return null;
       AttributeMap map = new AttributeMap();
-      for (AttributeSpecification spec : attributes) map.add(spec.name(), spec.getContent(msg));
+      for (AttributeSpecification spec : attributes) map.add(spec.name(), spec.getContent(values));
       return map;
    } // attributeMap
 
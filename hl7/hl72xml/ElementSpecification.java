@@ -34,6 +34,7 @@ import org.w3c.dom.NodeList;
 import us.conxio.XMLUtilities.AttributeMap;
 import us.conxio.XMLUtilities.XMLUtils;
 
+import us.conxio.hl7.hl7message.HL7Designator;
 import us.conxio.hl7.hl7message.HL7Message;
 
 /**
@@ -43,6 +44,11 @@ import us.conxio.hl7.hl7message.HL7Message;
 class ElementSpecification extends HL72XMLSpecificationItem {
    ArrayList<AttributeSpecification>   attributes;
    ArrayList<ElementSpecification>     subElements;
+   /**
+    * The compiled designators of this specification and all subordinate
+    * specifications, as extracted together when rendering a message.
+    */
+   private HL7Designator[]             designators = null;
 
    ElementSpecification(String desginatorStr, String nameStr, String valueStr) {
       super(desginatorStr, nameStr, valueStr);
@@ -92,17 +98,52 @@ class ElementSpecification extends HL72XMLSpecificationItem {
 
 
    String toXMLString(HL7Message msg) {
+      HL7Designator[] paths = designators();
+      String[] values = new String[paths.length];
+      msg.extract(paths, values);
+      return toXMLString(values);
+   } // toXMLString
+
+
+   private String toXMLString(String[] values) {
       String contentStr = hasSubElements()
-                           ? toSubElementalContentString(msg)
-                           : getContent(msg);
+                           ? toSubElementalContentString(values)
+                           : getContent(values);
 
       AttributeMap attr = hasAttributes()
-                           ? AttributeSpecification.attributeMap(attributes, msg)
+                           ? AttributeSpecification.attributeMap(attributes, values)
                            : null;
       return toXMLString(contentStr, attr);
    } // toXMLString
 
 
+   private HL7Designator[] designators() {
+      if (designators == null) {
+         ArrayList<HL7Designator> designatorList = new ArrayList<HL7Designator>();
+         assignSlots(designatorList);
+         designators = designatorList.toArray(new HL7Designator[designatorList.size()]);
+      } // if
+
+      return designators;
+   } // designators
+
+
+   /**
+    * Assigns each designated item of the context specification tree a position
+    * in the argument list of designators, in document order.
+    */
+   private void assignSlots(ArrayList<HL7Designator> designatorList) {
+      assignSlot(designatorList);
+      if (hasAttributes()) {
+         for (AttributeSpecification attribute : attributes) attribute.assignSlot(designatorList);
+      } // if
+
+      if (hasSubElements()) {
+         for (ElementSpecification element : subElements) element.assignSlots(designatorList);
+      } // if
+   } // assignSlots
+
+
    private boolean hasAttributes() {
       return attributes != null && !attributes.isEmpty();
    } // hasAttributes
@@ -111,12 +152,12 @@ class ElementSpecification extends HL72XMLSpecificationItem {
       return subElements != null && !subElements.isEmpty();
    } // hasSubElements
 
-   private String toSubElementalContentString(HL7Message msg) {
+   private String toSubElementalContentString(String[] values) {
       if (!hasSubElements()) return "";
 
       StringBuilder contentBuilder = new StringBuilder();
       for (ElementSpecification element : subElements) {
-         contentBuilder.append(element.toXMLString(msg));
+         contentBuilder.append(element.toXMLString(values));
       } // for
 
       return contentBuilder.toString();
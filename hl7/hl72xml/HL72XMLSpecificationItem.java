@@ -26,11 +26,14 @@
 
 package us.conxio.hl7.hl72xml;
 
+import java.util.ArrayList;
+
 import org.apache.commons.lang.StringUtils;
 
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
+import us.conxio.hl7.hl7message.HL7Designator;
 import us.conxio.hl7.hl7message.HL7Message;
 
 /**
@@ -41,6 +44,11 @@ abstract class HL72XMLSpecificationItem {
    private String sourceDesignator;
    private String name;
    private String value;
+   /**
+    * The position of the designated content in an array of extracted values,
+    * or -1 if not assigned.
+    */
+   private int    slot = -1;
 
    public static final String NAME_ELEMENT         = "element";
    public static final String NAME_ATTRIBUTE       = "attribute";
@@ -96,6 +104,35 @@ abstract class HL72XMLSpecificationItem {
    } // getContent
 
 
+   /**
+    * Retrieves the content of the context item from the argument array of
+    * values extracted from the message.
+    * @param values The designated values, as extracted by HL7Message.extract().
+    * @return The content of the context item.
+    */
+   String getContent(String[] values) {
+      if (slot >= 0) {
+         String hl7Content = values[slot];
+         if (StringUtils.isNotEmpty(hl7Content)) return hl7Content;
+      } // if
+
+      if (hasValue()) return value();
+      return "";
+   } // getContent
+
+
+   /**
+    * Assigns the context item the next position in the argument list of
+    * designators, if it has a designator.
+    * @param designators The list of designators to be extracted.
+    */
+   void assignSlot(ArrayList<HL7Designator> designators) {
+      if (!hasDesignator()) return;
+      slot = designators.size();
+      designators.add(HL7Designator.compile(designator()));
+   } // assignSlot
+
+
    boolean hasDesignator() {
       return StringUtils.isNotEmpty(sourceDesignator);
    } // hasDesignator
@@ -0,0 +1,283 @@
+/*
+ *  $Id$
+ *  $HeadURL$
+ *
+ *  This code is derived from public domain sources.
+ *  Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7AckWriter.java : Writes acknowledgment messages from pre-compiled
+ *                      templates, without constructing a HL7Message.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7message;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Writes the acknowledgment of a message directly to an Appendable, as text
+ * identical to that of HL7Message.acknowledgment(), but without building,
+ * parsing, modifying and serializing an acknowledgment HL7Message.
+ * <p>
+ * The constant text of an acknowledgment, everything but its time stamp and
+ * control ids, is compiled once into a template for each combination of
+ * encoding characters, sending and receiving application and facility, and
+ * version, and the templates are cached. Only MSH-3 to MSH-6, MSH-9, MSH-10
+ * and MSH-12 of the acknowledged message are read. Messages without a MSH
+ * segment, such as batch headers, are acknowledged by HL7Message.acknowledgment().
+ * @author scott
+ */
+public class HL7AckWriter {
+   private static final HL7Designator[] ACK_ITEMS = HL7Designator.compileAll("MSH.3", "MSH.4", "MSH.5", "MSH.6",
+                                                                             "MSH.9", "MSH.10", "MSH.12");
+   private static final int   SENDING_APPLICATION = 0,
+                              SENDING_FACILITY = 1,
+                              RECEIVING_APPLICATION = 2,
+                              RECEIVING_FACILITY = 3,
+                              MESSAGE_TYPE = 4,
+                              CONTROL_ID = 5,
+                              VERSION_ID = 6;
+   private static final String ACK_CONTROL_ID_SUFFIX = ".AK";
+   private static final char  CR = (char)HL7Message.CR;
+
+   /**
+    * The maximum number of compiled templates retained by the cache.
+    */
+   private static final int   CACHE_LIMIT = 1024;
+   private static final ConcurrentHashMap<String, HL7AckWriter> cache
+                                          = new ConcurrentHashMap<String, HL7AckWriter>();
+   private static volatile TimeStamp   timeStamp = new TimeStamp(0);
+
+   /**
+    * The MSH segment, up to and including the separator preceding MSH-7.
+    */
+   private final String       mshHead;
+   /**
+    * MSH-7 to MSH-10, from the separator following the time stamp, to the
+    * control id, for ACK and NMR acknowledgments respectively.
+    */
+   private final String       ackType,
+                              nmrType;
+   /**
+    * The remainder of the MSH segment following the control id, and the MSA
+    * segment, up to MSA-1.
+    */
+   private final String       mshTail;
+   private final char         fieldSeparator;
+
+
+   private HL7AckWriter(HL7Encoding encoders, String[] items) {
+      String fs = encoders.getFieldSeparator();
+      fieldSeparator = fs.charAt(0);
+      mshHead = new StringBuilder(HL7Message.SEGID_MSH)
+                     .append(encoders.toString())
+                     .append(fs).append(items[RECEIVING_APPLICATION])
+                     .append(fs).append(items[RECEIVING_FACILITY])
+                     .append(fs).append(items[SENDING_APPLICATION])
+                     .append(fs).append(items[SENDING_FACILITY])
+                     .append(fs)
+                     .toString();
+      ackType = messageType(HL7Message.MSG_TYPE_ACK, encoders);
+      nmrType = messageType(HL7Message.MSG_TYPE_NMR, encoders);
+      mshTail = new StringBuilder(ACK_CONTROL_ID_SUFFIX)
+                     .append(fs)                                           // MSH.11
+                     .append(fs).append(items[VERSION_ID])
+                     .append(StringUtils.repeat(fs, 7))                    // MSH.13 - MSH.19
+                     .append(CR)
+                     .append(HL7Message.SEGID_MSA)
+                     .append(fs)
+                     .toString();
+   } // HL7AckWriter
+
+
+   private static String messageType(String msgType, HL7Encoding encoders) {
+      String fs = encoders.getFieldSeparator();
+      return new StringBuilder(fs)                                         // MSH.8
+                     .append(fs).append(msgType).append(encoders.getComponentSeparator())
+                     .append(fs)                                           // MSH.10
+                     .toString();
+   } // messageType
+
+
+   /**
+    * Returns the compiled template for the argument encoding and MSH items,
+    * as extracted by ACK_ITEMS, with null items replaced by empty strings.
+    */
+   private static HL7AckWriter compile(HL7Encoding encoders, String[] items) {
+      String fs = encoders.getFieldSeparator();
+      String key = new StringBuilder(encoders.toString())
+                     .append(items[SENDING_APPLICATION]).append(fs)
+                     .append(items[SENDING_FACILITY]).append(fs)
+                     .append(items[RECEIVING_APPLICATION]).append(fs)
+                     .append(items[RECEIVING_FACILITY]).append(fs)
+                     .append(items[VERSION_ID])
+                     .toString();
+      HL7AckWriter template = cache.get(key);
+      if (template != null) return template;
+
+      template = new HL7AckWriter(encoders, items);
+      // a simple bound; the senders of a service are normally few.
+      if (cache.size() >= CACHE_LIMIT) cache.clear();
+      HL7AckWriter prior = cache.putIfAbsent(key, template);
+      return prior != null ? prior : template;
+   } // compile
+
+
+   /**
+    * Writes the acknowledgment of the argument message to the argument
+    * Appendable, with each segment terminated by a carriage return, as by
+    * HL7Message.writeTo().
+    * @param out The Appendable to which the acknowledgment is written.
+    * @param msg The message to be acknowledged.
+    * @param ack true for a positive acknowledgment (AA), false for a negative
+    * acknowledgment (AE).
+    * @throws IOException if the argument Appendable does.
+    */
+   public static void writeTo(Appendable out, HL7Message msg, boolean ack) throws IOException {
+      writeTo(out, msg, ack, null);
+   } // writeTo
+
+
+   /**
+    * Writes the acknowledgment of the argument message to the argument
+    * Appendable, as by writeTo(out, msg, ack), with the argument error text,
+    * if any, in MSA-3.
+    * @param out The Appendable to which the acknowledgment is written.
+    * @param msg The message to be acknowledged.
+    * @param ack true for a positive acknowledgment (AA), false for a negative
+    * acknowledgment (AE).
+    * @param errorText The text message of the acknowledgment, which is
+    * encoded with the HL7 escape sequences of the message's encoding
+    * characters, or null for none.
+    * @throws IOException if the argument Appendable does.
+    */
+   public static void writeTo(Appendable out, HL7Message msg, boolean ack, String errorText) throws IOException {
+      String text = errorText == null ? "" : encodedText(msg.getEncoding(), errorText);
+      if (!msg.hasSegment(HL7Message.SEGID_MSH)) {
+         HL7Message ackMsg = msg.acknowledgment(ack, null, null, null);
+         if (text.length() > 0) ackMsg.set("MSA.3", text);
+         ackMsg.writeTo(out);
+         return;
+      } // if
+
+      String[] items = new String[ACK_ITEMS.length];
+      msg.extract(ACK_ITEMS, items);
+      for (int index = 0; index < items.length; ++index) {
+         if (index != MESSAGE_TYPE) items[index] = StringUtils.defaultString(items[index]);
+      } // for
+
+      String msgType = items[MESSAGE_TYPE];
+      // * a message without a type is never accepted.
+      if (msgType == null) ack = false;
+
+      compile(msg.getEncoding(), items).write(  out,
+                                                ack,
+                                                msgType != null && msgType.startsWith(HL7Message.MSG_TYPE_NMQ),
+                                                items[CONTROL_ID],
+                                                text);
+   } // writeTo
+
+
+   /**
+    * @return the argument text, on a single line, encoded with the HL7 escape
+    * sequences of the argument encoding characters.
+    */
+   private static String encodedText(HL7Encoding encoders, String text) {
+      // * a segment terminator would end MSA; line breaks are sent as spaces.
+      return encoders.codec().encode(text.replace('\r', ' ').replace('\n', ' '));
+   } // encodedText
+
+
+   /**
+    * Creates the text of the acknowledgment of the argument message.
+    * @param msg The message to be acknowledged.
+    * @param ack true for a positive acknowledgment (AA), false for a negative
+    * acknowledgment (AE).
+    * @return the acknowledgment, as HL7 text.
+    */
+   public static String toHL7String(HL7Message msg, boolean ack) {
+      StringBuilder ackBuffer = new StringBuilder(256);
+      try {
+         writeTo(ackBuffer, msg, ack);
+      } catch (IOException ioEx) {
+         // * StringBuilder.append() does not throw IOException.
+         throw new IllegalStateException(ioEx);
+      } // try - catch
+
+      return ackBuffer.toString();
+   } // toHL7String
+
+
+   private void write(Appendable out, boolean ack, boolean nmq, String msgCtlID, String text) throws IOException {
+      String time = currentTime();
+      out.append(mshHead)
+         .append(time)
+         .append(nmq ? nmrType : ackType)
+         .append(msgCtlID)
+         .append(mshTail)
+         .append(ack ? HL7Message.ACK_CODE_OK : HL7Message.ACK_CODE_ERROR)
+         .append(fieldSeparator)
+         .append(msgCtlID)
+         .append(fieldSeparator)
+         .append(text)
+         .append(fieldSeparator)
+         .append(CR);
+
+      if (nmq) {
+         out.append(HL7Message.SEGID_NCK)
+            .append(fieldSeparator)
+            .append(time)
+            .append(fieldSeparator)
+            .append(CR);
+      } // if
+   } // write
+
+
+   /**
+    * @return the current time, in HL7 format, formatted at most once a second.
+    */
+   private static String currentTime() {
+      long second = System.currentTimeMillis() / 1000;
+      TimeStamp current = timeStamp;
+      if (current.second != second) {
+         current = new TimeStamp(second);
+         timeStamp = current;
+      } // if
+
+      return current.text;
+   } // currentTime
+
+
+   /**
+    * A formatted time stamp, of one second's resolution.
+    */
+   private static final class TimeStamp {
+      final long     second;
+      final String   text;
+
+      TimeStamp(long second) {
+         this.second = second;
+         text = HL7Time.get(new Date(second * 1000));
+      } // TimeStamp
+   } // TimeStamp
+
+} // HL7AckWriter
@@ -0,0 +1,48 @@
+/*
+ *  $Id$
+ *  $HeadURL$
+ *
+ *  This code is derived from public domain sources.
+ *  Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7Appendable.java : Elements which may be written as HL7 text directly
+ *                       to an Appendable.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7message;
+
+import java.io.IOException;
+
+/**
+ * An element which may write itself as HL7 text, in a single depth first pass,
+ * directly to a StringBuilder, Writer, or any other Appendable, without
+ * formulating intermediate Strings for each of its constituent elements.
+ * @author scott
+ */
+interface HL7Appendable {
+   /**
+    * Appends the context element as HL7 text to the argument Appendable.
+    * @param out The Appendable to which the HL7 text is written.
+    * @param encoders The HL7 encoding character set with which to delimit the text.
+    * @throws IOException if the argument Appendable does.
+    */
+   void appendTo(Appendable out, HL7Encoding encoders) throws IOException;
+
+} // HL7Appendable
@@ -0,0 +1,120 @@
+/*
+ *  $Id$
+ *  $HeadURL$
+ *
+ *  This code is derived from public domain sources.
+ *  Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7ByteBufferAppender.java : An Appendable which encodes HL7 text directly
+ *                               into a ByteBuffer.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7message;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * An Appendable which encodes the characters appended to it directly into a
+ * ByteBuffer, through a small fixed size CharBuffer, so that HL7 text may be
+ * written to a channel without first being formulated as a String.
+ * Unmappable characters are replaced, as by String.getBytes().
+ * @author scott
+ */
+class HL7ByteBufferAppender implements Appendable {
+   private static final int   CHUNK_SIZE = 512;
+
+   private final ByteBuffer      out;
+   private final CharsetEncoder  encoder;
+   private final CharBuffer      chars = CharBuffer.allocate(CHUNK_SIZE);
+
+
+   /**
+    * Creates an appender writing to the argument ByteBuffer, at its position.
+    * @param out The ByteBuffer to receive the encoded text.
+    * @param charset The character set with which to encode the text.
+    */
+   HL7ByteBufferAppender(ByteBuffer out, Charset charset) {
+      this.out = out;
+      encoder = charset.newEncoder()
+                       .onMalformedInput(CodingErrorAction.REPLACE)
+                       .onUnmappableCharacter(CodingErrorAction.REPLACE);
+   } // HL7ByteBufferAppender
+
+
+   public Appendable append(CharSequence csq) {
+      return append(csq, 0, csq.length());
+   } // append
+
+
+   public Appendable append(CharSequence csq, int start, int end) {
+      int index = start;
+      while (index < end) {
+         if (!chars.hasRemaining()) drain(false);
+         int count = Math.min(chars.remaining(), end - index);
+         for (int limit = index + count; index < limit; ++index) chars.put(csq.charAt(index));
+      } // while
+
+      return this;
+   } // append
+
+
+   public Appendable append(char c) {
+      if (!chars.hasRemaining()) drain(false);
+      chars.put(c);
+      return this;
+   } // append
+
+
+   /**
+    * Encodes any pending characters, and flushes the encoder.
+    * @throws BufferOverflowException if the ByteBuffer cannot hold the text.
+    */
+   void finish() {
+      drain(true);
+      check(encoder.flush(out));
+   } // finish
+
+
+   private void drain(boolean endOfInput) {
+      chars.flip();
+      check(encoder.encode(chars, out, endOfInput));
+      chars.compact();
+   } // drain
+
+
+   private void check(CoderResult result) {
+      if (result.isOverflow()) throw new BufferOverflowException();
+      if (result.isError()) {
+         try {
+            result.throwException();
+         } catch (CharacterCodingException ccEx) {
+            throw new IllegalStateException(ccEx);
+         } // try - catch
+      } // if
+   } // check
+
+} // HL7ByteBufferAppender
@@ -27,16 +27,18 @@
 
 package us.conxio.hl7.hl7message;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import org.apache.commons.lang.StringUtils;
 /**
  *
  * @author scott
  */
-public class HL7Component implements HL7Element {
+public class HL7Component implements HL7Element, HL7Appendable {
    private   HL7ElementLevel              level;
    protected ArrayList<HL7SubComponent>   subComponents = null;
    private boolean                        touched;
+   private HL7FieldRepetition             parent = null;
 
 
    public HL7Component() {
@@ -50,36 +52,88 @@ public class HL7Component implements HL7Element {
    } // HL7Component
 
 
+   HL7Component(HL7Tokenizer tokens) {
+      this();
+      _set(tokens);
+   } // HL7Component
+
+
    public boolean wasTouched() {
       return touched;
    } // wasTouched
 
 
+   void setParent(HL7FieldRepetition repetition) {
+      parent = repetition;
+   } // setParent
+
+
+   /**
+    * Marks the context component, and each of its ancestors, as modified.
+    */
+   void touch() {
+      touched = true;
+      if (parent != null) parent.touch();
+   } // touch
+
+
+   private void add(HL7SubComponent subComponent) {
+      subComponent.setParent(this);
+      subComponents.add(subComponent);
+   } // add
+
+
    private void _set(String msgText, HL7Encoding encoders) {
+      if (StringUtils.isEmpty(msgText)) {
+         subComponents = new ArrayList<HL7SubComponent>();
+         return;
+      } // if
+
+      _set(new HL7Tokenizer(msgText, encoders, HL7ElementLevel.COMPONENT));
+   } // set
+
+
+   private void _set(HL7Tokenizer tokens) {
       subComponents = new ArrayList<HL7SubComponent>();
-      touched = true;
 
-      if (StringUtils.isEmpty(msgText)) return;
+      if (tokens.isEmptyAt(HL7ElementLevel.SUBCOMPONENT)) {
+         tokens.skip();
+         return;
+      } // if
 
-      HL7ElementLevel nextLevel = new HL7ElementLevel(HL7ElementLevel.SUBCOMPONENT);
-      ArrayList<String>  subComps = encoders.hl7Split(msgText, nextLevel);   
-      for (String subCompStr : subComps) subComponents.add(new HL7SubComponent(subCompStr));
+      do {
+         add(new HL7SubComponent(tokens.next()));
+      } while (tokens.lastLevel() == HL7ElementLevel.SUBCOMPONENT);
    } // set
 
 
    public void set(String msgText, HL7Encoding encoders) {
       _set(msgText, encoders);
+      touch();
    } // set
 
 
    public String toHL7String(HL7Encoding encoders) {
       if (!hasSubComponents()) return "";
+      return encoders.toHL7String(this);
+   } // toString
 
-      ArrayList<String> elementStrings = new ArrayList<String>();
-      for (HL7Element element : subComponents) elementStrings.add(element.toHL7String(encoders));
 
-      return encoders.hl7Join(elementStrings, level.next());
-   } // toString
+   public void appendTo(Appendable out, HL7Encoding encoders) throws IOException {
+      if (!hasSubComponents()) return;
+
+      char separator = encoders.getSubComponentSeparator().charAt(0);
+      boolean firstTime = true;
+      for (HL7SubComponent subComponent : subComponents) {
+         if (firstTime) {
+            firstTime = false;
+         } else {
+            out.append(separator);
+         } // if - else
+
+         subComponent.appendTo(out, encoders);
+      } // for
+   } // appendTo
 
 
    public String toXMLString(int componentIndex) {
@@ -180,7 +234,8 @@ public class HL7Component implements HL7Element {
 
    private void addSubComponent() {
       if (subComponents == null) subComponents = new ArrayList<HL7SubComponent>();
-      subComponents.add(new HL7SubComponent());
+      add(new HL7SubComponent());
+      touch();
    } // addSubComponent
 
 } // HL7Component
@@ -29,6 +29,7 @@
 
 package us.conxio.hl7.hl7message;
 
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang.StringUtils;
 
 /**
@@ -93,6 +94,23 @@ public class HL7Designator {
     * level of specification 
     */
    private HL7ElementLevel level;
+   /**
+    * Set for designators obtained from compile(), which are shared, and may
+    * not be modified.
+    */
+   private boolean compiled = false;
+   /**
+    * The resolved element index path; field sequence, repetition, component
+    * and sub-component indices.
+    */
+   private int[]   path = null;
+
+   /**
+    * The maximum number of compiled designators retained by the cache.
+    */
+   private static final int   CACHE_LIMIT = 1024;
+   private static final ConcurrentHashMap<String, HL7Designator> cache
+                                          = new ConcurrentHashMap<String, HL7Designator>();
 
    /**
     * Creates an empty HL7Designator()
@@ -110,6 +128,86 @@ public class HL7Designator {
    } // HL7Designator constructor
 
 
+   /**
+    * Returns a compiled HL7Designator for the argument string. Compiled
+    * designators are cached, so that repeated use of the same designator
+    * string costs only a hash lookup. The returned object is shared, and so is
+    * immutable; its setters throw UnsupportedOperationException.
+    * @param argStr A designator string, as for the HL7Designator(String) constructor.
+    * @return The compiled HL7Designator.
+    */
+   public static HL7Designator compile(String argStr) {
+      HL7Designator designator = cache.get(argStr);
+      if (designator != null) return designator;
+
+      designator = new HL7Designator(argStr);
+      designator.path();
+      designator.compiled = true;
+
+      // a simple bound; designator strings in use are normally few.
+      if (cache.size() >= CACHE_LIMIT) cache.clear();
+      HL7Designator prior = cache.putIfAbsent(argStr, designator);
+      return prior != null ? prior : designator;
+   } // compile
+
+
+   /**
+    * Compiles each of the argument designator strings.
+    * @param argStrs The designator strings to be compiled.
+    * @return The compiled designators, in the argument order, as for use with
+    * HL7Message.extract().
+    */
+   public static HL7Designator[] compileAll(String... argStrs) {
+      HL7Designator[] designators = new HL7Designator[argStrs.length];
+      for (int index = 0; index < argStrs.length; ++index) {
+         designators[index] = compile(argStrs[index]);
+      } // for
+
+      return designators;
+   } // compileAll
+
+
+   /**
+    * @return true if the context designator was obtained from compile().
+    */
+   public boolean isCompiled() {
+      return compiled;
+   } // isCompiled
+
+
+   private void checkMutable() {
+      if (compiled) {
+         throw new UnsupportedOperationException("Compiled designator:" + argString);
+      } // if
+   } // checkMutable
+
+
+   /**
+    * Returns the element index path of the context designator, that is the
+    * field sequence, repetition, component and sub-component indices, where a
+    * repetition is implied by a specified component.
+    * @return The element index path, as an array of 4 int values.
+    */
+   int[] path() {
+      if (path != null) return path;
+
+      int repetition = repetitionIndex;
+      if (repetition == UNSPECIFIED && componentIndex != UNSPECIFIED) repetition = 0;
+      return path = new int[] { sequence, repetition, componentIndex, subComponentIndex };
+   } // path
+
+
+   /**
+    * @param other The designator to compare with.
+    * @return true if the argument designates the same segment as the context
+    * designator.
+    */
+   boolean isSameSegment(HL7Designator other) {
+      return segIndex == other.segIndex
+          && (segID == null ? other.segID == null : segID.equals(other.segID));
+   } // isSameSegment
+
+
    /**
     * Creates a HL7Designator which is a duplicate of the argument.
     * @param argLocation a HL7Designator to be duplicated.
@@ -221,6 +319,8 @@ public class HL7Designator {
 
 
    void snip() {
+      checkMutable();
+      path = null;
       switch (depth()) {
          case 3 : repetitionIndex = UNSPECIFIED;  break;
          case 4 : componentIndex = ALL;  break;
@@ -503,6 +603,7 @@ public class HL7Designator {
 
    
    public void setSegIndex(int value) {
+      checkMutable();
       segIndex = value;
    } // setSegIndex
 
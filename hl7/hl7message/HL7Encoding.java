@@ -28,6 +28,7 @@
 
 package us.conxio.hl7.hl7message;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import org.apache.commons.lang.StringUtils;
 import us.conxio.XMLUtilities.XMLUtils;
@@ -43,6 +44,10 @@ public class HL7Encoding {
                         repetitionSeparator,
                         subComponentSeparator,
                         escapeChar;
+   /**
+    * The escape codec for the current encoding characters, created on first use.
+    */
+   private HL7EscapeCodec  codec = null;
 
    public static final String SEGMENT_TERMINATOR = HL7Message.SEGMENT_TERMINATOR;
 
@@ -264,6 +269,7 @@ public class HL7Encoding {
    public void setFieldSeparator(String fieldSep) {
       if (StringUtils.isEmpty(fieldSep)) return;
       fieldSeparator = fieldSep.charAt(0);
+      codec = null;
    } // setFieldSeparator
 
   /**
@@ -272,6 +278,7 @@ public class HL7Encoding {
    */
    public void setFieldSeparator(int fieldSep) {
       fieldSeparator = fieldSep;
+      codec = null;
    } // setFieldSeparator
 
   /**
@@ -289,6 +296,7 @@ public class HL7Encoding {
    public void setComponentSeparator(String componentSep) {
       if (StringUtils.isEmpty(componentSep)) return;
       componentSeparator = componentSep.charAt(0);
+      codec = null;
    } // setComponentSeparator
 
    /**
@@ -296,6 +304,7 @@ public class HL7Encoding {
     */
    public void setComponentSeparator(int componentSep) {
       componentSeparator = componentSep;
+      codec = null;
    } // setComponentSeparator
 
    /**
@@ -311,6 +320,7 @@ public class HL7Encoding {
    public void setRepetitionSeparator(String repetitionSep) {
       if (StringUtils.isEmpty(repetitionSep)) return;
       repetitionSeparator = repetitionSep.charAt(0);
+      codec = null;
    } // setRepetitionSeparator
 
     /**
@@ -318,6 +328,7 @@ public class HL7Encoding {
     */
    public void setRepetitionSeparator(int repetitionSep) {
       repetitionSeparator = repetitionSep;
+      codec = null;
    } // setRepetitionSeparator
 
   /**
@@ -333,6 +344,7 @@ public class HL7Encoding {
    public void setSubComponentSeparator(String subComponentSep) {
       if (StringUtils.isEmpty(subComponentSep)) return;
       subComponentSeparator = subComponentSep.charAt(0);
+      codec = null;
    } // setSubComponentSeparator
 
    /**
@@ -340,6 +352,7 @@ public class HL7Encoding {
     */
    public void setSubComponentSeparator(int subComponentSep) {
       subComponentSeparator = subComponentSep;
+      codec = null;
    } // setSubComponentSeparator
 
    /**
@@ -355,6 +368,7 @@ public class HL7Encoding {
    public void setEscapeChar(String escapeChr) {
       if (StringUtils.isEmpty(escapeChr)) return;
       escapeChar = escapeChr.charAt(0);
+      codec = null;
    } // setEscapeChar
 
 
@@ -363,22 +377,68 @@ public class HL7Encoding {
     */
    public void setEscapeChar(int  escapeChr) {
       escapeChar = escapeChr;
+      codec = null;
    } // setEscapeChar
 
 
+   int fieldSeparatorValue()        { return fieldSeparator; }
+   int componentSeparatorValue()    { return componentSeparator; }
+   int repetitionSeparatorValue()   { return repetitionSeparator; }
+   int subComponentSeparatorValue() { return subComponentSeparator; }
+   int escapeCharValue()            { return escapeChar; }
+
+
+   HL7EscapeCodec codec() {
+      if (codec == null) codec = new HL7EscapeCodec(this);
+      return codec;
+   } // codec
+
+
    /**
-    * Escapes any encoding characters in the argument string.
+    * Escapes any encoding characters in the argument string, in a single pass.
     * @param str the argument string to operate upon.
-    * @return the argument string with encoding characters escaped
+    * @return the argument string with encoding characters escaped, which is the
+    * argument string itself if it contains no unescaped separators.
     */
    public String escape(String str) {
-      str = escapeSeparator(str, new HL7ElementLevel(HL7ElementLevel.FIELD));
-      str = escapeSeparator(str, new HL7ElementLevel(HL7ElementLevel.COMPONENT));
-      str = escapeSeparator(str, new HL7ElementLevel(HL7ElementLevel.REPETITION));
-      return  escapeSeparator(str, new HL7ElementLevel(HL7ElementLevel.SUBCOMPONENT));
+      return codec().escape(str);
    } // escape
 
 
+   /**
+    * Appends the argument string to the argument Appendable, with encoding
+    * characters escaped, as by escape().
+    * @throws IOException if the argument Appendable does.
+    */
+   void appendEscaped(Appendable out, String str) throws IOException {
+      codec().appendEscaped(out, str);
+   } // appendEscaped
+
+
+   /**
+    * Encodes the argument plain text for use as HL7 content, using the standard
+    * HL7 escape sequences (\F\, \S\, \T\, \R\ and \E\) for any encoding
+    * characters it contains.
+    * @param text the plain text to be encoded.
+    * @return the encoded text.
+    */
+   public String encode(String text) {
+      return codec().encode(text);
+   } // encode
+
+
+   /**
+    * Decodes the argument HL7 content to plain text, replacing the standard
+    * HL7 escape sequences, as well as escaped separators, with the encoding
+    * characters they represent. Other escape sequences are retained.
+    * @param hl7Text the HL7 content to be decoded.
+    * @return the decoded text.
+    */
+   public String decode(String hl7Text) {
+      return codec().decode(hl7Text);
+   } // decode
+
+
    private int separatorAt(HL7ElementLevel level) {
       if (level == null) throw new IllegalArgumentException("Null level.");
 
@@ -394,46 +454,47 @@ public class HL7Encoding {
    }
 
 
-   private int nextBreak(String str, int separator) {
-      int brk = str.indexOf(separator);
-      if (brk < 0) return brk;
-
-      if (brk > 0 && str.charAt(brk - 1) == escapeChar) {
-         return brk + nextBreak(str.substring(brk + 1), separator);
-      } // if
-
-      return brk;
-   } // nextToken
-
-
+   /**
+    * Splits the argument string into its constituent elements at the argument
+    * level, in a single pass. Separators which are escaped are retained as
+    * content, while a complete escape sequence escapes nothing beyond itself.
+    * @param str The string to be split.
+    * @param level The level of the separator at which to split.
+    * @return The list of elements.
+    */
    ArrayList<String> hl7Split(String str, HL7ElementLevel level) {
       ArrayList<String> retn = new ArrayList<String>();
       char separator = (char)separatorAt(level);
-      int brk = 0;
-      while (true) {
-         brk = nextBreak(str, separator);
-         if (brk < 0) {
-            retn.add(str);
-            return retn;
+      int len = str.length();
+      int start = 0;
+
+      for (int index = 0; index < len; ++index) {
+         char ch = str.charAt(index);
+         if (ch == escapeChar) {
+            index = codec().escapeEnd(str, index);
+            continue;
          } // if
-         
-         retn.add(str.substring(0, brk));
-         str = str.substring(++brk);
-      } // while
+
+         if (ch != separator) continue;
+
+         retn.add(str.substring(start, index));
+         start = index + 1;
+      } // for
+
+      retn.add(str.substring(start));
+      return retn;
    } // hl7Split
 
 
-   private String hl7Join(ArrayList<String> elements, HL7ElementLevel level, boolean escaped) {
+   String hl7Join(ArrayList<String> elements, HL7ElementLevel level) {
       StringBuilder retnBuffer = new StringBuilder();
       char separator = (char)separatorAt(level);
-      String encoders = toString();
 
       boolean firstTime = true;
       for (String element : elements) {
          if (firstTime) {
             firstTime = false;
          } else {
-            if (escaped) retnBuffer.append((char)escapeChar);
             retnBuffer.append(separator);
          } // if
 
@@ -444,15 +505,38 @@ public class HL7Encoding {
    } // hl7Join
 
 
-   String hl7Join(ArrayList<String> elements, HL7ElementLevel level) {
-      return hl7Join(elements, level, false);
-   } // hl7Join
+   /**
+    * Formulates the argument element as a String of HL7 text, in a single pass,
+    * using the context encoding characters.
+    * @param element The element to be formulated.
+    * @return The HL7 text of the argument element.
+    */
+   String toHL7String(HL7Appendable element) {
+      StringBuilder hl7Buffer = new StringBuilder();
+      try {
+         element.appendTo(hl7Buffer, this);
+      } catch (IOException ioEx) {
+         // * StringBuilder.append() does not throw IOException.
+         throw new IllegalStateException(ioEx);
+      } // try - catch
+
+      return hl7Buffer.toString();
+   } // toHL7String
 
 
-   private String escapeSeparator(String str, HL7ElementLevel level) {
-      ArrayList<String> elements = hl7Split(str, level);
-      return hl7Join(elements, level, true);
-   } // escapeSeparator
+   /**
+    * @param encoders The HL7 encoding character set to compare.
+    * @return true if the argument encoding characters are identical to those
+    * of the context HL7Encoding, otherwise false.
+    */
+   boolean isSameEncoding(HL7Encoding encoders) {
+      return   encoders != null
+      &&       fieldSeparator == encoders.fieldSeparator
+      &&       componentSeparator == encoders.componentSeparator
+      &&       repetitionSeparator == encoders.repetitionSeparator
+      &&       escapeChar == encoders.escapeChar
+      &&       subComponentSeparator == encoders.subComponentSeparator;
+   } // isSameEncoding
 
 
    public static HL7Encoding getDefaultEncoding() {
@@ -0,0 +1,288 @@
+/*
+ *  $Id$
+ *  $HeadURL$
+ *
+ *  This code is derived from public domain sources.
+ *  Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7EscapeCodec.java : Single pass escaping and unescaping of HL7 text
+ *                        content.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7message;
+
+import java.io.IOException;
+
+/**
+ * Escapes and unescapes HL7 content for a fixed set of encoding characters,
+ * scanning the content once, with a lookup table of the encoding characters.
+ * Content which contains nothing to be escaped, or unescaped, is returned as is.
+ * <p>
+ * Two forms of escaped content are recognized. A separator immediately preceded
+ * by the escape character, as written by escape(), and the escape sequences,
+ * from an escape character to the next, such as the standard ones written by
+ * encode():
+ * <ul>
+ * <li>\F\ field separator
+ * <li>\S\ component separator
+ * <li>\T\ sub-component separator
+ * <li>\R\ repetition separator
+ * <li>\E\ escape character
+ * </ul>
+ * Any other escape sequence, such as formatting or hexadecimal data, is retained
+ * as is, by decode().
+ * @author scott
+ */
+class HL7EscapeCodec {
+   private static final byte  CONTENT = 0,
+                              SEPARATOR = 1,
+                              ESCAPE = 2;
+
+   private static final int   TABLE_SIZE = 128;
+
+   private final int    fieldSeparator,
+                        componentSeparator,
+                        repetitionSeparator,
+                        subComponentSeparator,
+                        escapeChar;
+   /**
+    * The class of each ascii character, as CONTENT, SEPARATOR or ESCAPE.
+    */
+   private final byte[] table = new byte[TABLE_SIZE];
+
+
+   /**
+    * Creates a codec for the current encoding characters of the argument
+    * HL7Encoding. The codec does not follow subsequent changes to the encoding.
+    * @param encoders The HL7 encoding character set.
+    */
+   HL7EscapeCodec(HL7Encoding encoders) {
+      fieldSeparator = encoders.fieldSeparatorValue();
+      componentSeparator = encoders.componentSeparatorValue();
+      repetitionSeparator = encoders.repetitionSeparatorValue();
+      subComponentSeparator = encoders.subComponentSeparatorValue();
+      escapeChar = encoders.escapeCharValue();
+
+      mark(fieldSeparator, SEPARATOR);
+      mark(componentSeparator, SEPARATOR);
+      mark(repetitionSeparator, SEPARATOR);
+      mark(subComponentSeparator, SEPARATOR);
+      mark(escapeChar, ESCAPE);
+   } // HL7EscapeCodec
+
+
+   private void mark(int ch, byte charClass) {
+      if (ch < TABLE_SIZE) table[ch] = charClass;
+   } // mark
+
+
+   private int classOf(int ch) {
+      if (ch < TABLE_SIZE) return table[ch];
+      if (ch == escapeChar) return ESCAPE;
+
+      if (  ch == fieldSeparator
+      ||    ch == componentSeparator
+      ||    ch == repetitionSeparator
+      ||    ch == subComponentSeparator) {
+         return SEPARATOR;
+      } // if
+
+      return CONTENT;
+   } // classOf
+
+
+   /**
+    * Determines the extent of the escaped content which begins with the
+    * escape character at the argument offset: a separator escaped by
+    * escape(), or a complete escape sequence, up to its closing escape
+    * character, such as \E\ or \X0D\. A separator which follows a complete
+    * escape sequence is therefore a separator, rather than content.
+    * @param str The text being scanned.
+    * @param offset The offset of an escape character in the text.
+    * @return the offset of the last character of the escaped content, which
+    * is the argument offset itself for an escape character which escapes nothing.
+    */
+   int escapeEnd(String str, int offset) {
+      int len = str.length();
+      if (offset + 1 >= len) return offset;
+      if (classOf(str.charAt(offset + 1)) == SEPARATOR) return offset + 1;
+
+      // * an escape sequence never spans a separator, or a segment.
+      for (int index = offset + 1; index < len; ++index) {
+         int ch = str.charAt(index);
+         if (ch == escapeChar) return index;
+         if (ch == HL7Message.CR || classOf(ch) == SEPARATOR) break;
+      } // for
+
+      return offset;
+   } // escapeEnd
+
+
+   /**
+    * @return The index of the first separator in the argument string which is
+    * not escaped, or -1 if there is none.
+    */
+   private int nextBareSeparator(String str, int from) {
+      int len = str.length();
+      for (int index = from; index < len; ++index) {
+         int charClass = classOf(str.charAt(index));
+         if (charClass == SEPARATOR) return index;
+         if (charClass == ESCAPE) index = escapeEnd(str, index);
+      } // for
+
+      return -1;
+   } // nextBareSeparator
+
+
+   /**
+    * Escapes any separators in the argument string which are not already
+    * escaped, by preceding each with the escape character.
+    * @param str The content to be escaped.
+    * @return The escaped content, which is the argument string itself if
+    * nothing needs to be escaped.
+    */
+   String escape(String str) {
+      if (str == null) return null;
+      if (nextBareSeparator(str, 0) < 0) return str;
+
+      StringBuilder escaped = new StringBuilder(str.length() + 8);
+      try {
+         appendEscaped(escaped, str);
+      } catch (IOException ioEx) {
+         // * StringBuilder.append() does not throw IOException.
+         throw new IllegalStateException(ioEx);
+      } // try - catch
+
+      return escaped.toString();
+   } // escape
+
+
+   /**
+    * Appends the argument string to the argument Appendable, escaped as by escape().
+    * @throws IOException if the argument Appendable does.
+    */
+   void appendEscaped(Appendable out, String str) throws IOException {
+      int start = 0;
+      for (  int index = nextBareSeparator(str, 0);
+             index >= 0;
+             index = nextBareSeparator(str, index + 1)) {
+         out.append(str, start, index).append((char)escapeChar);
+         start = index;
+      } // for
+
+      out.append(str, start, str.length());
+   } // appendEscaped
+
+
+   /**
+    * Encodes the argument plain text using the standard HL7 escape sequences
+    * for the separators and escape character it contains.
+    * @param text The plain text to be encoded.
+    * @return The encoded text, which is the argument string itself if it
+    * contains no encoding characters.
+    */
+   String encode(String text) {
+      if (text == null) return null;
+
+      int len = text.length();
+      StringBuilder encoded = null;
+      int start = 0;
+      for (int index = 0; index < len; ++index) {
+         int ch = text.charAt(index);
+         if (classOf(ch) == CONTENT) continue;
+
+         if (encoded == null) encoded = new StringBuilder(len + 16);
+         encoded.append(text, start, index)
+                .append((char)escapeChar)
+                .append(sequenceOf(ch))
+                .append((char)escapeChar);
+         start = index + 1;
+      } // for
+
+      if (encoded == null) return text;
+      return encoded.append(text, start, len).toString();
+   } // encode
+
+
+   private char sequenceOf(int ch) {
+      if (ch == fieldSeparator)        return 'F';
+      if (ch == componentSeparator)    return 'S';
+      if (ch == subComponentSeparator) return 'T';
+      if (ch == repetitionSeparator)   return 'R';
+      return 'E';
+   } // sequenceOf
+
+
+   /**
+    * @return The encoding character designated by the argument standard escape
+    * sequence character, or -1 if it designates none.
+    */
+   private int characterOf(char sequence) {
+      switch (sequence) {
+         case 'F' : return fieldSeparator;
+         case 'S' : return componentSeparator;
+         case 'T' : return subComponentSeparator;
+         case 'R' : return repetitionSeparator;
+         case 'E' : return escapeChar;
+         default  : return -1;
+      } // switch
+   } // characterOf
+
+
+   /**
+    * Decodes the argument HL7 content to plain text, replacing the standard
+    * escape sequences, and escaped separators, with the characters they
+    * represent.
+    * @param str The HL7 content to be decoded.
+    * @return The decoded text, which is the argument string itself if it
+    * contains no escape character.
+    */
+   String decode(String str) {
+      if (str == null) return null;
+
+      int index = str.indexOf(escapeChar);
+      if (index < 0) return str;
+
+      int len = str.length();
+      StringBuilder decoded = new StringBuilder(len);
+      int start = 0;
+      for (; index >= 0 && index < len - 1; index = str.indexOf(escapeChar, start)) {
+         char next = str.charAt(index + 1);
+         int ch;
+
+         if (  index + 2 < len
+         &&    str.charAt(index + 2) == escapeChar
+         &&    (ch = characterOf(next)) >= 0) {
+            decoded.append(str, start, index).append((char)ch);
+            start = index + 3;
+         } else if (classOf(next) == SEPARATOR) {
+            decoded.append(str, start, index).append(next);
+            start = index + 2;
+         } else {
+            // * not a recognized escape sequence, retained as is.
+            decoded.append(str, start, index + 1);
+            start = index + 1;
+         } // if - else if - else
+      } // for
+
+      return decoded.append(str, start, len).toString();
+   } // decode
+
+} // HL7EscapeCodec
@@ -27,15 +27,17 @@
 
 package us.conxio.hl7.hl7message;
 
+import java.io.IOException;
 import java.util.ArrayList;
 /**
  *
  * @author scott
  */
-public class HL7Field implements HL7Element {
+public class HL7Field implements HL7Element, HL7Appendable {
    private   HL7ElementLevel                 level;
    protected ArrayList<HL7FieldRepetition>   repetitions = null;
    private boolean                           touched;
+   private HL7Segment                        parent = null;
 
 
    public HL7Field() {
@@ -48,6 +50,12 @@ public class HL7Field implements HL7Element {
       _set(fieldStr, encoders);
    } // HL7Field
 
+   HL7Field(HL7Tokenizer tokens) {
+      this();
+      _set(tokens);
+   } // HL7Field
+
+
    public int getLevel() {
       return level.get();
    } // getLevel
@@ -58,28 +66,65 @@ public class HL7Field implements HL7Element {
    } // wasTouched
 
 
-   private void _set(String msgText, HL7Encoding encoders) {
-      HL7ElementLevel nextLevel = new HL7ElementLevel(HL7ElementLevel.REPETITION);
-      ArrayList<String>  elements = encoders.hl7Split(msgText, nextLevel);
-      repetitions = new ArrayList<HL7FieldRepetition>();
-      for (String elementStr : elements) {
-         HL7FieldRepetition element = new HL7FieldRepetition(elementStr, encoders);
-         repetitions.add(element);
-      } // for
+   void setParent(HL7Segment segment) {
+      parent = segment;
+   } // setParent
+
 
+   /**
+    * Marks the context field, and each of its ancestors, as modified.
+    */
+   void touch() {
       touched = true;
+      if (parent != null) parent.touch();
+   } // touch
+
+
+   private void add(HL7FieldRepetition repetition) {
+      repetition.setParent(this);
+      repetitions.add(repetition);
+   } // add
+
+
+   private void _set(String msgText, HL7Encoding encoders) {
+      _set(new HL7Tokenizer(msgText, encoders, HL7ElementLevel.FIELD));
+   } // set
+
+
+   private void _set(HL7Tokenizer tokens) {
+      repetitions = new ArrayList<HL7FieldRepetition>();
+      do {
+         add(new HL7FieldRepetition(tokens));
+      } while (tokens.lastLevel() == HL7ElementLevel.REPETITION);
    } // set
 
-   public void set(String msgText, HL7Encoding encoders) { this._set(msgText, encoders); }
+   public void set(String msgText, HL7Encoding encoders) {
+      this._set(msgText, encoders);
+      touch();
+   } // set
    
    public String toHL7String(HL7Encoding encoders) {
       if (!hasRepetitions()) return "";
-
-      ArrayList<String> repStrings = new ArrayList<String>();
-      for (HL7FieldRepetition rep : repetitions) repStrings.add(rep.toHL7String(encoders));
-      return encoders.hl7Join(repStrings, level.next());
+      return encoders.toHL7String(this);
    } // toHL7String
 
+
+   public void appendTo(Appendable out, HL7Encoding encoders) throws IOException {
+      if (!hasRepetitions()) return;
+
+      char separator = encoders.getRepetitionSeparator().charAt(0);
+      boolean firstTime = true;
+      for (HL7FieldRepetition rep : repetitions) {
+         if (firstTime) {
+            firstTime = false;
+         } else {
+            out.append(separator);
+         } // if - else
+
+         rep.appendTo(out, encoders);
+      } // for
+   } // appendTo
+
    
    public String toXMLString(int fieldIndex) {
       if (!hasContent()) return "";
@@ -159,7 +204,8 @@ public class HL7Field implements HL7Element {
 
    public void addRepetition() {
       if (repetitions == null) repetitions = new ArrayList<HL7FieldRepetition>();
-      repetitions.add(new HL7FieldRepetition());
+      add(new HL7FieldRepetition());
+      touch();
    } // addRepetition
 
 
@@ -27,16 +27,18 @@
 
 package us.conxio.hl7.hl7message;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
  *
  * @author scott
  */
-public class HL7FieldRepetition implements HL7Element {
+public class HL7FieldRepetition implements HL7Element, HL7Appendable {
    private   HL7ElementLevel              level;
    protected ArrayList<HL7Component>      components = null;
    private boolean                        touched;
+   private HL7Field                       parent = null;
 
 
    public HL7FieldRepetition() {
@@ -50,6 +52,12 @@ public class HL7FieldRepetition implements HL7Element {
    } // HL7FieldRepetition
 
 
+   HL7FieldRepetition(HL7Tokenizer tokens) {
+      this();
+      _set(tokens);
+   } // HL7FieldRepetition
+
+
    public boolean hasComponent(int index) {
       return hasComponents()
          &&  index >= 0
@@ -78,30 +86,66 @@ public class HL7FieldRepetition implements HL7Element {
    } // wasTouched
 
 
-   private void _set(String msgText, HL7Encoding encoders) {
-      HL7ElementLevel nextLevel = new HL7ElementLevel(HL7ElementLevel.COMPONENT);
-      ArrayList<String>  elements = encoders.hl7Split(msgText, nextLevel);
-      components = new ArrayList<HL7Component>();
-      for (String elementStr : elements) {
-         HL7Component element = new HL7Component(elementStr, encoders);
-         components.add(element);
-      } // for
+   void setParent(HL7Field field) {
+      parent = field;
+   } // setParent
+
 
+   /**
+    * Marks the context repetition, and each of its ancestors, as modified.
+    */
+   void touch() {
       touched = true;
+      if (parent != null) parent.touch();
+   } // touch
+
+
+   private void add(HL7Component component) {
+      component.setParent(this);
+      components.add(component);
+   } // add
+
+
+   private void _set(String msgText, HL7Encoding encoders) {
+      _set(new HL7Tokenizer(msgText, encoders, HL7ElementLevel.REPETITION));
+   } // set
+
+
+   private void _set(HL7Tokenizer tokens) {
+      components = new ArrayList<HL7Component>();
+      do {
+         add(new HL7Component(tokens));
+      } while (tokens.lastLevel() == HL7ElementLevel.COMPONENT);
    } // set
 
 
-   public void set(String msgText, HL7Encoding encoders) { this._set(msgText, encoders); }
+   public void set(String msgText, HL7Encoding encoders) {
+      this._set(msgText, encoders);
+      touch();
+   } // set
 
 
    public String toHL7String(HL7Encoding encoders) {
       if (!hasComponents()) return "";
+      return encoders.toHL7String(this);
+   } // toString
 
-      ArrayList<String> compStrings = new ArrayList<String>();
-      for (HL7Component comp : components) compStrings.add(comp.toHL7String(encoders));
 
-      return encoders.hl7Join(compStrings, level.next());
-   } // toString
+   public void appendTo(Appendable out, HL7Encoding encoders) throws IOException {
+      if (!hasComponents()) return;
+
+      char separator = encoders.getComponentSeparator().charAt(0);
+      boolean firstTime = true;
+      for (HL7Component comp : components) {
+         if (firstTime) {
+            firstTime = false;
+         } else {
+            out.append(separator);
+         } // if - else
+
+         comp.appendTo(out, encoders);
+      } // for
+   } // appendTo
 
 
    public String toXMLString(int repIndex) {
@@ -184,7 +228,8 @@ public class HL7FieldRepetition implements HL7Element {
 
    private void addComponent() {
       if (components == null) components = new ArrayList<HL7Component>();
-      components.add(new HL7Component());
+      add(new HL7Component());
+      touch();
    } // addComponent
 
    public void addComponent(int index) {
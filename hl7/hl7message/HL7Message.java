@@ -27,6 +27,9 @@
 
 package us.conxio.hl7.hl7message;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import org.apache.commons.lang.StringUtils;
@@ -40,6 +43,12 @@ public class HL7Message {
    private HL7Encoding           encoders = null;
    private ArrayList<HL7Segment> segments = null;
    private HL7SegmentMap         segmentMap = null;
+   /**
+    * The serialized form of the message, using its own encoding characters,
+    * retained until the message is next modified.
+    */
+   private String                hl7Text = null;
+   private HL7Encoding           hl7TextEncoding = null;
 
    public static final int    CR = 0x0d;
    public static final String SEGMENT_TERMINATOR = "\r";
@@ -57,6 +66,14 @@ public class HL7Message {
    public static final String ACK_CODE_OK = "AA";
    public static final String ACK_CODE_ERROR = "AE";
 
+   /**
+    * The items which identify a message, or a batch, for idString().
+    */
+   private static final HL7Designator[] MSH_ID_ITEMS = HL7Designator.compileAll("MSH.3", "MSH.4", "MSH.5", "MSH.6",
+                                                                                "MSH.7", "MSH.9.1", "MSH.9.2", "MSH.10");
+   private static final HL7Designator[] BHS_ID_ITEMS = HL7Designator.compileAll("BHS.3", "BHS.4", "BHS.5", "BHS.6",
+                                                                                "BHS.7", "BHS.9", "BHS.11");
+
    /**
     * Constructs an empty HL7Message object.
     */
@@ -72,6 +89,25 @@ public class HL7Message {
    } // HL7Message
 
 
+   /**
+    * Constructs a HL7Message object from the argument String object, optionally
+    * deferring the parsing of each segment until it is first accessed.
+    * @param hl7Msg The HL7 transaction message from which to construct the object.
+    * @param deferParsing If true, the message text is retained together with a
+    * compact index of its delimiters, and each segment is parsed into fields
+    * only when an element of the segment is first written. Items read by get()
+    * are resolved from the index. Segments which are never parsed are rendered
+    * from the original text.
+    */
+   public HL7Message(String hl7Msg, boolean deferParsing) {
+      if (deferParsing) {
+         parseDeferred(hl7Msg);
+      } else {
+         parse(hl7Msg);
+      } // if - else
+   } // HL7Message
+
+
    private HL7Encoding extractEncoding(String hl7Msg) {
       return (hl7Msg.startsWith(SEGID_MSH) || hl7Msg.startsWith(SEGID_BHS))
            ? new HL7Encoding(hl7Msg.substring(3, 8))
@@ -96,12 +132,16 @@ public class HL7Message {
       if (!hasDecoders()) encoders = extractEncoding(segs);
       if (!hasDecoders()) setDefaultEncoding();
 
-      String[] segmentStrings = segs.split(SEGMENT_TERMINATOR);
+      HL7Tokenizer tokens = new HL7Tokenizer(segs, encoders);
+      HL7MessageIndex index = new HL7MessageIndex(segs, encoders, tokens);
+      while (tokens.hasNext()) {
+         if (tokens.isEndOf(HL7ElementLevel.SEGMENT)) {
+            tokens.skip();
+            continue;
+         } // if
 
-      int segmentCount = segmentStrings.length;
-      for (int index = 0; index < segmentCount; ++index) {
-         addSegment(new HL7Segment(segmentStrings[index], encoders));
-      } // for
+         addSegment(new HL7Segment(tokens, index));
+      } // while
    } // addSegments
 
 
@@ -115,8 +155,10 @@ public class HL7Message {
       if (segmentMap == null) segmentMap = new HL7SegmentMap();
       if (segments == null) segments = new ArrayList<HL7Segment>();
 
+      seg.setParent(this);
       segments.add(seg);
       segmentMap.put(seg);
+      invalidate();
    } // addSegment
 
 
@@ -149,6 +191,24 @@ public class HL7Message {
    } // parse
 
 
+   /**
+    * Indexes the argument message text, and adds a deferred segment for each
+    * segment of the text, to be parsed when it is first accessed.
+    */
+   private void parseDeferred(String msg) {
+      encoders = extractEncoding(msg);
+      if (!hasDecoders()) setDefaultEncoding();
+
+      HL7MessageIndex index = new HL7MessageIndex(msg, encoders);
+      int markCount = index.markCount();
+      for (int firstMark = 0; firstMark < markCount; ) {
+         int lastMark = index.segmentEnd(firstMark);
+         if (!index.isEmpty(firstMark, lastMark)) addSegment(new HL7Segment(index, firstMark, lastMark));
+         firstMark = lastMark + 1;
+      } // for
+   } // parseDeferred
+
+
    HL7SegmentMap segMap() {
       return segmentMap;
    } // segMap
@@ -174,25 +234,144 @@ public class HL7Message {
     */
    public String toHL7String(HL7Encoding encode) {
       StringBuilder msgBuffer = new StringBuilder();
-      for (HL7Segment seg : segments) {
-         msgBuffer.append(seg.toHL7String(encode) ).append(SEGMENT_TERMINATOR);
-      } // for
+      try {
+         writeTo(msgBuffer, encode);
+      } catch (IOException ioEx) {
+         // * StringBuilder.append() does not throw IOException.
+         throw new IllegalStateException(ioEx);
+      } // try - catch
 
       return msgBuffer.toString();
    } // toHL7String
 
 
+   /**
+    * Writes a HL7 representation of the context HL7 transaction message to the
+    * argument Appendable, such as a Writer or StringBuilder, in a single depth
+    * first pass, using the argument encoding characters. No intermediate String
+    * is formulated for the message, or for any of its constituent elements.
+    * @param out The Appendable to which the HL7 text is written.
+    * @param encode The encoding characters with which to delimit the text.
+    * @throws IOException if the argument Appendable does.
+    */
+   public void writeTo(Appendable out, HL7Encoding encode) throws IOException {
+      for (HL7Segment seg : segments) {
+         seg.appendTo(out, encode);
+         out.append((char)CR);
+      } // for
+   } // writeTo
+
+
+   /**
+    * Writes a HL7 representation of the context HL7 transaction message to the
+    * argument Appendable, using the original encoding characters.
+    * @param out The Appendable to which the HL7 text is written.
+    * @throws IOException if the argument Appendable does.
+    */
+   public void writeTo(Appendable out) throws IOException {
+      if (hl7Text != null && encoders.isSameEncoding(hl7TextEncoding)) {
+         out.append(hl7Text);
+         return;
+      } // if
+
+      writeTo(out, encoders);
+   } // writeTo
+
+
+   /**
+    * Encodes a HL7 representation of the context HL7 transaction message
+    * directly into the argument ByteBuffer, at its current position, using the
+    * original encoding characters and the argument character set.
+    * @param out The ByteBuffer to receive the encoded message.
+    * @param charset The character set with which to encode the message.
+    * @throws java.nio.BufferOverflowException if the remaining space in the
+    * ByteBuffer is insufficient, in which case its content is incomplete.
+    */
+   public void writeTo(ByteBuffer out, Charset charset) {
+      HL7ByteBufferAppender appender = new HL7ByteBufferAppender(out, charset);
+      try {
+         writeTo(appender, encoders);
+      } catch (IOException ioEx) {
+         // * HL7ByteBufferAppender.append() does not throw IOException.
+         throw new IllegalStateException(ioEx);
+      } // try - catch
+
+      appender.finish();
+   } // writeTo
+
+
    /**
     * Creates a HL7 representation of the context HL7 transaction message,
-    * using the original encoding characters.
+    * using the original encoding characters. The representation is retained,
+    * and returned as is, until the message is next modified.
     * @return A String object containing a HL7 representation of the context
     * HL7 transaction message, using the original encoding characters.
     */
    public String toHL7String() {
-      return toHL7String(encoders);
+      if (hl7Text == null || !encoders.isSameEncoding(hl7TextEncoding)) {
+         hl7Text = toHL7String(encoders);
+         hl7TextEncoding = new HL7Encoding(encoders.toString());
+      } // if
+
+      return hl7Text;
    } // toHL7String
 
 
+   /**
+    * Creates a structural copy of the context message, which shares each of
+    * its segments with the context message, copy-on-write. A shared segment
+    * is copied, by whichever message, only when that message modifies it,
+    * so that a copy costs little more than its segment list, and modifying
+    * one message never affects the other.
+    * <p>Note that elements of a shared segment should only be modified by
+    * way of the messages, rather than directly.
+    * @return A new HL7Message with the same content as the context message.
+    */
+   public HL7Message copy() {
+      HL7Message copy = new HL7Message();
+      if (encoders != null) copy.encoders = new HL7Encoding(encoders.toString());
+
+      if (segments != null) {
+         copy.segments = new ArrayList<HL7Segment>(segments);
+         copy.segmentMap = new HL7SegmentMap();
+         for (HL7Segment seg : segments) {
+            seg.share();
+            copy.segmentMap.put(seg);
+         } // for
+      } // if
+
+      copy.hl7Text = hl7Text;
+      copy.hl7TextEncoding = hl7TextEncoding;
+      return copy;
+   } // copy
+
+
+   /**
+    * Replaces the argument segment, if it is shared with a copy of the context
+    * message, with a private copy, so that it may be modified.
+    * @param seg A segment of the context message.
+    * @return The argument segment, or its private copy.
+    */
+   private HL7Segment own(HL7Segment seg) {
+      if (!seg.isShared()) return seg;
+
+      HL7Segment copy = seg.copy(encoders);
+      copy.setParent(this);
+      segments.set(segments.indexOf(seg), copy);
+      segmentMap.replace(seg, copy);
+      return copy;
+   } // own
+
+
+   /**
+    * Discards the retained HL7 representation of the context message, upon
+    * modification of the message, or of any of its segments.
+    */
+   void invalidate() {
+      hl7Text = null;
+   } // invalidate
+
+
    @Override
    /**
     * Overrides the default toString method with to HL7String().
@@ -217,7 +396,8 @@ public class HL7Message {
       if (segIndex == HL7Designator.UNSPECIFIED) index = segs.size() - 1;
       if (index >= segs.size()) return null;
 
-      return segs.get(index);
+      // * a segment to be modified must not be shared.
+      return create ? own(segs.get(index)) : segs.get(index);
    } // pickSegment
 
 
@@ -227,7 +407,11 @@ public class HL7Message {
 
       if (sequence == HL7Designator.UNSPECIFIED) return segment;
 
-      HL7Field field = segment.pickField(sequence, create);
+      return pick(segment.pickField(sequence, create), repetition, component, subComponent, create);
+   } // pick
+
+
+   private HL7Element pick(HL7Field field, int repetition, int component, int subComponent, boolean create) {
       if (field == null) return null;
 
       if (repetition == HL7Designator.UNSPECIFIED 
@@ -280,12 +464,83 @@ public class HL7Message {
     * sub-component level.
     */
    public String get(HL7Designator designator) {
+      int sequence = designator.getSequence();
+      HL7Segment segment = pickSegment(designator.getSegID(), designator.getSegIndex(), false);
+      if (segment == null) return null;
+
+      if (sequence != HL7Designator.UNSPECIFIED && segment.isIndexed(sequence)) {
+         return segment.indexedGet(designator.path());
+      } // if
+
       HL7Element element = pick(designator);
       if (element == null) return null;
       return element.toHL7String(encoders);
    } // get
 
 
+   /**
+    * Retrieves each of the designated HL7 transaction message items of the
+    * context HL7Message object, in a single traversal. The segment and field
+    * lookups are shared between consecutive designators of the same segment
+    * and field, so designators should be ordered accordingly.
+    * @param paths The designators of the items to be retrieved, preferably
+    * compiled. Null entries are permitted.
+    * @param out The array to receive the retrieved items, in the order of the
+    * designators. An item which does not exist is set to null.
+    */
+   public void extract(HL7Designator[] paths, String[] out) {
+      if (paths.length > out.length) {
+         throw new IllegalArgumentException("Output array is too short:" + out.length);
+      } // if
+
+      HL7Designator  prior = null;
+      HL7Segment     segment = null;
+      HL7Field       field = null;
+      int            fieldSequence = HL7Designator.UNSPECIFIED;
+
+      for (int index = 0; index < paths.length; ++index) {
+         HL7Designator designator = paths[index];
+         out[index] = null;
+         if (designator == null) continue;
+
+         if (prior == null || !designator.isSameSegment(prior)) {
+            segment = segmentMap == null
+                    ? null
+                    : pickSegment(designator.getSegID(), designator.getSegIndex(), false);
+            field = null;
+            fieldSequence = HL7Designator.UNSPECIFIED;
+         } // if
+
+         prior = designator;
+         if (segment == null) continue;
+
+         int[] path = designator.path();
+         int sequence = path[0];
+         if (sequence == HL7Designator.UNSPECIFIED) {
+            out[index] = segment.toHL7String(encoders);
+            continue;
+         } // if
+
+         if (segment.isIndexed(sequence)) {
+            out[index] = segment.indexedGet(path);
+            continue;
+         } // if
+
+         if (sequence != fieldSequence) {
+            field = segment.pickField(sequence, false);
+            fieldSequence = sequence;
+         } // if
+
+         HL7Element element = pick(field,
+                                   designator.getRepetitionIndex(),
+                                   designator.getComponentIndex(),
+                                   designator.getSubComponentIndex(),
+                                   false);
+         if (element != null) out[index] = element.toHL7String(encoders);
+      } // for
+   } // extract
+
+
    /**
     * Retrieves the specified HL7 transaction message item for the context
     * HL7Message object.
@@ -297,10 +552,25 @@ public class HL7Message {
     * down to the sub-component level.
     */
    public String get(String designatorStr) {
-      return get(new HL7Designator(designatorStr));
+      return get(HL7Designator.compile(designatorStr));
    } // get
 
 
+   /**
+    * Retrieves the designated HL7 transaction message item for the context
+    * HL7Message object, as plain text. Escape sequences in the item are decoded
+    * only by this method, and only if the item contains the escape character.
+    * @param designatorStr A String object specifying the HL7 transaction
+    * message item to be retrieved.
+    * @return The retrieved item, with standard escape sequences and escaped
+    * separators replaced by the encoding characters they represent, or null if
+    * the item does not exist.
+    */
+   public String getDecoded(String designatorStr) {
+      return encoders.decode(get(designatorStr));
+   } // getDecoded
+
+
    /**
     * Sets the designated HL7 transaction message item to the argument value.
     * @param designator The designator of the item to be set, as a HL7Designator object.
@@ -308,6 +578,7 @@ public class HL7Message {
     */
    public void set(HL7Designator designator, String valueStr) {
       pick(designator, true).set(valueStr, encoders);
+      invalidate();
    } // set
 
 
@@ -317,7 +588,7 @@ public class HL7Message {
     * @param valueStr The value to which the designated item is to be set, as a String.
     */
    public void set(String designatorStr, String valueStr) {
-      set(new HL7Designator(designatorStr), valueStr);
+      set(HL7Designator.compile(designatorStr), valueStr);
    } // set
 
 
@@ -472,43 +743,32 @@ public class HL7Message {
       StringBuilder idStrBuffer = new StringBuilder();
 
       if (this.hasSegment("MSH")) {
-         idStrBuffer.append(this.get("MSH.3"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("MSH.4"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("MSH.5"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("MSH.6"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("MSH.7"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("MSH.9.1"));
-
-         String eventType = this.get("MSH.9.2");
+         String[] items = new String[MSH_ID_ITEMS.length];
+         extract(MSH_ID_ITEMS, items);
+         // MSH.3, MSH.4, MSH.5, MSH.6, MSH.7, and MSH.9.1 unconditionally.
+         for (int index = 0; index < 6; ++index) {
+            if (index > 0) idStrBuffer.append(this.encoders.getFieldSeparator());
+            idStrBuffer.append(items[index]);
+         } // for
+
+         String eventType = items[6];
          if (eventType != null && !eventType.isEmpty() ) {
             idStrBuffer.append(this.encoders.getFieldSeparator());
             idStrBuffer.append(eventType);
          } // if
 
-         String ctlID = this.get("MSH.10");
+         String ctlID = items[7];
          if (ctlID != null && !ctlID.isEmpty() ) {
             idStrBuffer.append(this.encoders.getFieldSeparator());
             idStrBuffer.append(ctlID);
          } // if
       } else if (this.hasSegment("BHS")) {
-         idStrBuffer.append(this.get("BHS.3"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("BHS.4"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("BHS.5"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("BHS.6"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("BHS.7"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("BHS.9"));
-         idStrBuffer.append(this.encoders.getFieldSeparator());
-         idStrBuffer.append(this.get("BHS.11"));
+         String[] items = new String[BHS_ID_ITEMS.length];
+         extract(BHS_ID_ITEMS, items);
+         for (int index = 0; index < items.length; ++index) {
+            if (index > 0) idStrBuffer.append(this.encoders.getFieldSeparator());
+            idStrBuffer.append(items[index]);
+         } // for
       } else if (this.hasSegment("BHS")) {
          idStrBuffer.append("BTS");
       } else {
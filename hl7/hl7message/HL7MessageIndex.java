@@ -0,0 +1,195 @@
+/*
+ *  $Id$
+ *  $HeadURL$
+ *
+ *  This code is derived from public domain sources.
+ *  Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7MessageIndex.java : A compact, offset based representation of the
+ *                         delimiters of a HL7 message.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7message;
+
+import java.io.IOException;
+
+/**
+ * Holds the original text of a HL7 message together with a single array of
+ * delimiter marks, as recorded by HL7Tokenizer. Segments refer to their range
+ * of marks for as long as they are unmodified, so that designated items may be
+ * resolved to an offset range of the original text, and only copied out on
+ * return, without building the element tree, and so that the segment may be
+ * rendered as a straight copy of its original text.
+ * @author scott
+ */
+class HL7MessageIndex {
+   private final String      text;
+   private final HL7Encoding encoders;
+   /**
+    * The delimiter marks, closed by a mark of level END at the end of the text.
+    */
+   private final int[]       marks;
+
+
+   /**
+    * Indexes the argument message text, using the argument encoding characters.
+    * @param msgText The HL7 message text to be indexed.
+    * @param encoders The HL7 encoding character set with which to scan the text.
+    */
+   HL7MessageIndex(String msgText, HL7Encoding encoders) {
+      this(msgText, encoders, new HL7Tokenizer(msgText, encoders));
+   } // HL7MessageIndex
+
+
+   /**
+    * Indexes the argument message text, using the marks already recorded by
+    * the argument tokenizer.
+    * @param msgText The HL7 message text scanned by the tokenizer.
+    * @param encoders The HL7 encoding character set with which the text was scanned.
+    * @param tokens A tokenizer of the whole of the message text.
+    */
+   HL7MessageIndex(String msgText, HL7Encoding encoders, HL7Tokenizer tokens) {
+      text = msgText == null ? "" : msgText;
+      // * a copy, so that later changes to the message encoding are detected.
+      this.encoders = new HL7Encoding(encoders.toString());
+      marks = tokens.marks();
+   } // HL7MessageIndex
+
+
+   HL7Encoding getEncoding() {
+      return encoders;
+   } // getEncoding
+
+
+   /**
+    * @return The number of delimiter marks, including the terminal mark.
+    */
+   int markCount() {
+      return marks.length;
+   } // markCount
+
+
+   private int offset(int mark) {
+      return HL7Tokenizer.offsetOf(marks[mark]);
+   } // offset
+
+
+   private int level(int mark) {
+      return HL7Tokenizer.levelOf(marks[mark]);
+   } // level
+
+
+   /**
+    * @param firstMark The index of the first mark of a segment.
+    * @return A tokenizer positioned at the start of the segment, over the
+    * recorded marks of the message text.
+    */
+   HL7Tokenizer tokens(int firstMark) {
+      return new HL7Tokenizer(text, marks, firstMark);
+   } // tokens
+
+
+   /**
+    * @param firstMark The index of the first mark following the start of an item.
+    * @return The offset of the first character of the item.
+    */
+   int start(int firstMark) {
+      return firstMark == 0 ? 0 : offset(firstMark - 1) + 1;
+   } // start
+
+
+   /**
+    * @param firstMark The index of the first mark of a segment.
+    * @return The index of the mark which terminates the segment.
+    */
+   int segmentEnd(int firstMark) {
+      int mark = firstMark;
+      while (level(mark) > HL7ElementLevel.SEGMENT) ++mark;
+      return mark;
+   } // segmentEnd
+
+
+   /**
+    * @return true if the item between the argument marks contains no text.
+    */
+   boolean isEmpty(int firstMark, int lastMark) {
+      return start(firstMark) == offset(lastMark);
+   } // isEmpty
+
+
+   /**
+    * @return The text of the segment between the argument marks.
+    */
+   String segmentText(int firstMark, int lastMark) {
+      return text.substring(start(firstMark), offset(lastMark));
+   } // segmentText
+
+
+   /**
+    * Appends the text of the segment between the argument marks to the argument
+    * Appendable, without copying it out of the message text.
+    * @throws IOException if the argument Appendable does.
+    */
+   void appendSegment(Appendable out, int firstMark, int lastMark) throws IOException {
+      out.append(text, start(firstMark), offset(lastMark));
+   } // appendSegment
+
+
+   /**
+    * Resolves the designated item of the segment between the argument marks,
+    * following the same rules as the element tree.
+    * @param firstMark The index of the first mark of the segment.
+    * @param lastMark The index of the mark which terminates the segment.
+    * @param position The field sequence, repetition, component and sub-component
+    * indices of the item, each of which may be HL7Designator.UNSPECIFIED to
+    * designate the enclosing item.
+    * @return The designated item as a String, or null if no such item exists.
+    */
+   String get(int firstMark, int lastMark, int... position) {
+      int start = start(firstMark),
+          from = firstMark,
+          to = lastMark;
+
+      for (int depth = 0; depth < position.length; ++depth) {
+         int index = position[depth];
+         if (index == HL7Designator.UNSPECIFIED) break;
+
+         int level = HL7ElementLevel.FIELD + depth;
+         // an empty component contains no sub-components.
+         if (level == HL7ElementLevel.SUBCOMPONENT && start == offset(to)) return null;
+         if (index < 0) return null;
+
+         int mark = from;
+         for (int child = 0; child < index; ++child) {
+            while (mark < to && level(mark) != level) ++mark;
+            if (mark >= to) return null;
+            start = offset(mark++) + 1;
+         } // for
+
+         int end = mark;
+         while (end < to && level(end) > level) ++end;
+         from = mark;
+         to = end;
+      } // for
+
+      return text.substring(start, offset(to));
+   } // get
+
+} // HL7MessageIndex
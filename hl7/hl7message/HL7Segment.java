@@ -28,6 +28,7 @@
 package us.conxio.hl7.hl7message;
 
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 
@@ -35,11 +36,26 @@ import java.util.ArrayList;
  * A HL7 element class for segment level items.
  * @author scott
  */
-public class HL7Segment implements HL7Element {
+public class HL7Segment implements HL7Element, HL7Appendable {
    private String                idStr;
    private HL7ElementLevel       level;
    protected ArrayList<HL7Field> fields = null;
    private boolean               touched;
+   private HL7Message            parent = null;
+   /**
+    * Set when the segment is shared by copies of a message, none of which may
+    * then modify it in place.
+    */
+   private boolean               shared = false;
+   /**
+    * The index of the message text, and the range of its delimiter marks
+    * occupied by the segment, retained for as long as the segment is unmodified,
+    * so that it may be rendered from, and its items resolved from, the
+    * original text.
+    */
+   private HL7MessageIndex       index = null;
+   private int                   firstMark,
+                                 lastMark;
 
 
    /**
@@ -63,6 +79,39 @@ public class HL7Segment implements HL7Element {
    } // HL7Segment
 
 
+   /**
+    * Creates a deferred HL7Segment object, occupying the argument range of
+    * delimiter marks of the argument message index. The segment is parsed into
+    * fields only when a field is first accessed.
+    * @param index The index of the message text containing the segment.
+    * @param firstMark The index of the first delimiter mark of the segment.
+    * @param lastMark The index of the delimiter mark which terminates the segment.
+    */
+   HL7Segment(HL7MessageIndex index, int firstMark, int lastMark) {
+      this();
+      this.index = index;
+      this.firstMark = firstMark;
+      this.lastMark = lastMark;
+      idStr = index.get(firstMark, lastMark, 0);
+   } // HL7Segment
+
+
+   /**
+    * Creates a HL7Segment object from the next segment of the argument
+    * tokenized message text, retaining the argument index of that text.
+    * @param tokens The tokenized message text, positioned at the start of the segment.
+    * @param index The index of the message text, over the same delimiter marks.
+    */
+   HL7Segment(HL7Tokenizer tokens, HL7MessageIndex index) {
+      this();
+      idStr = tokens.peek(3);
+      firstMark = tokens.markIndex();
+      _set(tokens);
+      lastMark = tokens.markIndex() - 1;
+      this.index = index;
+   } // HL7Segment
+
+
    /**
     * @return A String representation of the 3 character segment ID
     */
@@ -98,19 +147,116 @@ public class HL7Segment implements HL7Element {
 
    /**
     * Returns the state of the touched flag.
-    * @return the state of the touched flag, true or false.
+    * @return true if the segment has been modified since it was parsed,
+    * otherwise false.
     */
    public boolean wasTouched() {
       return touched;
    } // wasTouched
 
 
+   void setParent(HL7Message msg) {
+      parent = msg;
+   } // setParent
+
+
+   /**
+    * Marks the context segment as modified, discarding its original text, and
+    * invalidates the serialized form of the message containing it.
+    */
+   void touch() {
+      touched = true;
+      index = null;
+      if (parent != null) parent.invalidate();
+   } // touch
+
+
+   boolean isShared() {
+      return shared;
+   } // isShared
+
+
+   void share() {
+      shared = true;
+   } // share
+
+
+   /**
+    * Creates a private copy of the context segment, for modification. The copy
+    * of an unmodified segment refers to the same original text, and is parsed
+    * only when accessed. Any other segment is copied through its HL7 text.
+    * @param encoders The HL7 encoding character set of the message.
+    * @return A new, unshared HL7Segment with the same content.
+    */
+   HL7Segment copy(HL7Encoding encoders) {
+      if (index != null) return new HL7Segment(index, firstMark, lastMark);
+
+      HL7Segment copy = new HL7Segment();
+      copy.idStr = idStr;
+      if (hasFields()) copy._set(toHL7String(encoders), encoders);
+      return copy;
+   } // copy
+
+
+   private void add(HL7Field field) {
+      field.setParent(this);
+      fields.add(field);
+   } // add
+
+
+   /**
+    * Determines whether the argument field sequence of an unmodified segment
+    * may be resolved from the message index, without parsing the segment.
+    * @param sequence The index of the field to be resolved.
+    * @return true if the field can be resolved from the index.
+    */
+   boolean isIndexed(int sequence) {
+      // the MSH/BHS encoding characters field is only represented when parsed.
+      return index != null
+         && (sequence != 1 || !("MSH".equals(idStr) || "BHS".equals(idStr)));
+   } // isIndexed
+
+
+   /**
+    * Resolves the designated item of an unmodified segment from the message index.
+    * @param path The field sequence, repetition, component and sub-component
+    * indices of the item, as from HL7Designator.path().
+    * @return The designated item, as a String, or null if it does not exist.
+    */
+   String indexedGet(int[] path) {
+      return index.get(firstMark, lastMark, path);
+   } // indexedGet
+
+
+   /**
+    * Parses the indexed text of a deferred segment into fields, from the
+    * recorded delimiter marks.
+    */
+   private void materialize() {
+      if (fields != null || index == null) return;
+      _set(index.tokens(firstMark));
+   } // materialize
+
+
    private void _set(String msgText, HL7Encoding encoders) {
-      HL7ElementLevel nextLevel = new HL7ElementLevel(HL7ElementLevel.FIELD);
-      ArrayList<String>  elements = encoders.hl7Split(msgText, nextLevel);
+      index = null;
+      _set(new HL7Tokenizer(msgText, encoders, HL7ElementLevel.SEGMENT));
+   } // set
+
+
+   private void _set(HL7Tokenizer tokens) {
       fields = new ArrayList<HL7Field>();
-      for (String elementStr : elements) fields.add(new HL7Field(elementStr, encoders));
-      touched = true;
+      add(new HL7Field(tokens));
+      if (  tokens.lastLevel() == HL7ElementLevel.FIELD
+      &&    ("MSH".equals(idStr) || "BHS".equals(idStr))) {
+         // the encoding characters field is taken literally.
+         String encodingChars = tokens.nextThrough(HL7ElementLevel.FIELD);
+         add(new HL7Field(new HL7Tokenizer(encodingChars)));
+      } // if
+
+      while (tokens.lastLevel() == HL7ElementLevel.FIELD) {
+         add(new HL7Field(tokens));
+      } // while
    } // set
 
 
@@ -121,7 +267,10 @@ public class HL7Segment implements HL7Element {
     * @param encoders The HL7 encoding character set to be used to parse the segment text.
     * Note that this method will dispose of any prior data residing in the segment.
     */
-   public void set(String segText, HL7Encoding encoders) { _set(segText, encoders); }
+   public void set(String segText, HL7Encoding encoders) {
+      _set(segText, encoders);
+      touch();
+   } // set
 
 
    /**
@@ -131,21 +280,50 @@ public class HL7Segment implements HL7Element {
     * @return The segment text as a HL7 String.
     */
    public String toHL7String(HL7Encoding encoders) {
+      if (  index != null
+      &&    encoders != null
+      &&    encoders.isSameEncoding(index.getEncoding())) {
+         return index.segmentText(firstMark, lastMark);
+      } // if
+
       if (!hasFields()) return "";
+      return encoders.toHL7String(this);
+   } // toHL7String
 
-      ArrayList<String> fieldStrings = new ArrayList<String>();
-      for (HL7Field field : fields) fieldStrings.add(field.toHL7String(encoders));
-      
-      if (idStr.equals("MSH") || idStr.equals("BHS") ) {
-         // special handling for encoding charcters.
-         // remove 2nd field and replace with encoding characters
-         // as a field.
-         fieldStrings.remove(1);
-         fieldStrings.add(1, encoders.toString().substring(1));
+
+   /**
+    * Appends the context segment as HL7 text to the argument Appendable, using
+    * the argument HL7 encoding character set. The text of a deferred segment is
+    * copied directly from the message text, when the encoding is unchanged.
+    * @param out The Appendable to which the segment text is written.
+    * @param encoders The HL7 encoding character set to use to delimit the segment text.
+    * @throws IOException if the argument Appendable does.
+    */
+   public void appendTo(Appendable out, HL7Encoding encoders) throws IOException {
+      if (index != null && encoders.isSameEncoding(index.getEncoding())) {
+         index.appendSegment(out, firstMark, lastMark);
+         return;
       } // if
 
-      return encoders.hl7Join(fieldStrings, level.next());
-   } // toHL7String
+      if (!hasFields()) return;
+
+      char separator = encoders.getFieldSeparator().charAt(0);
+      boolean isHeader = idStr.equals("MSH") || idStr.equals("BHS");
+      int fieldIndex = 0;
+      for (HL7Field field : fields) {
+         if (fieldIndex > 0) out.append(separator);
+
+         if (isHeader && fieldIndex == 1) {
+            // special handling for encoding characters,
+            // which replace the 2nd field.
+            out.append(encoders.toString(), 1, 5);
+         } else {
+            field.appendTo(out, encoders);
+         } // if - else
+
+         ++fieldIndex;
+      } // for
+   } // appendTo
 
 
    /**
@@ -180,9 +358,13 @@ public class HL7Segment implements HL7Element {
          if (encoders != null) returnBuffer.append(encoders.toXMLString());
       } // if
 
+      materialize();
+
+      // the MSH encoding characters field is represented by the encoders.
+      int firstField = fieldOffset > 0 ? 2 : 1;
       int fieldIndex = 0;
       for (HL7Field field : fields) {
-         if (fieldIndex > 0 && field.hasContent()) {
+         if (fieldIndex >= firstField && field.hasContent()) {
             returnBuffer.append(field.toXMLString(fieldIndex + fieldOffset));
          } // if
          ++fieldIndex;
@@ -216,6 +398,7 @@ public class HL7Segment implements HL7Element {
     * Otherwise false.
     */
    public boolean hasFields() {
+      materialize();
       return fields != null && !fields.isEmpty();
    } // hasFields
 
@@ -246,7 +429,8 @@ public class HL7Segment implements HL7Element {
       field.addRepetition();
 
       if (!hasFields()) fields = new ArrayList<HL7Field>();
-      fields.add(field);
+      add(field);
+      touch();
    } // addField
 
 
@@ -276,9 +460,11 @@ public class HL7Segment implements HL7Element {
    public void addField(int index) {
       if (hasField(index)) return;
 
+      materialize();
       if (fields == null) fields = new ArrayList<HL7Field>();
       if (index >= fields.size()) {
-         while (index >= fields.size()) fields.add(new HL7Field());
+         while (index >= fields.size()) add(new HL7Field());
+         touch();
       } // if
    } // addField
 
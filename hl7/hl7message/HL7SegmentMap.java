@@ -72,6 +72,20 @@ class HL7SegmentMap {
    } // put
 
 
+   /**
+    * Replaces the argument HL7Segment object in the map with another of the same ID.
+    * @param segment The HL7Segment object to be replaced.
+    * @param replacement The HL7Segment object to replace it.
+    */
+   void replace(HL7Segment segment, HL7Segment replacement) {
+      ArrayList<HL7Segment> segments = get(segment.getID());
+      if (segments == null) return;
+
+      int index = segments.indexOf(segment);
+      if (index >= 0) segments.set(index, replacement);
+   } // replace
+
+
    /**
     * Determines whether the map contains one or more entries corresponding to
     * the argument key.
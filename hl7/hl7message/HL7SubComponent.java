@@ -27,14 +27,17 @@
 
 package us.conxio.hl7.hl7message;
 
+import java.io.IOException;
+
 /**
  * A HL7 element class for sub-component level items.
  * @author scott
  */
-public class HL7SubComponent implements HL7Element {
+public class HL7SubComponent implements HL7Element, HL7Appendable {
    private   HL7ElementLevel        level;
    protected String                 content;
    private boolean                  touched;
+   private HL7Component             parent = null;
 
 
    /**
@@ -107,10 +110,29 @@ public class HL7SubComponent implements HL7Element {
     */
    public void set(String msgText, HL7Encoding encoders) {
       content = msgText;
-      touched = true;
+      touch();
    } // set
 
 
+   void setParent(HL7Component component) {
+      parent = component;
+   } // setParent
+
+
+   /**
+    * Marks the context sub-component, and each of its ancestors, as modified.
+    */
+   void touch() {
+      touched = true;
+      if (parent != null) parent.touch();
+   } // touch
+
+
+   public boolean wasTouched() {
+      return touched;
+   } // wasTouched
+
+
    /**
     * @param encoders ignored.
     * @return The content of the context HL7SubComponent.
@@ -121,6 +143,11 @@ public class HL7SubComponent implements HL7Element {
    } // if
 
 
+   public void appendTo(Appendable out, HL7Encoding encoders) throws IOException {
+      if (content != null) encoders.appendEscaped(out, content);
+   } // appendTo
+
+
    /**
     * @param subComponentDesignator An integral sub-component designator.
     * @return A XML String representation of the content of the context HL7SubComponent.
@@ -0,0 +1,311 @@
+/*
+ *  $Id$
+ *  $HeadURL$
+ *
+ *  This code is derived from public domain sources.
+ *  Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7Tokenizer.java : A single pass, offset based delimiter scanner for HL7
+ *                      message text.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7message;
+
+/**
+ * Scans HL7 message text once, recording the offset and hierarchy level of
+ * every delimiter (segment terminator, field, repetition, component, and
+ * sub-component separators) in a single primitive array. The element classes then
+ * consume the recorded delimiters in order to build the message tree, so
+ * that only the leaf content is ever copied out of the original text.
+ * <p>
+ * Escaped content is taken as content, rather than as delimiters: a separator
+ * immediately preceded by the escape character, or an escape sequence, from
+ * the escape character to the next, such as \E\, which never spans a
+ * separator. When scanning the text of a single element, only the separators
+ * subordinate to the level of that element are recorded.
+ * <p>
+ * The delimiter list is always closed by a terminal entry at the end of the
+ * text, whose level is END. Each entry, or mark, packs the offset of the
+ * delimiter above LEVEL_BITS bits of level.
+ * @author scott
+ */
+class HL7Tokenizer {
+   /**
+    * The level of the terminal delimiter entry at the end of the text.
+    */
+   static final int  END = 0;
+
+   static final int  LEVEL_BITS = 3;
+   static final int  LEVEL_MASK = (1 << LEVEL_BITS) - 1;
+
+   private static final int INITIAL_CAPACITY = 16;
+
+   private final String text;
+   private int[]        marks;
+   private int          count;
+   /**
+    * The index of the next delimiter to be consumed.
+    */
+   private int          index = 0;
+   /**
+    * The offset of the first character of the current token.
+    */
+   private int          position = 0;
+   /**
+    * The level of the most recently consumed delimiter.
+    */
+   private int          lastLevel = END;
+
+
+   /**
+    * Scans the argument message text, using the argument encoding characters.
+    * @param msgText The HL7 message text to be scanned.
+    * @param encoders The HL7 encoding character set with which to scan the text.
+    */
+   HL7Tokenizer(String msgText, HL7Encoding encoders) {
+      this(msgText, encoders, END);
+   } // HL7Tokenizer
+
+
+   /**
+    * Scans the argument element text, using the argument encoding characters.
+    * @param elementText The HL7 element text to be scanned.
+    * @param encoders The HL7 encoding character set with which to scan the text.
+    * @param level The level of the element, as a HL7ElementLevel value.
+    * Delimiters at or above this level are taken to be content.
+    */
+   HL7Tokenizer(String elementText, HL7Encoding encoders, int level) {
+      text = elementText == null ? "" : elementText;
+      scan(encoders, level);
+   } // HL7Tokenizer
+
+
+   /**
+    * Creates a tokenizer which presents the whole of the argument text as a
+    * single token, such as the MSH encoding characters field.
+    * @param literalText The text to be taken as content.
+    */
+   HL7Tokenizer(String literalText) {
+      text = literalText == null ? "" : literalText;
+      marks = new int[1];
+      add(text.length(), END);
+   } // HL7Tokenizer
+
+
+   /**
+    * Creates a tokenizer over previously recorded delimiter marks of the
+    * argument text, positioned at the start of the item following the
+    * argument mark index, so that the item may be parsed without rescanning.
+    * @param text The text from which the marks were recorded.
+    * @param marks The recorded delimiter marks, closed by a mark of level END.
+    * @param fromMark The index of the first mark following the start of the item.
+    */
+   HL7Tokenizer(String text, int[] marks, int fromMark) {
+      this.text = text;
+      this.marks = marks;
+      count = marks.length;
+      index = fromMark;
+      position = fromMark == 0 ? 0 : offsetOf(marks[fromMark - 1]) + 1;
+   } // HL7Tokenizer
+
+
+   private void scan(HL7Encoding encoders, int floor) {
+      int   fieldSep = encoders.fieldSeparatorValue(),
+            repetitionSep = encoders.repetitionSeparatorValue(),
+            componentSep = encoders.componentSeparatorValue(),
+            subComponentSep = encoders.subComponentSeparatorValue(),
+            escape = encoders.escapeCharValue();
+      HL7EscapeCodec codec = encoders.codec();
+
+      int len = text.length();
+      int capacity = (len >> 3) + INITIAL_CAPACITY;
+      marks = new int[capacity];
+
+      for (int offset = 0; offset < len; ++offset) {
+         int ch = text.charAt(offset);
+         int level;
+
+         if (ch == HL7Message.CR) {
+            level = HL7ElementLevel.SEGMENT;
+         } else if (ch == escape) {
+            offset = codec.escapeEnd(text, offset);
+            continue;
+         } else if (ch == fieldSep) {
+            level = HL7ElementLevel.FIELD;
+         } else if (ch == componentSep) {
+            level = HL7ElementLevel.COMPONENT;
+         } else if (ch == repetitionSep) {
+            level = HL7ElementLevel.REPETITION;
+         } else if (ch == subComponentSep) {
+            level = HL7ElementLevel.SUBCOMPONENT;
+         } else {
+            continue;
+         } // if - else if - else
+
+         if (level > floor) add(offset, level);
+      } // for
+
+      add(len, END);
+   } // scan
+
+
+   private void add(int offset, int level) {
+      if (count == marks.length) {
+         int[] newMarks = new int[count << 1];
+         System.arraycopy(marks, 0, newMarks, 0, count);
+         marks = newMarks;
+      } // if
+
+      marks[count++] = (offset << LEVEL_BITS) | level;
+   } // add
+
+
+   static int offsetOf(int mark) {
+      return mark >>> LEVEL_BITS;
+   } // offsetOf
+
+
+   static int levelOf(int mark) {
+      return mark & LEVEL_MASK;
+   } // levelOf
+
+
+   /**
+    * @return true if any tokens remain to be consumed.
+    */
+   boolean hasNext() {
+      return index < count;
+   } // hasNext
+
+
+   /**
+    * Consumes the next token.
+    * @return The text between the current position and the next delimiter.
+    */
+   String next() {
+      int end = offsetOf(marks[index]);
+      String token = text.substring(position, end);
+      skip();
+      return token;
+   } // next
+
+
+   /**
+    * Consumes all tokens up to the next delimiter at or above the argument level.
+    * @param level The level of the delimiter which terminates the text.
+    * @return The text between the current position and that delimiter,
+    * including any subordinate delimiters.
+    */
+   String nextThrough(int level) {
+      while (levelOf(marks[index]) > level) ++index;
+      return next();
+   } // nextThrough
+
+
+   /**
+    * Consumes the next token without copying it.
+    */
+   void skip() {
+      lastLevel = levelOf(marks[index]);
+      position = offsetOf(marks[index]) + 1;
+      ++index;
+   } // skip
+
+
+   /**
+    * Determines whether the next token is empty, and is not followed by a
+    * delimiter of the argument level.
+    * @param level The level of delimiter which would make the token non-empty.
+    * @return true if the next token contains no text, otherwise false.
+    */
+   boolean isEmptyAt(int level) {
+      return offsetOf(marks[index]) == position && levelOf(marks[index]) != level;
+   } // isEmptyAt
+
+
+   /**
+    * Determines whether the next token is empty, and is terminated by a
+    * delimiter at or above the argument level.
+    * @param level The level of the element which would be empty.
+    * @return true if the element at the current position contains no text.
+    */
+   boolean isEndOf(int level) {
+      return offsetOf(marks[index]) == position && levelOf(marks[index]) <= level;
+   } // isEndOf
+
+
+   /**
+    * @return the level of the most recently consumed delimiter, or END if no
+    * delimiter has yet been consumed.
+    */
+   int lastLevel() {
+      return lastLevel;
+   } // lastLevel
+
+
+   /**
+    * @return The offset of the first character of the next token.
+    */
+   int position() {
+      return position;
+   } // position
+
+
+   /**
+    * Returns the argument number of characters from the current position,
+    * without consuming anything.
+    * @param length The number of characters to retrieve.
+    * @return The characters at the current position, which may be fewer than
+    * the argument length, if the text ends first.
+    */
+   String peek(int length) {
+      int end = Math.min(position + length, text.length());
+      return text.substring(position, end);
+   } // peek
+
+
+   /**
+    * @return The index of the next delimiter mark to be consumed.
+    */
+   int markIndex() {
+      return index;
+   } // markIndex
+
+
+   /**
+    * @return The number of recorded delimiters, including the terminal entry.
+    */
+   int delimiterCount() {
+      return count;
+   } // delimiterCount
+
+
+   /**
+    * @return The recorded delimiter marks, trimmed to the delimiter count.
+    */
+   int[] marks() {
+      if (marks.length == count) return marks;
+
+      int[] trimmed = new int[count];
+      System.arraycopy(marks, 0, trimmed, 0, count);
+      return trimmed;
+   } // marks
+
+} // HL7Tokenizer
@@ -94,6 +94,7 @@ class Operand {
 public class HL7MessageTransformOperation {
    private String             opName;
    private String             resultDesignator;
+   private HL7Designator      compiledDesignator = null;
    private Method             method = null;
    private Pattern            opPattern;
    private TranslationTable   xlateTable = null;
@@ -218,23 +219,27 @@ public class HL7MessageTransformOperation {
 // Operation handlers:
 
    boolean qualify(HL7Message msg) {
-      if (!hasPattern() && hasStringOperandAt(0)) opPattern = Pattern.compile(stringOperandValueAt(0));
-      return messageMatches(msg);
+      return subjectMatches(subjectOf(msg));
    } // qualify
 
 
    boolean exclude(HL7Message msg) {
-      if (!hasPattern() && hasStringOperandAt(0)) opPattern = Pattern.compile(stringOperandValueAt(0));
-      return messageMatches(msg);
+      return subjectMatches(subjectOf(msg));
    } // exclude
 
-   private boolean messageMatches(HL7Message msg) {
+
+   private String subjectOf(HL7Message msg) {
+      return hasDesignator() ? msg.get(resultDesignator) : null;
+   } // subjectOf
+
+
+   private boolean subjectMatches(String subject) {
+      if (!hasPattern() && hasStringOperandAt(0)) opPattern = Pattern.compile(stringOperandValueAt(0));
       if (!hasDesignator()) return false;
       if (opPattern == null) return false;
-      String subject = msg.get(resultDesignator);
       if (StringUtils.isEmpty(subject)) return false;
       return opPattern.matcher(subject).matches();
-   } // messageMatches
+   } // subjectMatches
 
    boolean assign(HL7Message msg) {
       if (hasDesignator() && hasStringOperandAt(0)) {
@@ -398,11 +403,32 @@ public class HL7MessageTransformOperation {
    // operation "aliases"
    
    boolean isQualified(HL7Message msg) {
-      if (opName.equalsIgnoreCase(OPERATION_NAME_QUALIFY)) return qualify(msg);
-      if (opName.equalsIgnoreCase(OPERATION_NAME_EXCLUDE)) return !exclude(msg);
+      return isQualified(subjectOf(msg));
+   } // isQualified
+
+
+   /**
+    * Qualifies the argument subject, that is the designated item, as already
+    * retrieved from the message.
+    * @param subject The content of the designated item of the message.
+    * @return true if the subject satisfies the qualification, otherwise false.
+    */
+   boolean isQualified(String subject) {
+      if (opName.equalsIgnoreCase(OPERATION_NAME_QUALIFY)) return subjectMatches(subject);
+      if (opName.equalsIgnoreCase(OPERATION_NAME_EXCLUDE)) return !subjectMatches(subject);
       return false;
    } // isQualified
 
+
+   /**
+    * @return The compiled result designator, or null if none is specified.
+    */
+   HL7Designator designator() {
+      if (!hasDesignator()) return null;
+      if (compiledDesignator == null) compiledDesignator = HL7Designator.compile(resultDesignator);
+      return compiledDesignator;
+   } // designator
+
    
    HL7Message transform(HL7Message msg) {
       if (msg == null) return null;
@@ -465,6 +491,7 @@ public class HL7MessageTransformOperation {
     */
    public void setResultDesignator(String rltDesignator) {
       resultDesignator = rltDesignator;
+      compiledDesignator = null;
    }
 
    private boolean hasOperand(int index) {
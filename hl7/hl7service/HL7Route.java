@@ -37,6 +37,7 @@ package us.conxio.hl7.hl7service;
 import java.io.InputStream;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import java.net.URI;
 
@@ -45,8 +46,11 @@ import org.apache.commons.lang.StringUtils;
 import org.w3c.dom.Node;
 
 import us.conxio.hl7.hl7message.HL7Message;
+import us.conxio.hl7.hl7stream.HL7AckFuture;
 import us.conxio.hl7.hl7stream.HL7IOException;
+import us.conxio.hl7.hl7stream.HL7PipelinedMLLPStream;
 import us.conxio.hl7.hl7stream.HL7Stream;
+import us.conxio.hl7.hl7stream.HL7StreamPool;
 import us.conxio.hl7.hl7stream.HL7StreamURI;
 
 
@@ -189,7 +193,7 @@ public class HL7Route extends HL7ServiceElement {
     * @throws HL7IOException in the event of a HL7Message handling issue.
     */
    public HL7Message render(HL7Message msg) throws HL7IOException {
-      HL7Message workMsg = new HL7Message(msg.toHL7String());
+      HL7Message workMsg = msg.copy();
 
       for (HL7Transform xForm : transforms) {
          if (xForm.isQualified(workMsg)) workMsg = xForm.render(workMsg);
@@ -213,15 +217,23 @@ public class HL7Route extends HL7ServiceElement {
 
    /**
     * Opens the specified HL7MessageStreams of the context HL7Route.
+    * Pooled delivery streams (connections=N) connect all of their connections here.
+    * Delivery streams which were previously opened are reopened, rather than replaced.
     * @throws HL7IOException
     */ 
-   public void open() throws HL7IOException {
+   public synchronized void open() throws HL7IOException {
       if (!hasDeliveryURIs()) {
          throw new HL7IOException(  "No outbound stream specified.",
                                     HL7IOException.NULL_STREAM);
       } // if
 
-      if (hl7StreamsOut == null) hl7StreamsOut = new ArrayList<HL7Stream>();
+      if (hasOutputStreams()) {
+         for (HL7Stream hl7Stream : hl7StreamsOut) if (!isOpen(hl7Stream)) hl7Stream.open();
+         if (!hasOpenInputStream() && hl7SourceURI != null) hl7StreamIn = hl7SourceURI.getHL7StreamReader();
+         return;
+      } // if
+
+      hl7StreamsOut = new ArrayList<HL7Stream>();
 
       for (HL7StreamURI uri : hl7DeliveryURIs) {
          HL7Stream hl7Stream = openDelivery(uri);
@@ -238,7 +250,7 @@ public class HL7Route extends HL7ServiceElement {
 
       if (hl7StreamsOut.isEmpty()) throw new HL7IOException(   "Cannot open any Outbound HL7Stream",
                                                                HL7IOException.NULL_STREAM);
-      if (!hasOpenInputStream()) hl7StreamIn = hl7SourceURI.getHL7StreamReader();
+      if (!hasOpenInputStream() && hl7SourceURI != null) hl7StreamIn = hl7SourceURI.getHL7StreamReader();
    } // open
    
    
@@ -280,7 +292,7 @@ public class HL7Route extends HL7ServiceElement {
 
          for (HL7Stream hl7Stream : hl7StreamsOut) {
             if (isOpen(hl7Stream)) {
-               hl7Stream.write(msgOut);
+               write(hl7Stream, msgOut);
                wrote = true;
             } // if
          } // for
@@ -290,6 +302,81 @@ public class HL7Route extends HL7ServiceElement {
    } // route
 
 
+   /**
+    * Applies the operations of the context HL7Route to the argument message,
+    * as route(), but returns without waiting for the acknowledgment of the
+    * message by any pipelined destination, so that a single sender may keep
+    * up to window() messages outstanding.
+    * @param msg The argument HL7Message object representation of a parsed HL7 transaction message.
+    * @return the pending acknowledgments of the message by the pipelined
+    * destinations, which is empty if there are none, or if the message was
+    * not written. Every other destination has been written.
+    * @throws HL7IOException if the message could not be sent.
+    */
+   public List<HL7AckFuture> send(HL7Message msg) throws HL7IOException {
+      List<HL7AckFuture> acks = new ArrayList<HL7AckFuture>();
+      if (msg == null || !isQualified(msg)) return acks;
+
+      HL7Message msgOut = render(msg);
+      if (!isOpen()) open();
+      if (!hasOutputStreams()) return acks;
+
+      for (HL7Stream hl7Stream : hl7StreamsOut) {
+         if (!isOpen(hl7Stream)) continue;
+
+         if (hl7Stream instanceof HL7PipelinedMLLPStream) {
+            acks.add(((HL7PipelinedMLLPStream)hl7Stream).send(msgOut));
+         } else {
+            write(hl7Stream, msgOut);
+         } // if - else
+      } // for
+
+      return acks;
+   } // send
+
+
+   /**
+    * @return the number of messages which send() may keep outstanding: the
+    * smallest window of the pipelined delivery streams, or 1 if there are none.
+    */
+   public int window() {
+      int window = Integer.MAX_VALUE;
+      if (hasOutputStreams()) {
+         for (HL7Stream hl7Stream : hl7StreamsOut) {
+            if (hl7Stream instanceof HL7PipelinedMLLPStream) {
+               window = Math.min(window, ((HL7PipelinedMLLPStream)hl7Stream).window());
+            } // if
+         } // for
+      } // if
+
+      return (window == Integer.MAX_VALUE) ? 1 : window;
+   } // window
+
+
+   /**
+    * Writes the argument message on the argument stream. A pooled stream is
+    * thread safe, while any other stream is written by one thread at a time.
+    * A message sent on a pipelined stream returns once it has been
+    * acknowledged, so that concurrent routes share the window, while each
+    * learns the outcome of its own message.
+    */
+   private void write(HL7Stream hl7Stream, HL7Message msg) throws HL7IOException {
+      if (hl7Stream instanceof HL7StreamPool) {
+         hl7Stream.write(msg);
+         return;
+      } // if
+
+      if (hl7Stream instanceof HL7PipelinedMLLPStream) {
+         ((HL7PipelinedMLLPStream)hl7Stream).send(msg).await();
+         return;
+      } // if
+
+      synchronized (hl7Stream) {
+         hl7Stream.write(msg);
+      } // synchronized
+   } // write
+
+
    /**
     * A generic "run" method for a thread manifestation of the context HL7Route.
     */
@@ -37,12 +37,17 @@ package us.conxio.hl7.hl7service;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.apache.commons.lang.StringUtils;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import us.conxio.XMLUtilities.AttributeMap;
 
+import us.conxio.hl7.hl7message.HL7Designator;
 import us.conxio.hl7.hl7message.HL7Message;
 
 
@@ -64,6 +69,11 @@ import us.conxio.hl7.hl7message.HL7Message;
  */
 public class HL7Transform extends HL7ServiceElement {
    private ArrayList<HL7MessageTransformOperation> operations = null;
+   /**
+    * The qualification operations, ordered by designator, and their compiled
+    * designators, for extraction in a single pass.
+    */
+   private Qualifications                          qualifications = null;
    private AttributeMap                            attributes = null;
 
    public static final String NAME_HL7TRANSFORM = "hl7transform";
@@ -194,6 +204,7 @@ public class HL7Transform extends HL7ServiceElement {
    public void addOperation(HL7MessageTransformOperation opern) {
       if (operations == null) operations = new ArrayList<HL7MessageTransformOperation>();
       operations.add(opern);
+      qualifications = null;
    } // addOperation
    
 
@@ -214,12 +225,47 @@ public class HL7Transform extends HL7ServiceElement {
    public boolean isQualified(HL7Message msg) {
       if (operations == null) return true;
 
-      for (HL7MessageTransformOperation op : operations) {
-         if (op.isQualificationOperation() && !op.isQualified(msg))  return false;
+      Qualifications quals = qualifications;
+      if (quals == null) qualifications = quals = new Qualifications(operations);
+      if (quals.ops.length == 0) return true;
+
+      String[] subjects = new String[quals.ops.length];
+      msg.extract(quals.designators, subjects);
+      for (int index = 0; index < subjects.length; ++index) {
+         if (!quals.ops[index].isQualified(subjects[index])) return false;
       } // for
 
       return true;
    } // isQualified
+
+
+   /**
+    * The qualification operations of a transform, ordered by designator, so
+    * that those of the same segment and field are adjacent.
+    */
+   private static class Qualifications {
+      final HL7MessageTransformOperation[]   ops;
+      final HL7Designator[]                  designators;
+
+      Qualifications(ArrayList<HL7MessageTransformOperation> operations) {
+         ArrayList<HL7MessageTransformOperation> quals = new ArrayList<HL7MessageTransformOperation>();
+         for (HL7MessageTransformOperation op : operations) {
+            if (op.isQualificationOperation()) quals.add(op);
+         } // for
+
+         Collections.sort(quals, new Comparator<HL7MessageTransformOperation>() {
+            public int compare(HL7MessageTransformOperation op1, HL7MessageTransformOperation op2) {
+               String des1 = StringUtils.defaultString(op1.getResultDesignator()),
+                      des2 = StringUtils.defaultString(op2.getResultDesignator());
+               return des1.compareTo(des2);
+            } // compare
+         });
+
+         ops = quals.toArray(new HL7MessageTransformOperation[quals.size()]);
+         designators = new HL7Designator[ops.length];
+         for (int index = 0; index < ops.length; ++index) designators[index] = ops[index].designator();
+      } // Qualifications
+   } // Qualifications
    
    
    /**
@@ -232,7 +278,7 @@ public class HL7Transform extends HL7ServiceElement {
    public HL7Message render(HL7Message msg) {
       if (msg == null) return null;
 
-      HL7Message opMsg = new HL7Message(msg.toHL7String());
+      HL7Message opMsg = msg.copy();
 
       for (HL7MessageTransformOperation op : operations) {
          if (op.isQualificationOperation()) continue;
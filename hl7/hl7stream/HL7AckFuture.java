@@ -0,0 +1,184 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7AckFuture.java : The pending acknowledgment of a sent HL7 message.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import us.conxio.hl7.hl7message.HL7Message;
+
+/**
+ * The pending acknowledgment of a HL7 message sent on a pipelined stream.
+ * The future completes with the acknowledgment message when the message is
+ * accepted (AA), or fails with a HL7IOException when it is rejected, or when
+ * the stream fails before the acknowledgment arrives.
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7AckFuture implements Future<HL7Message> {
+   private final HL7Message      msg;
+   /**
+    * Set for a message written without waiting for its acknowledgment, whose
+    * failure is reported by a later call on the stream, rather than to the sender.
+    */
+   private final boolean         deferred;
+   /**
+    * The System.nanoTime() at which the message was sent, from which its
+    * acknowledgment times out.
+    */
+   private final long            sentNanos = System.nanoTime();
+   private final CountDownLatch  done = new CountDownLatch(1);
+   private volatile HL7Message   ack;
+   private volatile HL7IOException failure;
+
+
+   HL7AckFuture(HL7Message msg, boolean deferred) {
+      this.msg = msg;
+      this.deferred = deferred;
+   } // HL7AckFuture
+
+
+   boolean isDeferred() {
+      return deferred;
+   } // isDeferred
+
+
+   /**
+    * @return true if the message was sent at least the argument number of
+    * nanoseconds before the argument System.nanoTime().
+    */
+   boolean sentBefore(long nanos, long now) {
+      return now - sentNanos >= nanos;
+   } // sentBefore
+
+
+   /**
+    * @return the sent message.
+    */
+   public HL7Message message() {
+      return msg;
+   } // message
+
+
+   /**
+    * @return the acknowledgment message, which may be a NAck, or null if
+    * none has yet been received.
+    */
+   public HL7Message acknowledgment() {
+      return ack;
+   } // acknowledgment
+
+
+   void complete(HL7Message ackMsg) {
+      ack = ackMsg;
+      done.countDown();
+   } // complete
+
+
+   void fail(HL7Message ackMsg, HL7IOException ex) {
+      ack = ackMsg;
+      failure = ex;
+      done.countDown();
+   } // fail
+
+
+   /**
+    * A sent message cannot be recalled.
+    * @return false, always.
+    */
+   public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+   } // cancel
+
+
+   public boolean isCancelled() {
+      return false;
+   } // isCancelled
+
+
+   public boolean isDone() {
+      return done.getCount() == 0;
+   } // isDone
+
+
+   /**
+    * @return true if the message was rejected, or its acknowledgment was lost.
+    */
+   public boolean isFailed() {
+      return isDone() && failure != null;
+   } // isFailed
+
+
+   /**
+    * Waits for the acknowledgment.
+    * @return the acknowledgment message.
+    * @throws ExecutionException wrapping a HL7IOException, if the message
+    * was rejected, or its acknowledgment was lost.
+    */
+   public HL7Message get() throws InterruptedException, ExecutionException {
+      done.await();
+      return result();
+   } // get
+
+
+   public HL7Message get(long timeout, TimeUnit unit)
+   throws InterruptedException, ExecutionException, TimeoutException {
+      if (!done.await(timeout, unit)) {
+         throw new TimeoutException("No acknowledgment for " + msg.controlID());
+      } // if
+
+      return result();
+   } // get
+
+
+   /**
+    * Waits for the acknowledgment, as get(), but throws the failure of the
+    * message itself.
+    * @return the acknowledgment message.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if the message was
+    * rejected, its acknowledgment was lost, or the wait is interrupted.
+    */
+   public HL7Message await() throws HL7IOException {
+      try {
+         done.await();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new HL7IOException("HL7AckFuture.await(" + msg.controlID() + "): interrupted.", ex);
+      } // try - catch
+
+      if (failure != null) throw failure;
+      return ack;
+   } // await
+
+
+   private HL7Message result() throws ExecutionException {
+      if (failure != null) throw new ExecutionException(failure);
+      return ack;
+   } // result
+
+} // HL7AckFuture
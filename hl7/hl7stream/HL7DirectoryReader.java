@@ -0,0 +1,688 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7DirectoryReader.java : Ingests HL7 message files dropped into a
+ *                            directory, on a pool of worker threads.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import us.conxio.hl7.hl7message.HL7Message;
+import us.conxio.hl7.hl7system.HL7Logger;
+
+/**
+ * Ingests the HL7 message files which are dropped into a directory. Each
+ * file whose name matches the pattern of the reader, and which has not been
+ * modified for the settle time, is claimed by an atomic rename into the claim
+ * directory of the reader, a subdirectory of its own in the work subdirectory,
+ * under a unique name, so that it is read exactly once, even by several readers
+ * of the same directory, and even if a file of the same name is dropped again
+ * while the first is still being read. The claimed files are read concurrently,
+ * on a pool of worker threads, each by a HL7FileReader, and their messages
+ * dispatched in file order to the message handler. A file is then moved into
+ * the done subdirectory, or, if it could not be read, or the dispatch of any of
+ * its messages failed, into the error subdirectory.
+ * <p>
+ * Like a server, a directory reader dispatches, rather than being read. It
+ * either runs, watching the directory, until it is closed, or drains the files
+ * present, as for an ad hoc transfer. A reader holds a lock on its claim
+ * directory while it is open. When a reader is started, it takes over the
+ * claim directories of interrupted readers, whose locks are no longer held,
+ * and reads their files again, while those of readers still open are left
+ * to them.
+ * <p>
+ * A directory reader URI is of the form
+ * dir-reader:///inbound?workers=8&pattern=*.hl7&done=/archive/inbound
+ * where workers is the number of worker threads, pattern the glob which file
+ * names must match, and done and error name the directories to which files
+ * are moved, which are otherwise the done and error subdirectories.
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7DirectoryReader implements Runnable, HL7Stream {
+   public static final String    WORK_DIRECTORY = ".work";
+   /**
+    * Separates the name of a claimed file from the unique suffix of its work name.
+    */
+   static final String           CLAIM_SEPARATOR = ".claim-";
+   /**
+    * The file of a claim directory which is locked by its reader.
+    */
+   static final String           LOCK_FILE = ".lock";
+   public static final String    DONE_DIRECTORY = "done";
+   public static final String    ERROR_DIRECTORY = "error";
+   public static final String    DEFAULT_PATTERN = "*";
+   public static final int       DEFAULT_WORKERS = 4;
+   /**
+    * The time for which a file must be unmodified before it is claimed, as
+    * it may otherwise still be being written.
+    */
+   public static final long      DEFAULT_SETTLE_MILLIS = 1000;
+   /**
+    * The longest wait for a watch event, as a guard against a missed event.
+    */
+   private static final long     MAX_WAIT_MILLIS = 60 * 1000;
+   private static Logger         logger = HL7Logger.getHL7Logger();
+   /**
+    * The claim directories of the readers open in this process, whose lock
+    * files may not be opened by another reader of the process, as closing any
+    * channel of a file releases every lock of the process on it, on some systems.
+    */
+   private static final Set<Path> openClaims = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+   private final Path            directory,
+                                 workDirectory,
+                                 claimDirectory,
+                                 doneDirectory,
+                                 errorDirectory;
+   private final PathMatcher     matcher;
+   private final String          pattern;
+   private final int             workerCount;
+   private long                  settleMillis = DEFAULT_SETTLE_MILLIS;
+   private HL7MessageHandler     msgHandler;
+
+   private ExecutorService       workers;
+   private WatchService          watcher;
+   private FileLock              claimLock;
+   private volatile int          status = UNINITIALIZED;
+   /**
+    * The claimed files submitted to the workers, and not yet finished.
+    */
+   private final Set<Path>       inProgress = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+   private final AtomicInteger   doneCount = new AtomicInteger(),
+                                 errorCount = new AtomicInteger();
+   private final AtomicLong      msgCount = new AtomicLong();
+
+
+   /**
+    * Creates a reader of the argument directory.
+    * @param dir The directory into which files are dropped.
+    * @param pattern The glob which the names of the files to be read must
+    * match, or null for all files.
+    * @param workerCount The number of files to be read concurrently, or 0 for DEFAULT_WORKERS.
+    * @param handler The dispatch handler for the messages read.
+    */
+   public HL7DirectoryReader(File dir, String pattern, int workerCount, HL7MessageHandler handler) {
+      this(dir, pattern, workerCount, null, null, handler);
+   } // HL7DirectoryReader
+
+
+   /**
+    * Creates a reader of the argument directory.
+    * @param dir The directory into which files are dropped.
+    * @param pattern The glob which the names of the files to be read must
+    * match, or null for all files.
+    * @param workerCount The number of files to be read concurrently, or 0 for DEFAULT_WORKERS.
+    * @param doneDir The directory to which read files are moved, or null for the done subdirectory.
+    * @param errorDir The directory to which failed files are moved, or null for the error subdirectory.
+    * @param handler The dispatch handler for the messages read.
+    */
+   public HL7DirectoryReader(File dir, String pattern, int workerCount, File doneDir, File errorDir, HL7MessageHandler handler) {
+      if (dir == null) {
+         throw new NullPointerException("HL7DirectoryReader():Directory is null.");
+      } // if
+
+      directory = dir.getAbsoluteFile().toPath();
+      workDirectory = directory.resolve(WORK_DIRECTORY);
+      claimDirectory = workDirectory.resolve(UUID.randomUUID().toString());
+      doneDirectory = doneDir != null ? doneDir.getAbsoluteFile().toPath() : directory.resolve(DONE_DIRECTORY);
+      errorDirectory = errorDir != null ? errorDir.getAbsoluteFile().toPath() : directory.resolve(ERROR_DIRECTORY);
+      this.pattern = (pattern == null || pattern.length() == 0) ? DEFAULT_PATTERN : pattern;
+      matcher = FileSystems.getDefault().getPathMatcher("glob:" + this.pattern);
+      this.workerCount = workerCount > 0 ? workerCount : DEFAULT_WORKERS;
+      msgHandler = handler;
+   } // HL7DirectoryReader
+
+
+   /**
+    * Creates a reader of the directory of the argument directory reader URI,
+    * as specified by its workers, pattern, done and error query parameters.
+    * @param streamURI The directory reader URI.
+    * @param handler The dispatch handler for the messages read.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7DirectoryReader(HL7StreamURI streamURI, HL7MessageHandler handler) throws HL7IOException {
+      this( streamURI.fileOf(),
+            streamURI.uriPattern(),
+            streamURI.uriWorkerCount(),
+            streamURI.uriDoneDirectory(),
+            streamURI.uriErrorDirectory(),
+            handler);
+   } // HL7DirectoryReader
+
+
+   public void setHandler(HL7MessageHandler handler) {
+      msgHandler = handler;
+   } // setHandler
+
+
+   /**
+    * Sets the time for which a file must be unmodified, before it is claimed.
+    * @param millis The settle time, in milliseconds.
+    */
+   public void setSettleTime(long millis) {
+      settleMillis = millis;
+   } // setSettleTime
+
+
+   /**
+    * Creates the claim, done and error directories, locks the claim directory,
+    * starts the workers, and resumes any files left by interrupted readers.
+    * @return true if the operation succeeded, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public synchronized boolean open() throws HL7IOException {
+      if (isOpen()) return true;
+
+      if (msgHandler == null) {
+         throw new HL7IOException(  "HL7DirectoryReader.open:No message handler.",
+                                    HL7IOException.INCONSISTENT_STATE);
+      } // if
+
+      try {
+         openClaims.add(claimDirectory);
+         Files.createDirectories(claimDirectory);
+         claimLock = FileChannel.open(  claimDirectory.resolve(LOCK_FILE),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE).lock();
+         Files.createDirectories(doneDirectory);
+         Files.createDirectories(errorDirectory);
+         watcher = FileSystems.getDefault().newWatchService();
+         directory.register(  watcher,
+                              StandardWatchEventKinds.ENTRY_CREATE,
+                              StandardWatchEventKinds.ENTRY_MODIFY);
+      } catch (IOException ioEx) {
+         openClaims.remove(claimDirectory);
+         throw new HL7IOException("HL7DirectoryReader.open:IOException:" + directory, ioEx);
+      } // try - catch
+
+      workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+         private final AtomicInteger threadCount = new AtomicInteger();
+
+         public Thread newThread(Runnable task) {
+            return new Thread(task, "HL7DirectoryReader-" + directory.getFileName() + "-" + threadCount.incrementAndGet());
+         } // newThread
+      });
+
+      status = OPEN;
+      resumeClaimed();
+      logger.info(description() + " opened.");
+      return true;
+   } // open
+
+
+   /**
+    * Watches the directory, and reads each file dropped into it, until the
+    * reader is closed.
+    */
+   public void run() {
+      try {
+         open();
+         while (isOpen() && !Thread.currentThread().isInterrupted()) awaitChange(claimFiles());
+      } catch (ClosedWatchServiceException cwsEx) {
+         // * closed, while waiting.
+      } catch (HL7IOException ioEx) {
+         logger.error(description() + ".run:", ioEx);
+      } finally {
+         try {
+            close();
+         } catch (HL7IOException ioEx) {
+            logger.error(description() + ".run:", ioEx);
+         } // try - catch
+      } // try - catch - finally
+   } // run
+
+
+   /**
+    * Reads the files present in the directory, and any which are dropped into
+    * it while they are being read, and then closes the reader.
+    * @return the number of files read without error.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public int drain() throws HL7IOException {
+      open();
+      try {
+         for (;;) {
+            long wait = claimFiles();
+            if (inProgress.isEmpty() && wait == MAX_WAIT_MILLIS) break;
+
+            Thread.sleep(Math.min(wait, 100));
+         } // for
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new HL7IOException("HL7DirectoryReader.drain:interrupted.", ex);
+      } finally {
+         close();
+      } // try - finally
+
+      return doneCount.get();
+   } // drain
+
+
+   /**
+    * Takes over the files claimed by prior readers, which did not finish them,
+    * from the claim directories which are not locked by an open reader, and
+    * from the work directory itself, as claimed by earlier versions.
+    */
+   private void resumeClaimed() throws HL7IOException {
+      try {
+         DirectoryStream<Path> entries = Files.newDirectoryStream(workDirectory);
+         try {
+            for (Path entry : entries) {
+               if (Files.isDirectory(entry)) {
+                  if (!openClaims.contains(entry)) adopt(entry);
+               } else {
+                  resume(entry);
+               } // if - else
+            } // for
+         } finally {
+            entries.close();
+         } // try - finally
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7DirectoryReader:IOException listing " + workDirectory, ioEx);
+      } // try - catch
+   } // resumeClaimed
+
+
+   /**
+    * Takes over the files of the argument claim directory, and removes it,
+    * unless its reader is still open, in another process.
+    */
+   private void adopt(Path claims) throws IOException {
+      FileChannel channel;
+      try {
+         channel = FileChannel.open(claims.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      } catch (NoSuchFileException nsfEx) {
+         // * removed by its reader, or taken over by another.
+         return;
+      } // try - catch
+
+      try {
+         if (channel.tryLock() == null) return;
+
+         DirectoryStream<Path> claimed = Files.newDirectoryStream(claims);
+         try {
+            for (Path file : claimed) {
+               if (!file.getFileName().toString().equals(LOCK_FILE)) resume(file);
+            } // for
+         } finally {
+            claimed.close();
+         } // try - finally
+
+         removeClaimDirectory(claims);
+      } catch (NoSuchFileException nsfEx) {
+         // * taken over by another reader.
+      } catch (OverlappingFileLockException oflEx) {
+         // * taken over by another reader of this process.
+      } finally {
+         channel.close();
+      } // try - finally
+   } // adopt
+
+
+   /**
+    * Moves the argument file, left by a prior reader, into the claim
+    * directory, and submits it to the workers.
+    */
+   private void resume(Path file) throws IOException {
+      Path claimed = claimDirectory.resolve(file.getFileName());
+      try {
+         Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+      } catch (NoSuchFileException nsfEx) {
+         // * taken over by another reader.
+         return;
+      } // try - catch
+
+      logger.info(description() + ": resuming " + file.getFileName());
+      submit(originalName(claimed), claimed);
+   } // resume
+
+
+   /**
+    * Removes the lock file, and then the argument claim directory, unless it
+    * still holds a claimed file.
+    */
+   private void removeClaimDirectory(Path claims) {
+      try {
+         DirectoryStream<Path> claimed = Files.newDirectoryStream(claims);
+         try {
+            for (Path file : claimed) {
+               if (!file.getFileName().toString().equals(LOCK_FILE)) return;
+            } // for
+         } finally {
+            claimed.close();
+         } // try - finally
+
+         Files.deleteIfExists(claims.resolve(LOCK_FILE));
+         Files.deleteIfExists(claims);
+      } catch (IOException ioEx) {
+         logger.warn(description() + ": cannot remove " + claims + ":" + ioEx.getMessage());
+      } // try - catch
+   } // removeClaimDirectory
+
+
+   /**
+    * Claims each settled file of the directory which matches the pattern.
+    * @return the time in milliseconds until the next unsettled file settles,
+    * or MAX_WAIT_MILLIS.
+    */
+   private long claimFiles() throws HL7IOException {
+      long wait = MAX_WAIT_MILLIS;
+      try {
+         DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+         try {
+            for (Path file : files) {
+               if (!isOpen()) break;
+
+               Path name = file.getFileName();
+               if (!matcher.matches(name) || !Files.isRegularFile(file)) continue;
+
+               long age = System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis();
+               if (age < settleMillis) {
+                  wait = Math.min(wait, settleMillis - age);
+                  continue;
+               } // if
+
+               claim(file);
+            } // for
+         } finally {
+            files.close();
+         } // try - finally
+      } catch (NoSuchFileException nsfEx) {
+         // * claimed by another reader, while being examined.
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7DirectoryReader:IOException listing " + directory, ioEx);
+      } // try - catch
+
+      return wait;
+   } // claimFiles
+
+
+   /**
+    * Claims the argument file, by moving it into the claim directory, and
+    * submits it to the workers. The work name is unique, as a rename replaces
+    * any file of the same name, such as one of the same name still in progress.
+    */
+   private void claim(Path file) throws IOException {
+      String name = file.getFileName().toString();
+      Path claimed = claimDirectory.resolve(name + CLAIM_SEPARATOR + UUID.randomUUID());
+      try {
+         Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+      } catch (NoSuchFileException nsfEx) {
+         // * claimed by another reader.
+         return;
+      } // try - catch
+
+      submit(name, claimed);
+   } // claim
+
+
+   /**
+    * @return the name of the argument claimed file, as it was dropped.
+    */
+   private static String originalName(Path claimed) {
+      String workName = claimed.getFileName().toString();
+      int separator = workName.lastIndexOf(CLAIM_SEPARATOR);
+      return (separator > 0) ? workName.substring(0, separator) : workName;
+   } // originalName
+
+
+   private void submit(final String name, final Path claimed) {
+      if (!inProgress.add(claimed)) return;
+
+      workers.execute(new Runnable() {
+         public void run() {
+            try {
+               ingest(name, claimed);
+            } finally {
+               inProgress.remove(claimed);
+            } // try - finally
+         } // run
+      });
+   } // submit
+
+
+   /**
+    * Reads the argument claimed file, dispatching each of its messages, and
+    * then moves it to the done, or to the error directory.
+    */
+   private void ingest(String name, Path claimed) {
+      HL7FileReader reader = null;
+      int count = 0;
+      Throwable failure = null;
+      try {
+         reader = new HL7FileReader(claimed.toFile());
+         HL7Message msg;
+         while ( (msg = reader.read()) != null) {
+            msgHandler.dispatch(msg);
+            ++count;
+         } // while
+      } catch (HL7IOException ioEx) {
+         failure = ioEx;
+      } catch (RuntimeException rEx) {
+         failure = rEx;
+      } finally {
+         try {
+            if (reader != null) reader.close();
+         } catch (HL7IOException ioEx) {
+            logger.warn(description() + ": closing " + name, ioEx);
+         } // try - catch
+      } // try - catch - finally
+
+      msgCount.addAndGet(count);
+      if (failure != null) {
+         logger.error(  description() + ": " + name + " failed after "
+                     +  count + " message(s), moved to " + errorDirectory, failure);
+         errorCount.incrementAndGet();
+         move(claimed, name, errorDirectory);
+      } else {
+         if (logger.isDebugEnabled()) logger.debug(description() + ": " + name + ", " + count + " message(s).");
+         doneCount.incrementAndGet();
+         move(claimed, name, doneDirectory);
+      } // if - else
+   } // ingest
+
+
+   /**
+    * Moves the argument file into the argument directory, by the argument
+    * name, with a time stamp suffix, if the directory already holds a file of
+    * the same name.
+    */
+   private void move(Path file, String name, Path toDirectory) {
+      Path target = toDirectory.resolve(name);
+      try {
+         if (Files.exists(target)) {
+            target = toDirectory.resolve(name + "." + System.currentTimeMillis());
+         } // if
+
+         Files.move(file, target);
+      } catch (IOException ioEx) {
+         logger.error(description() + ": cannot move " + file + " to " + toDirectory, ioEx);
+      } // try - catch
+   } // move
+
+
+   /**
+    * Waits for the directory to change, for at most the argument time.
+    */
+   private void awaitChange(long millis) {
+      WatchKey key;
+      try {
+         key = watcher.poll(millis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return;
+      } // try - catch
+
+      if (key == null) return;
+
+      // * any event in the directory is cause to list it.
+      key.pollEvents();
+      key.reset();
+   } // awaitChange
+
+
+   /**
+    * Stops claiming files, and waits for the workers to finish the files they
+    * have claimed.
+    * @return true if the operation succeeded, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public synchronized boolean close() throws HL7IOException {
+      if (!isOpen()) return true;
+
+      status = CLOSED;
+      try {
+         watcher.close();
+      } catch (IOException ioEx) {
+         logger.warn(description() + ".close:", ioEx);
+      } // try - catch
+
+      workers.shutdown();
+      try {
+         workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } // try - catch
+
+      // * the claim directory is left, with any unfinished files, for the next reader.
+      removeClaimDirectory(claimDirectory);
+      try {
+         claimLock.channel().close();
+      } catch (IOException ioEx) {
+         logger.warn(description() + ".close:", ioEx);
+      } // try - catch
+
+      openClaims.remove(claimDirectory);
+      logger.info(description() + " closed.");
+      return true;
+   } // close
+
+
+   /**
+    * Disallowed operation; the messages of a directory reader are dispatched.
+    * @return Always throws a Inappropriate operation HL7IOException.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7Message read() throws HL7IOException {
+      throw new HL7IOException( "HL7DirectoryReader.read:Inappropriate operation.",
+                                 HL7IOException.INAPPROPRIATE_OPERATION);
+   } // read
+
+
+   /**
+    * Disallowed operation.
+    * @return Always throws a Inappropriate operation HL7IOException.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public boolean write(HL7Message msg) throws HL7IOException {
+      throw new HL7IOException( "HL7DirectoryReader.write:Inappropriate operation.",
+                                 HL7IOException.INAPPROPRIATE_OPERATION);
+   } // write
+
+
+   public int status() {
+      return status;
+   } // status
+
+
+   public boolean isClosed() {
+      return status == CLOSED;
+   } // isClosed
+
+
+   public boolean isOpen() {
+      return status == OPEN;
+   } // isOpen
+
+
+   public boolean isServer() {
+      return false;
+   } // isServer
+
+
+   public HL7MessageHandler dispatchHandler() {
+      return msgHandler;
+   } // dispatchHandler
+
+
+   /**
+    * @return the number of files read without error.
+    */
+   public int doneCount() {
+      return doneCount.get();
+   } // doneCount
+
+
+   /**
+    * @return the number of files moved to the error directory.
+    */
+   public int errorCount() {
+      return errorCount.get();
+   } // errorCount
+
+
+   /**
+    * @return the number of messages dispatched.
+    */
+   public long messageCount() {
+      return msgCount.get();
+   } // messageCount
+
+
+   public String description() {
+      return "HL7DirectoryReader(" + directory + ", " + pattern + ", workers:" + workerCount + ")";
+   } // description
+
+} // HL7DirectoryReader
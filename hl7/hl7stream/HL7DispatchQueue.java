@@ -0,0 +1,430 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7DispatchQueue.java : A bounded hand-off between the connection readers
+ *                          of a HL7Server, and its message dispatch threads.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import us.conxio.hl7.hl7message.HL7Message;
+import us.conxio.hl7.hl7system.HL7Logger;
+
+
+/**
+ * A bounded hand-off queue between the threads which read the connections of
+ * a HL7Server, and a separate pool of dispatch threads, so that a slow handler,
+ * such as a route with a slow destination, no longer stalls the reading of
+ * inbound sockets.
+ * <p>
+ * Each connection has its own lane, of at most capacity messages, which are
+ * dispatched in the order received. When a lane is full, its reader waits,
+ * and stops reading the socket, which applies TCP backpressure to the sender.
+ * Messages are acknowledged by the reader in ACK_IMMEDIATE mode, and otherwise
+ * by the dispatch threads, once dispatched, as by HL7ServiceWorker.
+ * <p>
+ * Selected by the queue=N query parameter of a server URI, as in
+ * mllp-server://localhost:2575?pool=8&queue=64
+ * The queue counts its traffic, for monitoring, through the accessors below,
+ * and description().
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7DispatchQueue {
+   private static Logger            logger = HL7Logger.getHL7Logger();
+
+   private final int                capacity;
+   private final HL7MessageHandler  msgHandler;
+   private final String             ackMode;
+   private final int                ackBatchSize;
+   private final ExecutorService    dispatchPool;
+
+   private final AtomicInteger      depth = new AtomicInteger(),
+                                    peakDepth = new AtomicInteger();
+   private final AtomicLong         enqueued = new AtomicLong(),
+                                    dispatched = new AtomicLong(),
+                                    failed = new AtomicLong(),
+                                    discarded = new AtomicLong(),
+                                    stalls = new AtomicLong(),
+                                    stalledMillis = new AtomicLong();
+
+
+   /**
+    * Creates a dispatch queue, with its own pool of dispatch threads.
+    * @param capacity The largest number of queued messages per connection.
+    * @param threads The number of dispatch threads.
+    * @param handler The dispatch handler for the received messages.
+    * @param ackMode The acknowledgment mode, as a HL7Server ACK_ value.
+    * @param ackBatchSize The largest number of acknowledgments to defer in ACK_BATCH mode.
+    * @param name The name of the dispatch threads.
+    */
+   public HL7DispatchQueue(   int capacity,
+                              int threads,
+                              HL7MessageHandler handler,
+                              String ackMode,
+                              int ackBatchSize,
+                              final String name) {
+      this.capacity = Math.max(capacity, 1);
+      msgHandler = handler;
+      this.ackMode = (ackMode == null) ? HL7Server.ACK_IMMEDIATE : ackMode;
+      this.ackBatchSize = (ackBatchSize < 1) ? HL7Server.DEFAULT_ACK_BATCH_SIZE : ackBatchSize;
+      dispatchPool = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+         private final AtomicInteger count = new AtomicInteger();
+
+         public Thread newThread(Runnable task) {
+            return new Thread(task, name + "-dispatch-" + count.incrementAndGet());
+         } // newThread
+      });
+   } // HL7DispatchQueue
+
+
+   /**
+    * Creates the lane of a newly accepted connection.
+    * @param stream The inbound stream of the connection, on which the
+    * dispatched messages are acknowledged.
+    */
+   Lane newLane(HL7MLLPStream stream) {
+      return new Lane(this, stream);
+   } // newLane
+
+
+   /**
+    * @return true if messages are acknowledged by the connection reader, on receipt.
+    */
+   boolean isAckOnReceipt() {
+      return HL7Server.ACK_IMMEDIATE.equals(ackMode);
+   } // isAckOnReceipt
+
+
+   int dispatchBatchSize() {
+      return HL7Server.ACK_BATCH.equals(ackMode) ? ackBatchSize : 1;
+   } // dispatchBatchSize
+
+
+   /**
+    * @return false if the argument lane could not be scheduled, as once the
+    * queue has been shut down.
+    */
+   boolean schedule(Lane lane) {
+      try {
+         dispatchPool.execute(lane);
+         return true;
+      } catch (RejectedExecutionException reEx) {
+         logger.error(description() + ": shut down, message(s) not dispatched.");
+         return false;
+      } // try - catch
+   } // schedule
+
+
+   /**
+    * Dispatches the argument message, reporting rather than throwing any failure.
+    * @return null if the message was dispatched, otherwise the reason it was not.
+    */
+   String dispatch(HL7Message msg) {
+      try {
+         if (msgHandler != null) msgHandler.dispatch(msg);
+         dispatched.incrementAndGet();
+         return null;
+      } catch (Exception ex) {
+         failed.incrementAndGet();
+         logger.error("dispatch(" + msg.idString() + "): Exception: ", ex);
+         return ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+      } // try - catch
+   } // dispatch
+
+
+   /**
+    * Acknowledges the argument dispatched messages, according to the
+    * acknowledgment mode, synchronizing a HL7DurableMessageHandler first in
+    * ACK_BATCH mode.
+    */
+   void acknowledge(HL7MLLPStream stream, ArrayList<HL7Message> msgs, ArrayList<String> errors)
+   throws HL7IOException {
+      if (isAckOnReceipt() || msgs.isEmpty()) return;
+
+      if (HL7Server.ACK_BATCH.equals(ackMode) && msgHandler instanceof HL7DurableMessageHandler) {
+         try {
+            ((HL7DurableMessageHandler)msgHandler).sync();
+         } catch (HL7IOException ioEx) {
+            logger.error("sync(): HL7IOException: ", ioEx);
+            for (int index = 0; index < errors.size(); ++index) {
+               if (errors.get(index) == null) errors.set(index, "Not stored:" + ioEx.getMessage());
+            } // for
+         } // try - catch
+      } // if
+
+      stream.acknowledgeAll(msgs, errors);
+   } // acknowledge
+
+
+   void enqueued() {
+      enqueued.incrementAndGet();
+      int current = depth.incrementAndGet();
+      int peak = peakDepth.get();
+      while (current > peak && !peakDepth.compareAndSet(peak, current)) peak = peakDepth.get();
+   } // enqueued
+
+
+   void dequeued(int count) {
+      depth.addAndGet(-count);
+   } // dequeued
+
+
+   void stalled(long millis) {
+      stalls.incrementAndGet();
+      stalledMillis.addAndGet(millis);
+   } // stalled
+
+
+   void discarded(int count) {
+      depth.addAndGet(-count);
+      discarded.addAndGet(count);
+   } // discarded
+
+
+   /**
+    * Stops the dispatch threads, once the messages already queued have been dispatched.
+    */
+   public void shutdown() {
+      dispatchPool.shutdown();
+      logger.info(description() + " shut down.");
+   } // shutdown
+
+
+   /**
+    * @return the largest number of queued messages per connection.
+    */
+   public int capacity() {
+      return capacity;
+   } // capacity
+
+
+   /**
+    * @return the number of messages currently waiting for dispatch, over all connections.
+    */
+   public int depth() {
+      return depth.get();
+   } // depth
+
+
+   /**
+    * @return the largest number of messages queued at any one time, over all connections.
+    */
+   public int peakDepth() {
+      return peakDepth.get();
+   } // peakDepth
+
+
+   /**
+    * @return the number of messages queued since the queue was created.
+    */
+   public long enqueuedCount() {
+      return enqueued.get();
+   } // enqueuedCount
+
+
+   /**
+    * @return the number of messages successfully dispatched.
+    */
+   public long dispatchedCount() {
+      return dispatched.get();
+   } // dispatchedCount
+
+
+   /**
+    * @return the number of messages which failed to dispatch.
+    */
+   public long failedCount() {
+      return failed.get();
+   } // failedCount
+
+
+   /**
+    * @return the number of queued messages discarded, as when their connection failed.
+    */
+   public long discardedCount() {
+      return discarded.get();
+   } // discardedCount
+
+
+   /**
+    * @return the number of times a connection reader waited for a full lane.
+    */
+   public long stallCount() {
+      return stalls.get();
+   } // stallCount
+
+
+   /**
+    * @return the total time, in milliseconds, for which connection readers
+    * waited for full lanes.
+    */
+   public long stalledMillis() {
+      return stalledMillis.get();
+   } // stalledMillis
+
+
+   public String description() {
+      return new StringBuilder("HL7DispatchQueue(capacity:").append(capacity)
+                        .append(", depth:").append(depth())
+                        .append(", peak:").append(peakDepth())
+                        .append(", enqueued:").append(enqueuedCount())
+                        .append(", dispatched:").append(dispatchedCount())
+                        .append(", failed:").append(failedCount())
+                        .append(", discarded:").append(discardedCount())
+                        .append(", stalls:").append(stallCount())
+                        .append("/").append(stalledMillis()).append("ms)")
+                        .toString();
+   } // description
+
+
+   /**
+    * The queue of received messages of a single connection, which are dispatched,
+    * in order, by the threads of the owning HL7DispatchQueue.
+    * At most one dispatch task of a lane is scheduled at any time, and each task
+    * dispatches a single message, or a single batch in ACK_BATCH mode, before
+    * rescheduling itself, so that a busy connection does not hold up others.
+    */
+   static class Lane implements Runnable {
+      private final HL7DispatchQueue      queue;
+      private final HL7MLLPStream         stream;
+      private final ArrayDeque<HL7Message> pending = new ArrayDeque<HL7Message>();
+      /**
+       * Set while a dispatch task of the lane is scheduled or running.
+       */
+      private boolean                     scheduled = false;
+      private HL7IOException              failure;
+
+
+      Lane(HL7DispatchQueue queue, HL7MLLPStream stream) {
+         this.queue = queue;
+         this.stream = stream;
+      } // Lane
+
+
+      /**
+       * Queues the argument message for dispatch, waiting while the lane is full,
+       * so that the connection is no longer read, and the sender is held back
+       * by TCP flow control.
+       * @param msg the received message.
+       * @throws us.conxio.HL7.HL7Stream.HL7IOException if the lane has failed,
+       * or the wait is interrupted.
+       */
+      void put(HL7Message msg) throws HL7IOException {
+         boolean schedule;
+         synchronized (this) {
+            if (pending.size() >= queue.capacity()) {
+               long stalledAt = System.currentTimeMillis();
+               try {
+                  while (failure == null && pending.size() >= queue.capacity()) wait();
+               } catch (InterruptedException ex) {
+                  Thread.currentThread().interrupt();
+                  throw new HL7IOException("HL7DispatchQueue.Lane.put(): interrupted.", ex);
+               } // try - catch
+
+               queue.stalled(System.currentTimeMillis() - stalledAt);
+            } // if
+
+            if (failure != null) throw failure;
+
+            pending.add(msg);
+            queue.enqueued();
+            schedule = !scheduled;
+            scheduled = true;
+         } // synchronized
+
+         if (schedule) schedule();
+      } // put
+
+
+      /**
+       * Waits until every queued message has been dispatched, as when the
+       * connection has ended.
+       */
+      synchronized void awaitDrained() throws InterruptedException {
+         while (scheduled) wait();
+      } // awaitDrained
+
+
+      /**
+       * Dispatches the next message, or batch of messages, and acknowledges
+       * them, unless they were acknowledged on receipt.
+       */
+      public void run() {
+         ArrayList<HL7Message> msgs = new ArrayList<HL7Message>();
+         synchronized (this) {
+            int count = Math.min(pending.size(), queue.dispatchBatchSize());
+            for (int index = 0; index < count; ++index) msgs.add(pending.poll());
+            queue.dequeued(count);
+            notifyAll();
+         } // synchronized
+
+         ArrayList<String> errors = new ArrayList<String>(msgs.size());
+         for (HL7Message msg : msgs) errors.add(queue.dispatch(msg));
+
+         try {
+            queue.acknowledge(stream, msgs, errors);
+         } catch (HL7IOException ioEx) {
+            logger.error("HL7DispatchQueue.Lane: acknowledgment failed, discarding the queued messages: ", ioEx);
+            synchronized (this) {
+               failure = ioEx;
+               queue.discarded(pending.size());
+               pending.clear();
+            } // synchronized
+         } // try - catch
+
+         boolean reschedule;
+         synchronized (this) {
+            reschedule = !pending.isEmpty();
+            scheduled = reschedule;
+            if (!reschedule) notifyAll();
+         } // synchronized
+
+         if (reschedule) schedule();
+      } // run
+
+
+      private void schedule() {
+         if (queue.schedule(this)) return;
+
+         synchronized (this) {
+            failure = new HL7IOException("HL7DispatchQueue.Lane: dispatch stopped.", HL7IOException.STREAM_CLOSED);
+            queue.discarded(pending.size());
+            pending.clear();
+            scheduled = false;
+            notifyAll();
+         } // synchronized
+      } // schedule
+
+   } // Lane
+
+} // HL7DispatchQueue
@@ -0,0 +1,44 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7DurableMessageHandler.java : An HL7 message dispatcher interface, for
+ *                                  handlers which store messages durably.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+/**
+ * A interface for HL7Message dispatch handlers which store the dispatched
+ * messages, such that they are only durable once sync() returns. A server in
+ * the batch acknowledgment mode dispatches several messages, calls sync()
+ * once, and then acknowledges them all.
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public interface HL7DurableMessageHandler extends HL7MessageHandler {
+   /**
+    * Makes every message previously dispatched by the calling thread durable.
+    * Implementations may combine concurrent calls into a single commit.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if the messages could not
+    * be made durable.
+    */
+   public void sync() throws HL7IOException;
+} // HL7DurableMessageHandler
@@ -89,7 +89,7 @@ public class HL7FileReader extends HL7StreamBase implements HL7Stream {
                                           + "):Not a file reader URI.");
       } // if
 
-      initialize(new File(streamURI.fileURIOf()) );
+      initialize(streamURI.fileOf());
    } // HL7FileReader
 
 
@@ -167,7 +167,7 @@ public class HL7FileReader extends HL7StreamBase implements HL7Stream {
          return null;
       } // if
 
-      return new HL7Message(msgStr);
+      return new HL7Message(msgStr, true);
    } // read
 
    private String _readMsg() throws HL7IOException {
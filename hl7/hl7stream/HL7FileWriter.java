@@ -34,17 +34,76 @@ package us.conxio.hl7.hl7stream;
 import java.io.*;
 import java.net.URI;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
 import us.conxio.hl7.hl7message.HL7Message;
 
 
 /**
  * Writes HL7Message objects to a file.
+ * <p>
+ * Messages are encoded, in the platform default character set, into a direct
+ * buffer, which is written to the file according to the flush policy of the
+ * writer: after every N messages, at least every T milliseconds, or both,
+ * and optionally forced to the storage device (fsync) once per flush, so
+ * that a batch of messages costs a single write and a single force. By
+ * default, every message is flushed as it is written, without a force. A
+ * policy may be set by the flush, interval and fsync query parameters of a
+ * file writer or appender URI, as in
+ * file-appender:///archive/adt.hl7?flush=500&interval=1000&fsync=true
+ * <p>
+ * With the framing=mllp query parameter, each message is written in its MLLP
+ * frame, rather than followed by a newline, so that the file may later be
+ * replayed to a socket as it is, by HL7MLLPReplay.
  * @author scott herman <scott.herman@unconxio.us>
  */
 public class HL7FileWriter extends HL7StreamBase implements HL7Stream {
+   static final int           BUFFER_SIZE = 64 * 1024;
+   private static final byte  NEWLINE = 0x0a;
+   private static final byte  STX = HL7MLLPCodec.STX,
+                              FS  = HL7MLLPCodec.FS,
+                              EOB = HL7MLLPCodec.EOB;
+   private static Logger      logger = Logger.getLogger(HL7FileWriter.class);
+
    private boolean   isAppender = false;
    File              file;
-   BufferedWriter    writer;
+   FileChannel       channel;
+   private final Charset charset = Charset.defaultCharset();
+   private ByteBuffer         buffer;
+   private CharsetEncoder     encoder;
+   /**
+    * The number of messages after which the buffer is flushed, or 0 for no limit.
+    */
+   private int                flushCount = 1;
+   /**
+    * The longest time in milliseconds for which a message remains buffered, or 0 for no limit.
+    */
+   private long               flushInterval = 0;
+   /**
+    * Whether each flush forces the written messages to the storage device.
+    */
+   private boolean            fsync = false;
+   /**
+    * Whether each message is written in its MLLP frame.
+    */
+   private boolean            mllpFramed = false;
+   private int                pendingCount = 0;
+   private long               pendingSince = 0;
+   private ScheduledExecutorService flusher;
 
    /**
     * Creates a new file writer object using the argument File object.
@@ -88,7 +147,9 @@ public class HL7FileWriter extends HL7StreamBase implements HL7Stream {
          isAppender = true;
       } // if
 
-      initialize(new File(streamURI.fileURIOf()) );
+      initialize(streamURI.fileOf());
+      setFlushPolicy(streamURI.uriFlushCount(), streamURI.uriFlushInterval(), streamURI.uriFsync());
+      setMLLPFramed(streamURI.isMLLPFramed());
    } // HL7FileWriter
 
 
@@ -108,6 +169,32 @@ public class HL7FileWriter extends HL7StreamBase implements HL7Stream {
    } // initialize
 
 
+   /**
+    * Sets the flush policy of the writer. Without either a count or an
+    * interval, every message is flushed.
+    * @param count The number of messages after which the buffered messages
+    * are written to the file, or 0 for no limit.
+    * @param intervalMillis The longest time in milliseconds for which a
+    * message remains buffered, or 0 for no limit.
+    * @param fsync true if each flush is to force the messages to the storage device.
+    */
+   public synchronized void setFlushPolicy(int count, long intervalMillis, boolean fsync) {
+      flushCount = (count < 1 && intervalMillis < 1) ? 1 : Math.max(count, 0);
+      flushInterval = Math.max(intervalMillis, 0);
+      this.fsync = fsync;
+   } // setFlushPolicy
+
+
+   /**
+    * Sets whether each message is written in its MLLP frame, rather than
+    * followed by a newline.
+    * @param framed true to write MLLP frames.
+    */
+   public synchronized void setMLLPFramed(boolean framed) {
+      mllpFramed = framed;
+   } // setMLLPFramed
+
+
    /**
     * Opens the context file writer, as a writer.
     * @return a boolean success indicator. true if the operation is successful,
@@ -127,43 +214,68 @@ public class HL7FileWriter extends HL7StreamBase implements HL7Stream {
     * otherwise false.
     * @throws us.conxio.HL7.HL7Stream.HL7IOException
     */
-   public boolean open(boolean append) throws HL7IOException {
+   public synchronized boolean open(boolean append) throws HL7IOException {
       if (file == null) {
          throw new HL7IOException( "HL7FileWriter.open: file name not specified." );
       } // if
 
       try {
          if (!file.exists()) createFile(file);
-         writer = new BufferedWriter(new FileWriter(file, append) );
+         channel = new FileOutputStream(file, append).getChannel();
       } catch (IOException ioEx) {
          throw new HL7IOException(  "HL7FileWriter.open:IOException:"
                                  +  ioEx.getMessage(), ioEx);
       } // try - catch
 
+      if (buffer == null) buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      buffer.clear();
+      encoder = charset.newEncoder()
+                       .onMalformedInput(CodingErrorAction.REPLACE)
+                       .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      pendingCount = 0;
       statusValue = HL7Stream.OPEN;
+      if (flushInterval > 0 && flusher == null) startFlusher();
       return true;
    } // openWriter
 
 
+   /**
+    * Flushes the buffered messages of an idle writer, at the flush interval.
+    */
+   private void startFlusher() {
+      flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "HL7FileWriter(" + file + ")");
+            thread.setDaemon(true);
+            return thread;
+         } // newThread
+      });
+
+      flusher.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               flushIfDue();
+            } catch (HL7IOException ioEx) {
+               logger.error("HL7FileWriter(" + file + "): interval flush failed.", ioEx);
+            } // try - catch
+         } // run
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+   } // startFlusher
+
+
    /**
     * Writes the argument HL7 message string to the context stream.
     * @param hl7Msg
     * @throws us.conxio.HL7.HL7Stream.HL7IOException
     */
-   public void writeMsg(String hl7Msg) throws HL7IOException {
-      if (this.writer == null || !this.isOpen()) {
-         this.open();
-      } // if
-      
-      if (this.writer == null) {
-         throw new HL7IOException(  "HL7FileWriter.writeMsg: Null writer.",
-                                    HL7IOException.INCONSISTENT_STATE);
-      } // if
+   public synchronized void writeMsg(String hl7Msg) throws HL7IOException {
+      this.checkWriter("writeMsg");
 
       try {
-         // FileWriter always assumes default encoding is OK!
-         this.writer.write( hl7Msg + "\n" );
-         this.writer.flush();
+         if (mllpFramed) put(STX);
+         encode(hl7Msg);
+         endMessage();
+         written();
       } catch (IOException ioEx) {
          throw new HL7IOException(  "HL7FileWriter.writeMsg: IOException", ioEx);
 
@@ -171,6 +283,105 @@ public class HL7FileWriter extends HL7StreamBase implements HL7Stream {
    } // writeMsg
 
 
+   /**
+    * Writes any buffered messages to the file, and, if the flush policy so
+    * specifies, forces them to the storage device.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public synchronized void flush() throws HL7IOException {
+      if (channel == null || !isOpen()) return;
+
+      try {
+         drain();
+         if (fsync && pendingCount > 0) channel.force(false);
+      } catch (IOException ioEx) {
+         throw new HL7IOException(  "HL7FileWriter.flush: IOException", ioEx);
+      } // try - catch
+
+      pendingCount = 0;
+   } // flush
+
+
+   private synchronized void flushIfDue() throws HL7IOException {
+      if (pendingCount > 0 && System.currentTimeMillis() - pendingSince >= flushInterval) flush();
+   } // flushIfDue
+
+
+   /**
+    * Counts a written message, and flushes if the flush policy is met.
+    */
+   private void written() throws HL7IOException {
+      if (pendingCount++ == 0) pendingSince = System.currentTimeMillis();
+      if (flushCount > 0 && pendingCount >= flushCount) {
+         flush();
+      } else if (flushInterval > 0 && System.currentTimeMillis() - pendingSince >= flushInterval) {
+         flush();
+      } // if - else if
+   } // written
+
+
+   /**
+    * Writes the buffer content to the file.
+    */
+   private void drain() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) channel.write(buffer);
+      buffer.clear();
+   } // drain
+
+
+   /**
+    * Ends the message just encoded, with a newline, or the end of its frame.
+    */
+   private void endMessage() throws IOException {
+      if (mllpFramed) {
+         put(FS);
+         put(EOB);
+      } else {
+         put(NEWLINE);
+      } // if - else
+   } // endMessage
+
+
+   private void put(byte value) throws IOException {
+      if (!buffer.hasRemaining()) drain();
+      buffer.put(value);
+   } // put
+
+
+   /**
+    * Encodes the argument text into the buffer, draining it as it fills.
+    */
+   private void encode(CharSequence text) throws IOException {
+      CharBuffer chars = CharBuffer.wrap(text);
+      encoder.reset();
+      for (boolean endOfInput = false; ; ) {
+         CoderResult result = endOfInput ? encoder.flush(buffer) : encoder.encode(chars, buffer, true);
+         if (result.isOverflow()) {
+            drain();
+         } else if (result.isError()) {
+            result.throwException();
+         } else if (endOfInput) {
+            return;
+         } else {
+            endOfInput = true;
+         } // if - else if - else
+      } // for
+   } // encode
+
+
+   private void checkWriter(String methodName) throws HL7IOException {
+      if (this.channel == null || !this.isOpen()) {
+         this.open();
+      } // if
+      
+      if (this.channel == null) {
+         throw new HL7IOException(  "HL7FileWriter." + methodName + ": Null writer.",
+                                    HL7IOException.INCONSISTENT_STATE);
+      } // if
+   } // checkWriter
+
+
    /**
     * Writes the argument HL7 message string to the context stream,
     * opening it using the argument file name string if the stream is not open
@@ -179,8 +390,8 @@ public class HL7FileWriter extends HL7StreamBase implements HL7Stream {
     * @param hl7Msg
     * @throws us.conxio.HL7.HL7Stream.HL7IOException
     */
-  public void writeMsg(String fileName, String hl7Msg) throws HL7IOException {
-      if (this.writer == null && this.statusValue == HL7FileWriter.UNINITIALIZED) {
+  public synchronized void writeMsg(String fileName, String hl7Msg) throws HL7IOException {
+      if (this.channel == null && this.statusValue == HL7FileWriter.UNINITIALIZED) {
          if (fileName == null || fileName.isEmpty()) {
             throw new IllegalArgumentException("HL7FileWriter.writeMsg: file not specified.");
          } // if
@@ -200,8 +411,33 @@ public class HL7FileWriter extends HL7StreamBase implements HL7Stream {
     * otherwise false.
     * @throws us.conxio.HL7.HL7Stream.HL7IOException
     */
-   public boolean write(HL7Message msg) throws HL7IOException {
-      this.writeMsg(msg.toString());
+   public synchronized boolean write(HL7Message msg) throws HL7IOException {
+      this.checkWriter("write");
+
+      try {
+         if (mllpFramed) put(STX);
+         // * encoded directly into the buffer, without an intermediate String.
+         int start = buffer.position();
+         try {
+            msg.writeTo(buffer, charset);
+         } catch (BufferOverflowException boEx) {
+            buffer.position(start);
+            drain();
+            try {
+               msg.writeTo(buffer, charset);
+            } catch (BufferOverflowException tooLarge) {
+               // * larger than the buffer.
+               buffer.clear();
+               encode(msg.toHL7String());
+            } // try - catch
+         } // try - catch
+
+         endMessage();
+         written();
+      } catch (IOException ioEx) {
+         throw new HL7IOException(  "HL7FileWriter.write: IOException", ioEx);
+      } // try - catch
+
       return true;
    } // write
 
@@ -222,16 +458,25 @@ public class HL7FileWriter extends HL7StreamBase implements HL7Stream {
     * @return true if the operation succeeded, otherwise false.
     * @throws us.conxio.HL7.HL7Stream.HL7IOException
     */
-   public boolean close()throws HL7IOException {
+   public synchronized boolean close()throws HL7IOException {
       if (!this.isOpen()) {
          return true;
       } // if
 
+      if (flusher != null) {
+         flusher.shutdownNow();
+         flusher = null;
+      } // if
+
       try {
-         this.writer.close();
-      } catch (IOException ioEx) {
-         throw new HL7IOException("HL7FileWriter.close:IOException", ioEx);
-      } // try - catch
+         flush();
+      } finally {
+         try {
+            this.channel.close();
+         } catch (IOException ioEx) {
+            throw new HL7IOException("HL7FileWriter.close:IOException", ioEx);
+         } // try - catch
+      } // try - finally
 
       this.statusValue = HL7FileWriter.CLOSED;
       return true;
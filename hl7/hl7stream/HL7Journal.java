@@ -0,0 +1,581 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7Journal.java : A durable, segmented, memory mapped, append only journal
+ *                    of HL7 messages, for store and forward delivery.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import us.conxio.hl7.hl7message.HL7Message;
+
+/**
+ * A durable journal of HL7 messages, between the inbound stream of a service,
+ * and its routes. Each message is appended to the journal, and may be
+ * acknowledged once the journal has been synced, while each route reads the
+ * journal independently, by way of its own HL7JournalCursor, and a persisted
+ * checkpoint, so that every message is delivered at least once, by every
+ * route, whatever fails, and when.
+ * <p>
+ * The journal is a directory of segment files, each of segmentSize bytes,
+ * named by the journal offset of its first byte, and memory mapped. Each
+ * message is appended as a record of its length, the CRC32 of its text, and
+ * its text, in UTF-8. A record which does not fit in the active segment is
+ * appended to a new segment, which begins at the offset following the prior
+ * one. On opening, the records of the last segment are verified, and any
+ * partially written record, and whatever follows it, is discarded.
+ * <p>
+ * Appends are serialized, and never wait for the storage device. sync()
+ * forces the active segment to the storage device once for all of the
+ * messages appended by every thread so far, so that concurrent callers share
+ * a single force, as a group commit. A segment is forced before it is
+ * retired, and is deleted once every cursor has committed past it.
+ * <p>
+ * As a HL7DurableMessageHandler, a journal may be the handler of a server,
+ * in the batch acknowledgment mode.
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7Journal implements HL7DurableMessageHandler {
+   public static final int       DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+   static final String           SEGMENT_EXTENSION = ".journal";
+   static final String           CHECKPOINT_EXTENSION = ".cursor";
+   static final String           REJECTED_EXTENSION = ".rejected.hl7";
+   /**
+    * The length and CRC32 which precede the text of each record.
+    */
+   static final int              RECORD_HEADER_SIZE = 8;
+   /**
+    * The length which marks the end of the records of a segment.
+    */
+   static final int              END_OF_SEGMENT = -1;
+   static final Charset          TEXT_CHARSET = Charset.forName("UTF-8");
+   private static final int      OFFSET_DIGITS = 20;
+   private static Logger         logger = Logger.getLogger(HL7Journal.class);
+
+   private final File            directory;
+   private final int             segmentSize;
+
+   /**
+    * The live segments, by base offset.
+    */
+   private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+   private final List<HL7JournalCursor> cursors = new CopyOnWriteArrayList<HL7JournalCursor>();
+   private volatile boolean      isOpen = false;
+
+   // * the writer state, guarded by the journal.
+   private Segment               active;
+   private ByteBuffer            writeBuffer;
+   private final CRC32           crc = new CRC32();
+   private long                  appendCount = 0;
+   /**
+    * The offset following the last appended record, published to the cursors.
+    */
+   private volatile long         endOffset = 0;
+
+   // * the group commit state, guarded by syncMonitor.
+   private final Object          syncMonitor = new Object();
+   private boolean               syncing = false;
+   private long                  syncedOffset = 0;
+   private long                  syncCount = 0;
+   private final ThreadLocal<long[]> lastAppended = new ThreadLocal<long[]>() {
+      protected long[] initialValue() {
+         return new long[1];
+      } // initialValue
+   };
+
+   // * the cursors waiting for a record to be appended.
+   private final Object          arrival = new Object();
+   private final AtomicInteger   waiting = new AtomicInteger();
+
+
+   /**
+    * Creates a journal in the argument directory.
+    * @param dir The directory of the journal segments and cursor checkpoints.
+    * @param segmentSize The size of a segment file, in bytes, or 0 for DEFAULT_SEGMENT_SIZE.
+    */
+   public HL7Journal(File dir, int segmentSize) {
+      if (dir == null) {
+         throw new NullPointerException("HL7Journal():Directory is null.");
+      } // if
+
+      directory = dir;
+      this.segmentSize = (segmentSize < 1) ? DEFAULT_SEGMENT_SIZE : segmentSize;
+   } // HL7Journal
+
+
+   /**
+    * Opens the journal, recovering its segments, and truncating any record
+    * which was only partially written.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public synchronized void open() throws HL7IOException {
+      if (isOpen) return;
+
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+         throw new HL7IOException("HL7Journal.open:Cannot create " + directory, HL7IOException.FILE_NOT_FOUND);
+      } // if
+
+      try {
+         long[] bases = segmentBases();
+         for (int index = 0; index < bases.length - 1; ++index) {
+            segments.put(bases[index], new Segment(bases[index], false));
+         } // for
+
+         if (bases.length == 0) {
+            activate(new Segment(0, true), 0);
+         } else {
+            Segment last = new Segment(bases[bases.length - 1], true);
+            segments.put(last.base, last);
+            int position = recover(last);
+            if (position + 4 <= last.size && last.buffer.getInt(position) == END_OF_SEGMENT) {
+               // * retired, but its successor was not created.
+               active = last;
+               writeBuffer = last.buffer.duplicate();
+               writeBuffer.position(position);
+               roll();
+            } else {
+               activate(last, position);
+            } // if - else
+         } // if - else
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7Journal.open:IOException:" + directory, ioEx);
+      } // try - catch
+
+      syncedOffset = endOffset;
+      isOpen = true;
+      logger.info(description() + " opened.");
+   } // open
+
+
+   private long[] segmentBases() {
+      String[] names = directory.list(new FilenameFilter() {
+         public boolean accept(File dir, String name) {
+            return name.endsWith(SEGMENT_EXTENSION);
+         } // accept
+      });
+
+      long[] bases = new long[names.length];
+      for (int index = 0; index < names.length; ++index) {
+         bases[index] = Long.parseLong(names[index].substring(0, names[index].length() - SEGMENT_EXTENSION.length()));
+      } // for
+
+      Arrays.sort(bases);
+      return bases;
+   } // segmentBases
+
+
+   /**
+    * Verifies the records of the argument segment, and clears whatever
+    * follows the last complete record.
+    * @return the position following the last complete record, or of the end
+    * of segment marker.
+    */
+   private int recover(Segment segment) {
+      ByteBuffer buffer = segment.buffer.duplicate();
+      int position = 0;
+      while (position + RECORD_HEADER_SIZE <= segment.size) {
+         int length = buffer.getInt(position);
+         if (length == END_OF_SEGMENT) return position;
+         if (length <= 0 || position + RECORD_HEADER_SIZE + length > segment.size) break;
+
+         buffer.limit(position + RECORD_HEADER_SIZE + length).position(position + RECORD_HEADER_SIZE);
+         crc.reset();
+         crc.update(buffer);
+         buffer.clear();
+         if ((int)crc.getValue() != buffer.getInt(position + 4)) {
+            logger.warn(description() + ": partial record discarded at offset " + (segment.base + position) + ".");
+            break;
+         } // if
+
+         position += RECORD_HEADER_SIZE + length;
+      } // while
+
+      for (int index = position; index < segment.size; ++index) buffer.put(index, (byte)0);
+      segment.buffer.force();
+      return position;
+   } // recover
+
+
+   private void activate(Segment segment, int position) {
+      segments.put(segment.base, segment);
+      active = segment;
+      writeBuffer = segment.buffer.duplicate();
+      writeBuffer.position(position);
+      endOffset = segment.base + position;
+   } // activate
+
+
+   /**
+    * Retires the active segment, with an end of segment marker, forcing it to
+    * the storage device, and creates its successor.
+    */
+   private void roll() throws IOException {
+      int position = writeBuffer.position();
+      if (position + 4 <= active.size) writeBuffer.putInt(position, END_OF_SEGMENT);
+      active.buffer.force();
+      activate(new Segment(active.base + active.size, true), 0);
+   } // roll
+
+
+   /**
+    * Appends the argument message to the journal.
+    * @param msg The message to be appended.
+    * @return the journal offset of the message.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if the journal is closed,
+    * or the message is larger than a segment.
+    */
+   public synchronized long append(HL7Message msg) throws HL7IOException {
+      if (!isOpen) {
+         throw new HL7IOException("HL7Journal.append:Closed.", HL7IOException.INCONSISTENT_STATE);
+      } // if
+
+      int start = writeBuffer.position();
+      try {
+         try {
+            writeRecord(msg, start);
+         } catch (BufferOverflowException boEx) {
+            writeBuffer.position(start);
+            if (start == 0) {
+               throw new HL7IOException(  "HL7Journal.append:Message exceeds the segment size of "
+                                       +  segmentSize + " bytes.", HL7IOException.INAPPROPRIATE_OPERATION);
+            } // if
+
+            roll();
+            start = 0;
+            try {
+               writeRecord(msg, start);
+            } catch (BufferOverflowException tooLarge) {
+               writeBuffer.position(start);
+               throw new HL7IOException(  "HL7Journal.append:Message exceeds the segment size of "
+                                       +  segmentSize + " bytes.", HL7IOException.INAPPROPRIATE_OPERATION);
+            } // try - catch
+         } // try - catch
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7Journal.append:IOException:" + directory, ioEx);
+      } // try - catch
+
+      ++appendCount;
+      long end = active.base + writeBuffer.position();
+      // * publish the record, and then wake any waiting cursor.
+      endOffset = end;
+      lastAppended.get()[0] = end;
+      if (waiting.get() > 0) {
+         synchronized (arrival) {
+            arrival.notifyAll();
+         } // synchronized
+      } // if
+
+      return active.base + start;
+   } // append
+
+
+   /**
+    * Writes the record of the argument message at the argument position of
+    * the active segment, writing its length last.
+    * @throws BufferOverflowException if the record does not fit in the segment.
+    */
+   private void writeRecord(HL7Message msg, int start) {
+      if (start + RECORD_HEADER_SIZE > active.size) throw new BufferOverflowException();
+
+      writeBuffer.position(start + RECORD_HEADER_SIZE);
+      msg.writeTo(writeBuffer, TEXT_CHARSET);
+      int end = writeBuffer.position();
+
+      ByteBuffer text = writeBuffer.duplicate();
+      text.limit(end).position(start + RECORD_HEADER_SIZE);
+      crc.reset();
+      crc.update(text);
+      writeBuffer.putInt(start + 4, (int)crc.getValue());
+      writeBuffer.putInt(start, end - start - RECORD_HEADER_SIZE);
+   } // writeRecord
+
+
+   /**
+    * Appends the argument message to the journal, which must be synced before
+    * the message is acknowledged.
+    * @param msg The message to be appended.
+    * @return 1.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public int dispatch(HL7Message msg) throws HL7IOException {
+      append(msg);
+      return 1;
+   } // dispatch
+
+
+   /**
+    * Makes every message appended by the calling thread durable, forcing the
+    * active segment to the storage device, unless a concurrent sync already
+    * has, or is about to.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public void sync() throws HL7IOException {
+      long target = lastAppended.get()[0];
+      for (;;) {
+         synchronized (syncMonitor) {
+            while (syncing && syncedOffset < target) {
+               try {
+                  syncMonitor.wait();
+               } catch (InterruptedException ex) {
+                  Thread.currentThread().interrupt();
+                  throw new HL7IOException("HL7Journal.sync:interrupted.", ex);
+               } // try - catch
+            } // while
+
+            if (syncedOffset >= target) return;
+            syncing = true;
+         } // synchronized
+
+         long     upTo;
+         Segment  segment;
+         synchronized (this) {
+            upTo = endOffset;
+            segment = active;
+         } // synchronized
+
+         boolean forced = false;
+         try {
+            // * a retired segment was forced as it was retired.
+            segment.buffer.force();
+            forced = true;
+         } finally {
+            synchronized (syncMonitor) {
+               syncing = false;
+               if (forced) {
+                  syncedOffset = Math.max(syncedOffset, upTo);
+                  ++syncCount;
+               } // if
+
+               syncMonitor.notifyAll();
+            } // synchronized
+         } // try - finally
+      } // for
+   } // sync
+
+
+   /**
+    * Opens a cursor of the argument name, at its persisted checkpoint, or at
+    * the first retained message, if it has none.
+    * @param name The name of the cursor, such as the id of a route.
+    * @return the cursor.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7JournalCursor cursor(String name) throws HL7IOException {
+      HL7JournalCursor cursor = new HL7JournalCursor(this, name, file(name, CHECKPOINT_EXTENSION));
+      cursors.add(cursor);
+      return cursor;
+   } // cursor
+
+
+   /**
+    * @param name The name of a cursor.
+    * @return the file, in the journal directory, to which the messages
+    * rejected by the destinations of the named cursor are diverted, so that
+    * the cursor may be committed past them.
+    */
+   public File rejectedFile(String name) {
+      return file(name, REJECTED_EXTENSION);
+   } // rejectedFile
+
+
+   private File file(String name, String extension) {
+      return new File(directory, name.replaceAll("[^A-Za-z0-9._-]", "_") + extension);
+   } // file
+
+
+   void removeCursor(HL7JournalCursor cursor) {
+      cursors.remove(cursor);
+   } // removeCursor
+
+
+   /**
+    * Waits for a record to be appended at or beyond the argument offset.
+    * @return true if one has been appended.
+    */
+   boolean awaitAppend(long offset, long millis) throws InterruptedException {
+      if (endOffset > offset) return true;
+
+      long deadline = System.currentTimeMillis() + millis;
+      synchronized (arrival) {
+         waiting.incrementAndGet();
+         try {
+            while (endOffset <= offset && isOpen) {
+               long remaining = deadline - System.currentTimeMillis();
+               if (remaining <= 0) break;
+               arrival.wait(remaining);
+            } // while
+         } finally {
+            waiting.decrementAndGet();
+         } // try - finally
+      } // synchronized
+
+      return endOffset > offset;
+   } // awaitAppend
+
+
+   /**
+    * @return the segment which holds the argument offset, or the first
+    * retained segment, if the argument offset precedes it.
+    */
+   Segment segmentAt(long offset) {
+      Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+      return entry != null ? entry.getValue() : segments.firstEntry().getValue();
+   } // segmentAt
+
+
+   /**
+    * Deletes each retired segment which every cursor has committed past.
+    */
+   synchronized void release() {
+      long released = endOffset;
+      for (HL7JournalCursor cursor : cursors) released = Math.min(released, cursor.committed());
+
+      List<Segment> retired = new ArrayList<Segment>();
+      for (Segment segment : segments.values()) {
+         if (segment == active || segment.base + segment.size > released) break;
+         retired.add(segment);
+      } // for
+
+      for (Segment segment : retired) {
+         segments.remove(segment.base);
+         if (!segment.file.delete()) logger.warn(description() + ": cannot delete " + segment.file);
+         else if (logger.isDebugEnabled()) logger.debug(description() + ": released " + segment.file.getName());
+      } // for
+   } // release
+
+
+   /**
+    * Forces the active segment to the storage device, and closes the journal,
+    * waking any waiting cursor.
+    */
+   public synchronized void close() {
+      if (!isOpen) return;
+
+      isOpen = false;
+      active.buffer.force();
+      synchronized (arrival) {
+         arrival.notifyAll();
+      } // synchronized
+
+      logger.info(description() + " closed.");
+   } // close
+
+
+   public boolean isOpen() {
+      return isOpen;
+   } // isOpen
+
+
+   /**
+    * @return the offset of the first retained message.
+    */
+   public long firstOffset() {
+      return segments.firstKey();
+   } // firstOffset
+
+
+   /**
+    * @return the offset following the last appended message.
+    */
+   public long endOffset() {
+      return endOffset;
+   } // endOffset
+
+
+   /**
+    * @return the number of messages appended since the journal was opened.
+    */
+   public synchronized long appendCount() {
+      return appendCount;
+   } // appendCount
+
+
+   /**
+    * @return the number of times the journal has been forced by sync().
+    */
+   public long syncCount() {
+      synchronized (syncMonitor) {
+         return syncCount;
+      } // synchronized
+   } // syncCount
+
+
+   public String description() {
+      return "HL7Journal(" + directory + ", segment size:" + segmentSize + ", end:" + endOffset + ")";
+   } // description
+
+
+   /**
+    * A memory mapped segment file. The segments created by the journal are
+    * of segmentSize bytes, while those recovered are of their file size.
+    */
+   final class Segment {
+      final long              base;
+      final int               size;
+      final File              file;
+      final MappedByteBuffer  buffer;
+
+      /**
+       * Maps the segment of the argument base offset, creating it, if need be.
+       */
+      Segment(long base, boolean writable) throws IOException {
+         this.base = base;
+         String name = Long.toString(base);
+         while (name.length() < OFFSET_DIGITS) name = "0" + name;
+         file = new File(directory, name + SEGMENT_EXTENSION);
+
+         RandomAccessFile segmentFile = new RandomAccessFile(file, writable ? "rw" : "r");
+         try {
+            if (writable && segmentFile.length() == 0) segmentFile.setLength(segmentSize);
+            size = (int)segmentFile.length();
+            buffer = segmentFile.getChannel().map(  writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                                                    0,
+                                                    size);
+         } finally {
+            segmentFile.close();
+         } // try - finally
+      } // Segment
+   } // Segment
+
+} // HL7Journal
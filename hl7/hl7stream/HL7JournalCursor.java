@@ -0,0 +1,212 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7JournalCursor.java : An independent reader of a HL7Journal, with a
+ *                          persisted checkpoint.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import us.conxio.hl7.hl7message.HL7Message;
+
+/**
+ * Reads the messages of a HL7Journal, in order, from a position of its own.
+ * Once a message has been delivered, commit() persists the position following
+ * it as the checkpoint of the cursor, at which a cursor of the same name
+ * resumes, after a restart. A message read, but not committed, is read again
+ * after a restart, so that each message is delivered at least once.
+ * <p>
+ * A cursor which has no checkpoint begins at the first message retained by
+ * the journal. A cursor is read by a single thread.
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7JournalCursor {
+   private static final long     WAIT_MILLIS = 1000;
+
+   private final HL7Journal      journal;
+   private final String          name;
+   private final RandomAccessFile checkpointFile;
+   /**
+    * The offset of the next message to be read.
+    */
+   private long                  position;
+   /**
+    * The persisted checkpoint, read by the journal to release segments.
+    */
+   private volatile long         committed;
+   private long                  committedSegment;
+
+
+   HL7JournalCursor(HL7Journal journal, String name, File checkpoint) throws HL7IOException {
+      this.journal = journal;
+      this.name = name;
+      try {
+         checkpointFile = new RandomAccessFile(checkpoint, "rw");
+         position = (checkpointFile.length() >= 8) ? checkpointFile.readLong() : journal.firstOffset();
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7JournalCursor(" + name + "):IOException:" + checkpoint, ioEx);
+      } // try - catch
+
+      position = Math.max(position, journal.firstOffset());
+      committed = position;
+      committedSegment = journal.segmentAt(position).base;
+   } // HL7JournalCursor
+
+
+   /**
+    * Reads the next message, waiting for it to be appended, if need be.
+    * @return the next message, or null once the journal is closed.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7Message next() throws HL7IOException {
+      HL7Message msg;
+      while ((msg = next(WAIT_MILLIS)) == null) {
+         if (!journal.isOpen()) return null;
+      } // while
+
+      return msg;
+   } // next
+
+
+   /**
+    * Reads the next message, waiting at most the argument time for it to be appended.
+    * @param millis The longest time to wait, in milliseconds.
+    * @return the next message, or null if none was appended in time.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7Message next(long millis) throws HL7IOException {
+      try {
+         if (!journal.awaitAppend(position, millis)) return null;
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new HL7IOException("HL7JournalCursor(" + name + ").next:interrupted.", ex);
+      } // try - catch
+
+      for (;;) {
+         HL7Journal.Segment segment = journal.segmentAt(position);
+         if (position < segment.base) position = segment.base;
+
+         int offset = (int)(position - segment.base);
+         ByteBuffer buffer = segment.buffer.duplicate();
+         int length = (offset + HL7Journal.RECORD_HEADER_SIZE <= segment.size) ? buffer.getInt(offset) : HL7Journal.END_OF_SEGMENT;
+         if (length == HL7Journal.END_OF_SEGMENT) {
+            position = segment.base + segment.size;
+            continue;
+         } // if
+
+         buffer.limit(offset + HL7Journal.RECORD_HEADER_SIZE + length).position(offset + HL7Journal.RECORD_HEADER_SIZE);
+         String text = HL7Journal.TEXT_CHARSET.decode(buffer).toString();
+         position += HL7Journal.RECORD_HEADER_SIZE + length;
+         return new HL7Message(text, true);
+      } // for
+   } // next
+
+
+   /**
+    * Persists the position following the last message read as the
+    * checkpoint of the cursor.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public void commit() throws HL7IOException {
+      commit(position);
+   } // commit
+
+
+   /**
+    * Persists the argument position, as returned by position() following the
+    * last message delivered, as the checkpoint of the cursor, so that the
+    * messages read beyond it, but not yet delivered, are read again after a
+    * restart.
+    * @param delivered The offset following the last message delivered, which
+    * lies between the checkpoint and the position of the cursor.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public void commit(long delivered) throws HL7IOException {
+      if (delivered <= committed) return;
+      if (delivered > position) {
+         throw new IllegalArgumentException("HL7JournalCursor(" + name + ").commit:" + delivered + " not yet read.");
+      } // if
+
+      try {
+         checkpointFile.seek(0);
+         checkpointFile.writeLong(delivered);
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7JournalCursor(" + name + ").commit:IOException", ioEx);
+      } // try - catch
+
+      committed = delivered;
+      long segmentBase = journal.segmentAt(delivered).base;
+      if (segmentBase != committedSegment) {
+         committedSegment = segmentBase;
+         journal.release();
+      } // if
+   } // commit
+
+
+   /**
+    * Closes the cursor, without committing.
+    */
+   public void close() {
+      journal.removeCursor(this);
+      try {
+         checkpointFile.close();
+      } catch (IOException ioEx) {
+         // * the checkpoint was written by commit().
+      } // try - catch
+   } // close
+
+
+   long committed() {
+      return committed;
+   } // committed
+
+
+   /**
+    * @return the name of the cursor.
+    */
+   public String name() {
+      return name;
+   } // name
+
+
+   /**
+    * @return the offset of the next message to be read.
+    */
+   public long position() {
+      return position;
+   } // position
+
+
+   /**
+    * @return the number of bytes of messages appended, but not yet read.
+    */
+   public long lag() {
+      return journal.endOffset() - position;
+   } // lag
+
+} // HL7JournalCursor
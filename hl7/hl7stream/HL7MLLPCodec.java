@@ -0,0 +1,337 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7MLLPCodec.java : A buffered MLLP frame decoder.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import org.apache.commons.lang.StringUtils;
+
+
+/**
+ * Decodes MLLP frames (STX, message, FS, CR) from bytes read in bulk into a
+ * single, reusable buffer, rather than a character at a time. A frame may arrive
+ * in any number of reads, and one read may hold any number of frames.
+ * The frame boundaries are found by scanning the raw bytes, and the message
+ * text of each frame is decoded exactly once, in the character set named by
+ * its MSH-18, or in the default character set of the codec, if MSH-18 is
+ * empty or unknown.
+ * Bytes outside of a frame are discarded.
+ * <p>
+ * A codec is not thread safe, and is intended to serve a single connection.
+ * @author scott
+ */
+class HL7MLLPCodec {
+   static final byte          STX = 0x0b,
+                              FS  = 0x1c,
+                              EOB = 0x0d;
+   static final int           DEFAULT_BUFFER_SIZE = 8 * 1024;
+   /**
+    * The largest acceptable frame.
+    */
+   static final int           MAX_FRAME_SIZE = 16 * 1024 * 1024;
+   private static final int   CHARSET_FIELD = 18;
+   private static final Charset HL7_CHARSET_NAME_CHARSET = Charset.forName("US-ASCII");
+
+   private final Charset      defaultCharset;
+   /**
+    * The buffered bytes, from offset 0 to the buffer position.
+    */
+   private ByteBuffer         buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+   /**
+    * The offset of the first byte not yet scanned.
+    */
+   private int                scan = 0;
+   /**
+    * The offset of the first byte of the current frame, or -1 outside a frame.
+    */
+   private int                frameStart = -1;
+   private Charset            frameCharset;
+
+
+   /**
+    * Creates a codec which decodes frames without a recognized MSH-18 in the
+    * platform default character set, as did the character stream readers.
+    */
+   HL7MLLPCodec() {
+      this(Charset.defaultCharset());
+   } // HL7MLLPCodec
+
+
+   HL7MLLPCodec(Charset defaultCharset) {
+      this.defaultCharset = defaultCharset;
+      frameCharset = defaultCharset;
+   } // HL7MLLPCodec
+
+
+   /**
+    * Reads as many bytes as are available from the argument stream, blocking
+    * only if none are.
+    * @return the number of bytes read, or -1 at the end of the stream.
+    * @throws IOException if the read fails, or the current frame exceeds MAX_FRAME_SIZE.
+    */
+   int readFrom(InputStream in) throws IOException {
+      ensureRoom();
+      int count = in.read(buffer.array(), buffer.position(), buffer.remaining());
+      if (count > 0) buffer.position(buffer.position() + count);
+      return count;
+   } // readFrom
+
+
+   /**
+    * Reads as many bytes as are available from the argument channel.
+    * @return the number of bytes read, or -1 at the end of the stream.
+    * @throws IOException if the read fails, or the current frame exceeds MAX_FRAME_SIZE.
+    */
+   int readFrom(ReadableByteChannel channel) throws IOException {
+      ensureRoom();
+      return channel.read(buffer);
+   } // readFrom
+
+
+   /**
+    * Reads the next frame from the argument stream, reading only as much as
+    * is needed beyond what is already buffered.
+    * @return the message text of the frame, the text of an incomplete frame
+    * at the end of the stream, or null if the stream ends between frames.
+    * @throws IOException if the read fails, or the current frame exceeds MAX_FRAME_SIZE.
+    */
+   String readFrame(InputStream in) throws IOException {
+      String frame;
+      while ((frame = decode()) == null) {
+         if (readFrom(in) < 0) return remainder();
+      } // while
+
+      return frame;
+   } // readFrame
+
+
+   /**
+    * Decodes the next complete frame from the buffered bytes, if any.
+    * @return the message text of the frame, which is empty for an empty frame,
+    * or null if no complete frame has been buffered.
+    */
+   String decode() {
+      byte[] data = buffer.array();
+      int length = buffer.position();
+
+      while (scan < length) {
+         if (frameStart < 0) {
+            int start = indexOf(data, STX, scan, length);
+            if (start < 0) {
+               buffer.clear();
+               scan = 0;
+               return null;
+            } // if
+
+            frameStart = scan = start + 1;
+            continue;
+         } // if
+
+         int end = indexOf(data, FS, scan, length);
+         if (end < 0 || end + 1 == length) {
+            // * keep a trailing FS, so that it is scanned again with the next byte.
+            scan = end < 0 ? length : end;
+            return null;
+         } // if
+
+         scan = end + 1;
+         if (data[scan] != EOB) continue;
+
+         ++scan;
+         frameCharset = charsetOf(data, frameStart, end);
+         String frame = new String(data, frameStart, end - frameStart, frameCharset);
+         frameStart = -1;
+         if (scan == length) {
+            buffer.clear();
+            scan = 0;
+         } // if
+
+         return frame;
+      } // while
+
+      return null;
+   } // decode
+
+
+   /**
+    * @return true if any bytes remain to be decoded.
+    */
+   boolean hasBuffered() {
+      return scan < buffer.position();
+   } // hasBuffered
+
+
+   /**
+    * @return the character set in which the most recently decoded frame was decoded.
+    */
+   Charset charset() {
+      return frameCharset;
+   } // charset
+
+
+   /**
+    * Takes whatever is buffered of an incomplete frame, as at the end of a stream.
+    * @return the text of the incomplete frame, or null if there is none.
+    */
+   String remainder() {
+      String text = null;
+      if (frameStart >= 0 && frameStart < buffer.position()) {
+         int end = buffer.position();
+         // * a terminal FS is not part of the message.
+         if (buffer.array()[end - 1] == FS) --end;
+         text = new String(buffer.array(), frameStart, end - frameStart, charsetOf(buffer.array(), frameStart, end));
+      } // if
+
+      buffer.clear();
+      scan = 0;
+      frameStart = -1;
+      return text;
+   } // remainder
+
+
+   private static int indexOf(byte[] data, byte value, int from, int to) {
+      for (int index = from; index < to; ++index) {
+         if (data[index] == value) return index;
+      } // for
+
+      return -1;
+   } // indexOf
+
+
+   /**
+    * Makes room in the buffer for a read, first by discarding what has been
+    * consumed, and then by enlarging the buffer.
+    * @throws IOException if the current frame exceeds MAX_FRAME_SIZE.
+    */
+   private void ensureRoom() throws IOException {
+      if (buffer.hasRemaining()) return;
+
+      int keep = frameStart >= 0 ? frameStart : scan;
+      if (keep > 0) {
+         byte[] data = buffer.array();
+         int length = buffer.position() - keep;
+         System.arraycopy(data, keep, data, 0, length);
+         buffer.position(length);
+         scan -= keep;
+         if (frameStart >= 0) frameStart = 0;
+         return;
+      } // if
+
+      int capacity = buffer.capacity();
+      if (capacity >= MAX_FRAME_SIZE) {
+         throw new IOException("HL7MLLPCodec: frame exceeds " + MAX_FRAME_SIZE + " bytes.");
+      } // if
+
+      ByteBuffer enlarged = ByteBuffer.allocate(Math.min(capacity << 1, MAX_FRAME_SIZE));
+      buffer.flip();
+      enlarged.put(buffer);
+      buffer = enlarged;
+   } // ensureRoom
+
+
+   /**
+    * Determines the character set of the message text between the argument
+    * offsets from its MSH-18, which is always in ASCII.
+    * @return the character set named by MSH-18, or the default character set.
+    */
+   private Charset charsetOf(byte[] data, int start, int end) {
+      if (end - start < 8
+      ||  data[start] != 'M' || data[start + 1] != 'S' || data[start + 2] != 'H') {
+         return defaultCharset;
+      } // if
+
+      byte  fieldSep = data[start + 3],
+            componentSep = data[start + 4],
+            repetitionSep = data[start + 5];
+
+      // * the separator following "MSH" precedes MSH-2.
+      int field = 1;
+      int index = start + 3;
+      for (; index < end && field < CHARSET_FIELD; ++index) {
+         byte inData = data[index];
+         if (inData == EOB) return defaultCharset;
+         if (inData == fieldSep) ++field;
+      } // for
+
+      if (field < CHARSET_FIELD) return defaultCharset;
+
+      int valueStart = index;
+      while ( index < end
+      &&      data[index] != fieldSep
+      &&      data[index] != componentSep
+      &&      data[index] != repetitionSep
+      &&      data[index] != EOB) {
+         ++index;
+      } // while
+
+      if (index == valueStart) return defaultCharset;
+
+      String hl7Name = new String(data, valueStart, index - valueStart, HL7_CHARSET_NAME_CHARSET);
+      return charsetFor(hl7Name, defaultCharset);
+   } // charsetOf
+
+
+   /**
+    * Maps an ASCII compatible HL7 character set name (HL7 table 0211) to the
+    * corresponding Java character set.
+    * @param hl7Name the HL7 character set name, as found in MSH-18.
+    * @param defaultCharset the character set to be used, if the name is not known.
+    * @return the corresponding character set, or the argument default, if none is available.
+    */
+   static Charset charsetFor(String hl7Name, Charset defaultCharset) {
+      if (StringUtils.isBlank(hl7Name)) return defaultCharset;
+
+      String name = hl7Name.trim().toUpperCase();
+      String javaName;
+      if (name.equals("ASCII")) {
+         javaName = "US-ASCII";
+      } else if (name.startsWith("8859/")) {
+         javaName = "ISO-8859-" + name.substring(5);
+      } else if (name.equals("UNICODE UTF-8")) {
+         javaName = "UTF-8";
+      } else if (name.startsWith("GB 18030")) {
+         javaName = "GB18030";
+      } else if (name.equals("KS X 1001")) {
+         javaName = "EUC-KR";
+      } else if (name.equals("BIG-5")) {
+         javaName = "Big5";
+      } else {
+         return defaultCharset;
+      } // if - else if - else
+
+      try {
+         return Charset.isSupported(javaName) ? Charset.forName(javaName) : defaultCharset;
+      } catch (IllegalArgumentException iaEx) {
+         return defaultCharset;
+      } // try - catch
+   } // charsetFor
+
+} // HL7MLLPCodec
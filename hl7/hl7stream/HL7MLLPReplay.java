@@ -0,0 +1,421 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7MLLPReplay.java : Replays a file of MLLP frames to a socket, without
+ *                       parsing or copying the messages.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.net.InetSocketAddress;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import org.apache.log4j.Logger;
+
+import us.conxio.hl7.hl7message.HL7Message;
+
+/**
+ * Replays a file of MLLP frames, as written by a HL7FileWriter with
+ * framing=mllp, to a MLLP destination. The frames are sent as they are
+ * stored, by FileChannel.transferTo(), so that the messages are neither read
+ * into the JVM, nor parsed, nor serialized; only the returning
+ * acknowledgments are parsed.
+ * <p>
+ * Up to a window of consecutive frames is sent as a single byte range, after
+ * which as many acknowledgments are read, in order. The offset following the
+ * last acknowledged frame is persisted in the offset file after each window,
+ * and when the replay stops, so that an interrupted replay resumes where it
+ * stopped. A negative acknowledgment stops the replay at the rejected frame,
+ * such that the next replay begins with it; any frames which followed it in
+ * its window are then sent again.
+ * <p>
+ * The rate at which frames are sent may be limited to a number of frames per
+ * second, with bursts of no more than a window.
+ * <p>
+ * Selected, by the HL7MessageAgent, for a file source URI with framing=mllp,
+ * and a socket destination, as in
+ * -s file-reader:///archive/adt.mllp?framing=mllp&rate=200&offset=/var/replay/adt.offset
+ * -d mllp://host:port?window=16
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7MLLPReplay {
+   public static final int       DEFAULT_WINDOW = 8;
+   public static final String    OFFSET_FILE_EXTENSION = ".offset";
+   private static final int      SCAN_SIZE = 1024 * 1024;
+   private static Logger         logger = Logger.getLogger(HL7MLLPReplay.class);
+
+   private final File            frameFile;
+   private final String          host;
+   private final int             port;
+   private File                  offsetFile;
+   private long                  startOffset = -1;
+   private int                   window = DEFAULT_WINDOW;
+   /**
+    * The largest number of frames per second, or 0 for no limit.
+    */
+   private int                   rate = 0;
+   private int                   timeOutSeconds = 30;
+
+   private FileChannel           fileChannel;
+   private SocketChannel         socketChannel;
+   private InputStream           socketIn;
+   private RandomAccessFile      offsetStore;
+   private final HL7MLLPCodec    codec = new HL7MLLPCodec();
+   private long                  frameCount = 0;
+   private long                  byteCount = 0;
+
+   // * the frame scanner state.
+   private MappedByteBuffer      scanBuffer;
+   private long                  scanBase = 0;
+
+   // * the rate limiter state.
+   private double                permits;
+   private long                  permitsSince;
+
+
+   /**
+    * Creates a replay of the argument file to the argument destination.
+    * @param frameFile The file of MLLP frames.
+    * @param host The host name of the destination.
+    * @param port The port number of the destination.
+    */
+   public HL7MLLPReplay(File frameFile, String host, int port) {
+      if (frameFile == null) {
+         throw new IllegalArgumentException("HL7MLLPReplay():File is null.");
+      } // if
+
+      this.frameFile = frameFile;
+      this.host = host;
+      this.port = port;
+      offsetFile = new File(frameFile.getPath() + OFFSET_FILE_EXTENSION);
+   } // HL7MLLPReplay
+
+
+   /**
+    * Creates a replay of the file of the argument source URI to the argument
+    * destination URI, limited to the rate, and persisting its progress in the
+    * offset file, specified by the source URI, in windows of the size
+    * specified by the destination URI.
+    * @param source A file URI of MLLP frames.
+    * @param destination A socket URI.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7MLLPReplay(HL7StreamURI source, HL7StreamURI destination) throws HL7IOException {
+      this(source.fileOf(), destination.uri().getHost(), destination.getPortNo());
+      if (source.uriOffsetFile() != null) offsetFile = source.uriOffsetFile();
+      startOffset = source.uriStartOffset();
+      setRate(source.uriRate());
+      setWindow(destination.uriWindowSize());
+   } // HL7MLLPReplay
+
+
+   /**
+    * Sets the largest number of frames sent per second.
+    * @param framesPerSecond The rate, or 0 for no limit.
+    */
+   public void setRate(int framesPerSecond) {
+      rate = Math.max(framesPerSecond, 0);
+   } // setRate
+
+
+   /**
+    * Sets the largest number of frames sent before their acknowledgments are read.
+    * @param frames The window, or 0 for DEFAULT_WINDOW.
+    */
+   public void setWindow(int frames) {
+      window = (frames < 1) ? DEFAULT_WINDOW : frames;
+   } // setWindow
+
+
+   /**
+    * Sets the file offset at which the replay starts, overriding the
+    * persisted offset.
+    * @param offset The offset of the first frame to be sent, or -1 to resume
+    * at the persisted offset.
+    */
+   public void setStartOffset(long offset) {
+      startOffset = offset;
+   } // setStartOffset
+
+
+   /**
+    * Sets the file in which the offset following the last acknowledged frame
+    * is persisted.
+    * @param file The offset file.
+    */
+   public void setOffsetFile(File file) {
+      if (file != null) offsetFile = file;
+   } // setOffsetFile
+
+
+   /**
+    * Replays the frames of the file, from the start offset, or the persisted
+    * offset, to the end of the file.
+    * @return the number of frames sent and acknowledged.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException on a negative
+    * acknowledgment, or an i/o failure, once the offset of the frames
+    * acknowledged so far has been persisted.
+    */
+   public long replay() throws HL7IOException {
+      long offset = open();
+      long fileSize;
+      try {
+         fileSize = fileChannel.size();
+      } catch (IOException ioEx) {
+         close();
+         throw new HL7IOException("HL7MLLPReplay.replay:IOException:" + frameFile, ioEx);
+      } // try - catch
+
+      logger.info(description() + ": replaying from offset " + offset + " of " + fileSize + ".");
+      permits = Math.min(window, Math.max(rate, 1));
+      permitsSince = System.nanoTime();
+      long[]   frameEnds = new long[window];
+      long     acknowledged = offset;
+      try {
+         while (offset < fileSize) {
+            int frames = scanFrames(offset, fileSize, frameEnds, acquire());
+            if (frames == 0) break;
+
+            send(offset, frameEnds[frames - 1]);
+            for (int index = 0; index < frames; ++index) {
+               readAck();
+               ++frameCount;
+               acknowledged = frameEnds[index];
+            } // for
+
+            byteCount += frameEnds[frames - 1] - offset;
+            offset = frameEnds[frames - 1];
+            saveOffset(offset);
+         } // while
+      } catch (HL7IOException hl7Ex) {
+         throw hl7Ex;
+      } catch (IOException ioEx) {
+         throw new HL7IOException(description() + ".replay:IOException", ioEx);
+      } finally {
+         // * so that the next replay begins with the first frame not acknowledged.
+         try {
+            if (acknowledged != offset) saveOffset(acknowledged);
+         } catch (IOException ioEx) {
+            logger.error(description() + ": cannot persist offset " + acknowledged + " in " + offsetFile, ioEx);
+         } // try - catch
+
+         close();
+      } // try - catch - finally
+
+      logger.info(description() + ": replayed " + frameCount + " frame(s), " + byteCount + " byte(s).");
+      return frameCount;
+   } // replay
+
+
+   /**
+    * Opens the file, the offset file and the connection.
+    * @return the offset at which to start.
+    */
+   private long open() throws HL7IOException {
+      long offset = 0;
+      try {
+         fileChannel = new RandomAccessFile(frameFile, "r").getChannel();
+         offsetStore = new RandomAccessFile(offsetFile, "rw");
+         String persistedText = offsetStore.length() > 0 ? offsetStore.readLine() : null;
+         if (startOffset >= 0) {
+            offset = startOffset;
+         } else if (persistedText != null) {
+            offset = Long.parseLong(persistedText.trim());
+         } // if - else if
+
+         if (offset > fileChannel.size()) {
+            logger.warn(description() + ": offset " + offset + " is beyond the end of the file, replaying from the beginning.");
+            offset = 0;
+         } // if
+
+         socketChannel = SocketChannel.open(new InetSocketAddress(host, port));
+         socketChannel.socket().setSoTimeout(timeOutSeconds * 1000);
+         socketChannel.socket().setTcpNoDelay(true);
+         // * read by way of the socket, which honors the timeout.
+         socketIn = socketChannel.socket().getInputStream();
+      } catch (NumberFormatException nfEx) {
+         close();
+         throw new HL7IOException(description() + ".open:Unreadable offset file:" + offsetFile, nfEx);
+      } catch (IOException ioEx) {
+         close();
+         throw new HL7IOException(description() + ".open:IOException", ioEx);
+      } // try - catch
+
+      return offset;
+   } // open
+
+
+   /**
+    * Finds the ends of up to the argument number of consecutive frames,
+    * beginning at the argument offset.
+    * @return the number of frames found.
+    */
+   private int scanFrames(long offset, long fileSize, long[] frameEnds, int maxFrames) throws IOException {
+      int   frames = 0;
+      long  position = offset;
+      while (frames < maxFrames && position < fileSize) {
+         long end = frameEnd(position, fileSize);
+         if (end < 0) {
+            logger.warn(description() + ": incomplete frame at offset " + position + " ignored.");
+            break;
+         } // if
+
+         frameEnds[frames++] = position = end;
+      } // while
+
+      return frames;
+   } // scanFrames
+
+
+   /**
+    * @return the offset following the FS, CR which ends the frame beginning
+    * at or after the argument offset, or -1 if the file ends first.
+    */
+   private long frameEnd(long offset, long fileSize) throws IOException {
+      for (long position = offset; position < fileSize; ++position) {
+         if (byteAt(position, fileSize) != HL7MLLPCodec.FS) continue;
+         if (position + 1 < fileSize && byteAt(position + 1, fileSize) == HL7MLLPCodec.EOB) return position + 2;
+      } // for
+
+      return -1;
+   } // frameEnd
+
+
+   /**
+    * Reads a byte of the file through a mapped window of SCAN_SIZE bytes,
+    * which is moved as the scan proceeds, so that the frames are only ever
+    * paged in, rather than copied.
+    */
+   private byte byteAt(long position, long fileSize) throws IOException {
+      if (scanBuffer == null || position < scanBase || position >= scanBase + scanBuffer.limit()) {
+         scanBase = position;
+         scanBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, scanBase, Math.min(SCAN_SIZE, fileSize - scanBase));
+      } // if
+
+      return scanBuffer.get((int)(position - scanBase));
+   } // byteAt
+
+
+   /**
+    * Sends the argument byte range of the file straight to the socket.
+    */
+   private void send(long from, long to) throws IOException {
+      long position = from;
+      while (position < to) position += fileChannel.transferTo(position, to - position, socketChannel);
+   } // send
+
+
+   /**
+    * Reads and parses the next acknowledgment.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException for a negative
+    * acknowledgment, or if the connection closes first.
+    */
+   private void readAck() throws IOException, HL7IOException {
+      String ackText;
+      while ((ackText = codec.decode()) == null) {
+         if (codec.readFrom(socketIn) < 0) {
+            throw new HL7IOException(  description() + ": connection closed awaiting an acknowledgment.",
+                                       HL7IOException.STREAM_CLOSED);
+         } // if
+      } // while
+
+      HL7Message ack = new HL7Message(ackText);
+      String ackCode = ack.get("MSA.1");
+      if (HL7Message.ACK_CODE_OK.equals(ackCode) || "CA".equals(ackCode)) return;
+
+      throw new HL7IOException(  description() + ": NAck (" + ackCode + ") received with " + ack.get("MSA.2"),
+                                 HL7IOException.HL7_NACK);
+   } // readAck
+
+
+   /**
+    * Waits until the rate permits a frame to be sent.
+    * @return the number of frames which may be sent, up to a window.
+    */
+   private int acquire() throws HL7IOException {
+      if (rate == 0) return window;
+
+      for (;;) {
+         long now = System.nanoTime();
+         permits = Math.min(window, permits + (now - permitsSince) * rate / 1e9);
+         permitsSince = now;
+         if (permits >= 1) {
+            int frames = (int)permits;
+            permits -= frames;
+            return frames;
+         } // if
+
+         try {
+            Thread.sleep(Math.max(1, (long)((1 - permits) * 1000 / rate)));
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HL7IOException(description() + ": interrupted.", ex);
+         } // try - catch
+      } // for
+   } // acquire
+
+
+   private void saveOffset(long offset) throws IOException {
+      offsetStore.seek(0);
+      offsetStore.writeBytes(offset + "\n");
+      offsetStore.setLength(offsetStore.getFilePointer());
+   } // saveOffset
+
+
+   private void close() {
+      try {
+         if (socketChannel != null) socketChannel.close();
+         if (fileChannel != null) fileChannel.close();
+         if (offsetStore != null) offsetStore.close();
+      } catch (IOException ioEx) {
+         logger.debug(description() + ".close:IOException", ioEx);
+      } // try - catch
+
+      socketChannel = null;
+      socketIn = null;
+      fileChannel = null;
+      offsetStore = null;
+      scanBuffer = null;
+   } // close
+
+
+   /**
+    * @return the number of frames sent and acknowledged.
+    */
+   public long frameCount() {
+      return frameCount;
+   } // frameCount
+
+
+   public String description() {
+      return "HL7MLLPReplay(" + frameFile + " to " + host + ":" + port + ")";
+   } // description
+
+} // HL7MLLPReplay
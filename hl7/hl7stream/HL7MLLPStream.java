@@ -27,16 +27,18 @@ package us.conxio.hl7.hl7stream;
 
 
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.BufferedWriter;
 
+import java.util.List;
+
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import org.apache.log4j.Logger;
 
+import us.conxio.hl7.hl7message.HL7AckWriter;
 import us.conxio.hl7.hl7message.HL7Message;
 
 /**
@@ -71,9 +73,13 @@ public class HL7MLLPStream extends HL7StreamBase implements HL7Stream {
     */
    Socket                  socket;
    /**
-    * The BufferedReader used for reading the socket.
+    * The InputStream used for reading the socket.
+    */
+   InputStream             in;
+   /**
+    * The codec which buffers the socket input, and decodes MLLP frames from it.
     */
-   BufferedReader          in;
+   HL7MLLPCodec            codec = new HL7MLLPCodec();
    /**
     * The BufferedWriter used for writing to the socket.
     */
@@ -175,34 +181,11 @@ public class HL7MLLPStream extends HL7StreamBase implements HL7Stream {
 
 
    private String _readMsg() throws HL7IOException {
-      StringBuilder  hl7Msg = new StringBuilder();
-      int            inData;
-      boolean        startFound = false,
-                     fsFound = false;
-
       try {
-         while ( (inData = in.read()) != -1) {
-            if (inData == STX) {
-               startFound = true;
-               continue;
-            } // if
-
-            if (inData == FS) {
-               fsFound = true;
-               continue;
-            } // if
-
-            if (inData == EOB && fsFound) return(hl7Msg.toString());
-
-            if (startFound) hl7Msg.append( (char)inData);
-         } // while
+         return codec.readFrame(in);
       } catch (IOException ioEx) {
          throw new HL7IOException(streamID() + "IOException", ioEx);
       } // try - catch
-
-      if (hl7Msg.length() > 0) return hl7Msg.toString();
-
-      return null;
    } // _readMsg
 
 
@@ -234,36 +217,106 @@ public class HL7MLLPStream extends HL7StreamBase implements HL7Stream {
 
 
    /**
-    * Reads a HL7Message object from the context socket stream.
+    * Reads a HL7Message object from the context socket stream, and
+    * acknowledges it immediately.
     * @return the read HL7Message object.
     * @throws us.conxio.HL7.HL7Stream.HL7IOException
     */
    public HL7Message read() throws HL7IOException {
+      HL7Message msg = receive();
+      if (msg != null) acknowledge(msg, null);
+      return(msg);
+   } // read
+
+
+   /**
+    * Reads a HL7Message object from the context socket stream, without
+    * acknowledging it, so that it may be acknowledged once it has been handled.
+    * @return the read HL7Message object, or null at the end of the stream.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7Message receive() throws HL7IOException {
       String msgStr = readMsg();
       if (msgStr == null || msgStr.isEmpty()) return null;
 
-      HL7Message msg = new HL7Message(msgStr);
-      String msgCtlID = msg.get("MSH.10");
-      String traceHeader = new StringBuffer( "read(): got [")
-                                    .append( msg.idString())
-                                    .append( "].[")
-                                    .append( msgCtlID)
-                                    .append( "]:").toString();
-      logger.trace(traceHeader);
-      logger.trace(msg.toString());
-
-      HL7Message ack = msg.acknowledgment(true, "ok", null, null);
-      traceHeader = new StringBuffer( "read(): Sending acknowledgment [")
-                              .append(ack.idString())
-                              .append("].[")
-                              .append(ack.get("MSH.10"))
-                              .append( "]:").toString();
-      writeMsgString(ack.toString());
-      logger.trace(traceHeader);
-      logger.trace(ack.toString());
+      HL7Message msg = new HL7Message(msgStr, true);
+      if (logger.isTraceEnabled()) {
+         logger.trace("read(): got [" + msg.idString() + "].[" + msg.get("MSH.10") + "]:");
+         logger.trace(msg.toString());
+      } // if
 
       return(msg);
-   } // read
+   } // receive
+
+
+   /**
+    * Writes the acknowledgment of the argument message, as formulated by
+    * HL7AckWriter, directly within the MLLP frame.
+    * @param msg the received message.
+    * @param errorText null to accept the message (AA), otherwise the reason
+    * for which it is rejected (AE), which is sent in MSA-3.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public void acknowledge(HL7Message msg, String errorText) throws HL7IOException {
+      if (!isOpen() || out == null) open();
+
+      try {
+         appendAcknowledgment(msg, errorText);
+         out.flush();
+      } catch (IOException ioEx) {
+         throw new HL7IOException(streamID() +  "IOException", ioEx);
+      } // try - catch
+
+      if (logger.isTraceEnabled()) {
+         logger.trace("read(): Sent acknowledgment of [" + msg.idString() + "], " + (errorText == null ? "ok." : errorText));
+      } // if
+   } // acknowledge
+
+
+   /**
+    * Writes the acknowledgments of the argument messages, each in its own
+    * frame, with a single flush.
+    * @param msgs the received messages.
+    * @param errorTexts for each message, null to accept it (AA), otherwise
+    * the reason for which it is rejected (AE), which is sent in MSA-3.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public void acknowledgeAll(List<HL7Message> msgs, List<String> errorTexts) throws HL7IOException {
+      if (msgs.isEmpty()) return;
+      if (!isOpen() || out == null) open();
+
+      try {
+         for (int index = 0; index < msgs.size(); ++index) {
+            appendAcknowledgment(msgs.get(index), errorTexts.get(index));
+         } // for
+
+         out.flush();
+      } catch (IOException ioEx) {
+         throw new HL7IOException(streamID() +  "IOException", ioEx);
+      } // try - catch
+   } // acknowledgeAll
+
+
+   private void appendAcknowledgment(HL7Message msg, String errorText) throws IOException {
+      out.write(STX);
+      HL7AckWriter.writeTo(out, msg, errorText == null, errorText);
+      out.write(FS);
+      out.write(EOB);
+   } // appendAcknowledgment
+
+
+   /**
+    * Determines whether more input may be read without blocking, as when the
+    * sender has several messages outstanding.
+    * @return true if a frame, or part of one, is already buffered or available.
+    */
+   public boolean isInputPending() {
+      try {
+         return codec.hasBuffered() || (in != null && in.available() > 0);
+      } catch (IOException ioEx) {
+         return false;
+      } // try - catch
+   } // isInputPending
 
 
    /**
@@ -292,23 +345,75 @@ public class HL7MLLPStream extends HL7StreamBase implements HL7Stream {
 
 
 
+   /**
+    * Writes the argument HL7Message object on the context outbound stream,
+    * serializing it directly to the stream within the MLLP frame.
+    * @param msg the HL7Message object to be written.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public void writeMsg(HL7Message msg) throws HL7IOException {
+      if (msg == null) {
+         throw new HL7IOException(  "Null HL7 Msg.",
+                                    HL7IOException.NULL_MSG);
+      } // if
+
+      if (!isOpen() || out == null) open();
+
+      try {
+         appendFrame(msg);
+         out.flush();
+      } catch (IOException ioEx) {
+         throw new HL7IOException(streamID() +  "IOException", ioEx);
+      } // try - catch
+   } // writeMsg
+
+
+   /**
+    * Writes the argument HL7Message objects on the context outbound stream,
+    * each in its own frame, with a single flush.
+    * @param msgs the HL7Message objects to be written.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public void writeMsgs(List<HL7Message> msgs) throws HL7IOException {
+      if (msgs.isEmpty()) return;
+      if (!isOpen() || out == null) open();
+
+      try {
+         for (HL7Message msg : msgs) appendFrame(msg);
+         out.flush();
+      } catch (IOException ioEx) {
+         throw new HL7IOException(streamID() +  "IOException", ioEx);
+      } // try - catch
+   } // writeMsgs
+
+
+   private void appendFrame(HL7Message msg) throws IOException {
+      out.write(STX);
+      msg.writeTo(out);
+      out.write(FS);
+      out.write(EOB);
+   } // appendFrame
+
+
    /**
     * Writes the argument HL7Message object on the context outbound stream.
     * @param hl7Msg the HL7Message object to be written.
     * @return true if the operation is successful, otherwise false.
     * @throws us.conxio.HL7.HL7Stream.HL7IOException
     */
-   @SuppressWarnings("empty-statement")
    public boolean write(HL7Message hl7Msg) throws HL7IOException {
       String msgCtlID = hl7Msg.controlID();
       String traceHeader = "write(" + hl7Msg.idString() + "):";
       logger.trace(traceHeader + " writing.");
-      writeMsgString(hl7Msg.toHL7String());
+      writeMsg(hl7Msg);
       logger.trace(traceHeader + " wrote.");
 
-      String hl7MsgStr;
-      while ( (hl7MsgStr = readMsg() ) == null)
-         ;
+      // * the frame reader blocks until a frame arrives, so null means no acknowledgment will.
+      String hl7MsgStr = readMsg();
+      if (hl7MsgStr == null) {
+         throw new HL7IOException(  streamID() + "No acknowledgment received for " + msgCtlID,
+                                    HL7IOException.STREAM_CLOSED);
+      } // if
 
       // * If sent msg has no encoding characters then the ack will have no encoders either.
       HL7Message reply = new HL7Message(hl7MsgStr);
@@ -353,6 +458,20 @@ public class HL7MLLPStream extends HL7StreamBase implements HL7Stream {
 
 
 
+   /**
+    * Determines whether the socket of the context stream is still connected,
+    * as far as can be told without i/o.
+    * @return true if the socket is connected, and neither closed nor shut down.
+    */
+   boolean isConnected() {
+      return   socket != null
+         &&    socket.isConnected()
+         &&    !socket.isClosed()
+         &&    !socket.isInputShutdown()
+         &&    !socket.isOutputShutdown();
+   } // isConnected
+
+
    private boolean isWriter() {
       return this.directive == WRITER;
    } // isWriter
@@ -365,7 +484,7 @@ public class HL7MLLPStream extends HL7StreamBase implements HL7Stream {
    private boolean openReader() throws HL7IOException {
       try {
          this.out = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream()));
-         this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+         this.in = this.socket.getInputStream();
       } catch (IOException ioEx) {
          throw new HL7IOException(streamID() + "IOException", ioEx);
       } // try - catch
@@ -382,7 +501,9 @@ public class HL7MLLPStream extends HL7StreamBase implements HL7Stream {
          sock = new Socket(this.host, this.port);
          sock.setSoTimeout(this.timeOutSeconds * 1000);
          this.out = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
-         this.in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+         this.in = sock.getInputStream();
+         // * nothing buffered from a previous connection applies to this one.
+         this.codec = new HL7MLLPCodec();
       } catch (UnknownHostException uhEx) {
          throw new HL7IOException(streamID() + "UnknownHost.",  HL7IOException.UNKNOWN_HOST);
       } catch (SocketException sEx) {
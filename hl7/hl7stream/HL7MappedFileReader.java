@@ -0,0 +1,450 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7MappedFileReader.java : Reads HL7 transaction messages from a memory
+ *                             mapped file, parsing chunks of it in parallel.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import us.conxio.hl7.hl7message.HL7Message;
+
+/**
+ * Reads HL7 (v.2.x) transaction messages from a file, as does HL7FileReader,
+ * but for large batch files. The file is memory mapped, and split into chunks
+ * of about chunkSize bytes, each beginning with a MSH, BHS or BTS segment. The
+ * chunks are parsed into messages in parallel, on a ForkJoinPool, and the
+ * messages are read either in file order, or, for the highest throughput,
+ * in the order in which their chunks are parsed.
+ * <p>
+ * As with HL7FileReader, segments may be terminated by CR, LF or CRLF, empty
+ * lines are ignored, each returned message has its segments terminated by CR,
+ * and the text is decoded in the platform default character set.
+ * <p>
+ * Selected by the mode=mapped query parameter of a file reader URI, as in
+ * file-reader:///data/extract.hl7?mode=mapped&order=unordered&pool=8&chunk=16
+ * where pool is the parallelism, and chunk the chunk size in megabytes.
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7MappedFileReader extends HL7StreamBase implements HL7Stream {
+   /**
+    * The chunk size used if none is specified.
+    */
+   public static final int       DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+   /**
+    * The window in which the start of the next chunk is sought.
+    */
+   private static final int      SCAN_WINDOW = 64 * 1024;
+   /**
+    * The shortest text, with segment terminators, which is returned as a
+    * message, rather than discarded, as by HL7FileReader. The last message of
+    * the file is measured without any terminator added to it.
+    */
+   private static final int      MIN_MESSAGE_LENGTH = 11,
+                                 MIN_LAST_MESSAGE_LENGTH = 10;
+   private static final List<HL7Message> END_OF_FILE = new ArrayList<HL7Message>();
+   private static Logger         logger = Logger.getLogger(HL7MappedFileReader.class);
+
+   private final File            file;
+   private final boolean         ordered;
+   private final int             chunkSize;
+   private final int             parallelism;
+   private final Charset         charset = Charset.defaultCharset();
+
+   private FileInputStream       inputStream;
+   private FileChannel           channel;
+   private long                  fileSize;
+   /**
+    * The offset at which the next chunk to be submitted begins.
+    */
+   private long                  nextChunkStart;
+   private ForkJoinPool          pool;
+   /**
+    * The submitted chunks, in file order, when reading in order.
+    */
+   private final LinkedList<ForkJoinTask<List<HL7Message>>> inFlight
+                                 = new LinkedList<ForkJoinTask<List<HL7Message>>>();
+   /**
+    * The parsed chunks, in order of completion, when reading out of order.
+    */
+   private final LinkedBlockingQueue<ParsedChunk> parsed
+                                 = new LinkedBlockingQueue<ParsedChunk>();
+   private int                   outstanding;
+   private Iterator<HL7Message>  current;
+
+
+   /**
+    * Constructs a new reader of the argument file.
+    * @param hl7File The file to be read.
+    * @param ordered true to read the messages in file order, false to read
+    * them in the order in which they are parsed.
+    * @param parallelism The number of chunks parsed concurrently, or 0 for
+    * the number of processors.
+    * @param chunkSize The approximate size of a chunk, in bytes, or 0 for DEFAULT_CHUNK_SIZE.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if the file does not exist.
+    */
+   public HL7MappedFileReader(File hl7File, boolean ordered, int parallelism, int chunkSize) throws HL7IOException {
+      if (hl7File == null) {
+         throw new NullPointerException("HL7MappedFileReader():File is null.");
+      } // if
+
+      if (!hl7File.exists()) {
+         throw new HL7IOException("HL7MappedFileReader(" + hl7File.toString() + "): File Not found:",
+                                  HL7IOException.FILE_NOT_FOUND);
+      } // if
+
+      file = hl7File;
+      this.ordered = ordered;
+      this.parallelism = (parallelism < 1) ? Runtime.getRuntime().availableProcessors() : parallelism;
+      this.chunkSize = (chunkSize < 1) ? DEFAULT_CHUNK_SIZE : chunkSize;
+      directive = READER;
+      mediaType = FILE_TYPE;
+   } // HL7MappedFileReader
+
+
+   /**
+    * Constructs a new reader from the argument file reader URI, and its
+    * order, pool and chunk query parameters.
+    * @param streamURI The file reader URI.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if the file does not exist.
+    */
+   public HL7MappedFileReader(HL7StreamURI streamURI) throws HL7IOException {
+      this( streamURI.fileOf(),
+            !HL7StreamURI.ORDER_UNORDERED.equals(streamURI.uriReadOrder()),
+            streamURI.uriServerPoolSize(),
+            streamURI.uriChunkSize());
+   } // HL7MappedFileReader
+
+
+   /**
+    * Opens the file, and starts parsing the first chunks.
+    * @return true if the operation succeeded, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public boolean open() throws HL7IOException {
+      if (isOpen()) return true;
+
+      try {
+         inputStream = new FileInputStream(file);
+         channel = inputStream.getChannel();
+         fileSize = channel.size();
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7MappedFileReader.open:IOException:" + file.toString(), ioEx);
+      } // try - catch
+
+      nextChunkStart = 0;
+      outstanding = 0;
+      current = null;
+      pool = new ForkJoinPool(parallelism);
+      statusValue = OPEN;
+      submitChunks();
+      return true;
+   } // open
+
+
+   /**
+    * Closes the file, abandoning any chunks still being parsed.
+    * @return true if the operation succeeded, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public boolean close() throws HL7IOException {
+      if (!isOpen()) return true;
+
+      statusValue = CLOSED;
+      pool.shutdownNow();
+      inFlight.clear();
+      parsed.clear();
+      current = null;
+      try {
+         inputStream.close();
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7MappedFileReader.close:IOException", ioEx);
+      } // try - catch
+
+      return true;
+   } // close
+
+
+   /**
+    * Reads the next message.
+    * @return the next HL7Message, or null at the end of the file, when the
+    * stream is closed.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7Message read() throws HL7IOException {
+      if (!isOpen()) {
+         if (statusValue == CLOSED) return null;
+         open();
+      } // if
+
+      while (current == null || !current.hasNext()) {
+         List<HL7Message> chunk = nextChunk();
+         if (chunk == END_OF_FILE) {
+            close();
+            return null;
+         } // if
+
+         current = chunk.iterator();
+      } // while
+
+      return current.next();
+   } // read
+
+
+   /**
+    * Reads the next message, as a string.
+    * @return the message text, or null at the end of the file.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public String readMsg() throws HL7IOException {
+      HL7Message msg = read();
+      return msg == null ? null : msg.toHL7String();
+   } // readMsg
+
+
+   /**
+    * This method will always throw a INAPPROPRIATE_OPERATION HL7IOException.
+    * @param msg
+    * @return true if the operation succeeded, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public boolean write(HL7Message msg) throws HL7IOException {
+      throw new HL7IOException( "HL7MappedFileReader.write:Innapropriate operation.",
+                                 HL7IOException.INAPPROPRIATE_OPERATION);
+   } // write
+
+
+   /**
+    * Takes the next parsed chunk, keeping up to twice the parallelism of
+    * chunks submitted ahead of it.
+    * @return the messages of the chunk, or END_OF_FILE.
+    */
+   private List<HL7Message> nextChunk() throws HL7IOException {
+      submitChunks();
+      try {
+         if (ordered) {
+            if (inFlight.isEmpty()) return END_OF_FILE;
+            return inFlight.removeFirst().get();
+         } // if
+
+         if (outstanding == 0) return END_OF_FILE;
+         ParsedChunk chunk = parsed.take();
+         --outstanding;
+         if (chunk.failure != null) throw chunk.failure;
+         return chunk.msgs;
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new HL7IOException("HL7MappedFileReader.read:interrupted.", ex);
+      } catch (java.util.concurrent.ExecutionException exEx) {
+         Throwable cause = exEx.getCause();
+         if (cause instanceof HL7IOException) throw (HL7IOException)cause;
+         throw new HL7IOException("HL7MappedFileReader.read:" + cause, cause);
+      } // try - catch
+   } // nextChunk
+
+
+   private void submitChunks() throws HL7IOException {
+      while (nextChunkStart < fileSize && (ordered ? inFlight.size() : outstanding) < parallelism * 2) {
+         final long start = nextChunkStart;
+         final long end = chunkEnd(start);
+         nextChunkStart = end;
+
+         if (ordered) {
+            inFlight.add(pool.submit(new Callable<List<HL7Message>>() {
+               public List<HL7Message> call() throws HL7IOException {
+                  return parseChunk(start, end);
+               } // call
+            }));
+         } else {
+            ++outstanding;
+            pool.execute(new Runnable() {
+               public void run() {
+                  try {
+                     parsed.add(new ParsedChunk(parseChunk(start, end), null));
+                  } catch (HL7IOException ioEx) {
+                     parsed.add(new ParsedChunk(null, ioEx));
+                  } catch (RuntimeException rtEx) {
+                     parsed.add(new ParsedChunk(null, new HL7IOException("HL7MappedFileReader.read:" + rtEx, rtEx)));
+                  } // try - catch
+               } // run
+            });
+         } // if - else
+      } // while
+   } // submitChunks
+
+
+   /**
+    * Finds the end of the chunk which begins at the argument offset, which is
+    * the beginning of the first MSH, BHS or BTS segment at least chunkSize
+    * bytes further on, or the end of the file.
+    */
+   private long chunkEnd(long start) throws HL7IOException {
+      long from = start + chunkSize;
+      try {
+         while (from < fileSize) {
+            int length = (int)Math.min(SCAN_WINDOW, fileSize - from);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, from - 1, length + 1);
+            // * the byte preceding the window tells whether its first byte begins a line.
+            for (int index = 1; index < length; ++index) {
+               if (isTerminator(window.get(index - 1)) && isHeaderAt(window, index, length + 1)) {
+                  return from + index - 1;
+               } // if
+            } // for
+
+            // * the last byte of this window is rescanned, as the first of the next.
+            if (from + length >= fileSize) break;
+            from += length - 1;
+         } // while
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7MappedFileReader:IOException mapping " + file.toString(), ioEx);
+      } // try - catch
+
+      return fileSize;
+   } // chunkEnd
+
+
+   private static boolean isTerminator(byte inData) {
+      return inData == CR || inData == LF;
+   } // isTerminator
+
+
+   /**
+    * @return true if the bytes at the argument index begin a MSH, BHS or BTS segment.
+    */
+   private static boolean isHeaderAt(MappedByteBuffer data, int index, int length) {
+      if (index + 3 > length) return false;
+
+      byte  first = data.get(index),
+            second = data.get(index + 1),
+            third = data.get(index + 2);
+      return (first == 'M' && second == 'S' && third == 'H')
+      ||     (first == 'B' && second == 'H' && third == 'S')
+      ||     (first == 'B' && second == 'T' && third == 'S');
+   } // isHeaderAt
+
+
+   /**
+    * Parses the messages of the chunk between the argument offsets. Each
+    * non empty line is copied, with a CR terminator, and a new message is
+    * begun at each MSH, BHS or BTS segment.
+    */
+   private List<HL7Message> parseChunk(long start, long end) throws HL7IOException {
+      MappedByteBuffer data;
+      try {
+         data = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7MappedFileReader:IOException mapping " + file.toString(), ioEx);
+      } // try - catch
+
+      int      length = data.limit();
+      byte[]   text = new byte[Math.min(length + 1, 4 * 1024)];
+      int      textLength = 0;
+      boolean  lineStart = true;
+      List<HL7Message> msgs = new ArrayList<HL7Message>();
+
+      for (int index = 0; index < length; ++index) {
+         byte inData = data.get(index);
+         if (isTerminator(inData)) {
+            if (!lineStart) {
+               if (textLength == text.length) text = Arrays.copyOf(text, text.length << 1);
+               text[textLength++] = CR;
+               lineStart = true;
+            } // if
+
+            continue;
+         } // if
+
+         if (lineStart) {
+            lineStart = false;
+            if (isHeaderAt(data, index, length)) {
+               if (textLength >= MIN_MESSAGE_LENGTH) addMessage(msgs, text, textLength);
+               textLength = 0;
+            } // if
+         } // if
+
+         if (textLength == text.length) text = Arrays.copyOf(text, text.length << 1);
+         text[textLength++] = inData;
+      } // for
+
+      int minLength = (end == fileSize) ? MIN_LAST_MESSAGE_LENGTH : MIN_MESSAGE_LENGTH;
+      if (textLength >= minLength) {
+         if (!lineStart) {
+            if (textLength == text.length) text = Arrays.copyOf(text, text.length + 1);
+            text[textLength++] = CR;
+         } // if
+
+         addMessage(msgs, text, textLength);
+      } // if
+
+      if (logger.isTraceEnabled()) {
+         logger.trace("parseChunk(" + start + ", " + end + "): " + msgs.size() + " message(s).");
+      } // if
+
+      return msgs;
+   } // parseChunk
+
+
+   private void addMessage(List<HL7Message> msgs, byte[] text, int length) {
+      msgs.add(new HL7Message(new String(text, 0, length, charset), true));
+   } // addMessage
+
+
+   public String description() {
+      return "HL7MappedFileReader(" + file + (ordered ? ", ordered" : ", unordered") + "):" + super.description();
+   } // description
+
+
+   /**
+    * The outcome of an unordered chunk, conveyed to the reading thread:
+    * either its messages, or the failure to parse it.
+    */
+   private static class ParsedChunk {
+      final List<HL7Message>  msgs;
+      final HL7IOException    failure;
+
+      ParsedChunk(List<HL7Message> msgs, HL7IOException failure) {
+         this.msgs = msgs;
+         this.failure = failure;
+      } // ParsedChunk
+   } // ParsedChunk
+
+} // HL7MappedFileReader
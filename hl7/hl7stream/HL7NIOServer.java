@@ -0,0 +1,513 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7NIOServer.java : A selector based, non-blocking HL7 MLLP Server class.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import us.conxio.hl7.hl7message.HL7AckWriter;
+import us.conxio.hl7.hl7message.HL7Message;
+import us.conxio.hl7.hl7system.HL7Logger;
+
+
+/**
+ * A single MLLP client connection of a HL7NIOServer.
+ * All methods are called on the thread of the owning HL7NIOLoop.
+ * Reading is suspended while a received message is being dispatched, so that
+ * messages from any one connection are handled, and acknowledged, in order.
+ */
+class HL7NIOConnection {
+   private static Logger      logger = HL7Logger.getHL7Logger();
+
+   private final SocketChannel          channel;
+   private final HL7NIOLoop             loop;
+   private final String                 connectionID;
+   private SelectionKey                 key;
+   private final HL7MLLPCodec           codec = new HL7MLLPCodec();
+   private boolean                      dispatching = false;
+   private final LinkedList<ByteBuffer> outQueue = new LinkedList<ByteBuffer>();
+
+
+   HL7NIOConnection(SocketChannel channel, HL7NIOLoop loop) {
+      this.channel = channel;
+      this.loop = loop;
+      connectionID = "HL7NIOConnection(" + channel.socket().getRemoteSocketAddress() + ")";
+   } // HL7NIOConnection
+
+
+   void register(Selector selector) throws ClosedChannelException {
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+   } // register
+
+
+   String connectionID() {
+      return connectionID;
+   } // connectionID
+
+
+   HL7NIOLoop loop() {
+      return loop;
+   } // loop
+
+
+   /**
+    * Reads whatever is available from the channel, and dispatches the first
+    * complete frame, if any.
+    * @throws IOException if the channel read fails.
+    */
+   void onReadable() throws IOException {
+      int count = codec.readFrom(channel);
+      if (count < 0) {
+         logger.debug(connectionID + ".onReadable(): end of stream.");
+         close();
+         return;
+      } // if
+
+      processFrames();
+   } // onReadable
+
+
+   private void processFrames() {
+      if (dispatching) return;
+
+      String frame;
+      while ((frame = codec.decode()) != null) {
+         if (frame.isEmpty()) continue;
+
+         dispatching = true;
+         setInterest(SelectionKey.OP_READ, false);
+         loop.server().dispatchFrame(this, frame, codec.charset());
+         return;
+      } // while
+   } // processFrames
+
+
+   /**
+    * Resumes reading once the dispatch of the current frame is complete,
+    * dispatching any complete frame which is already buffered.
+    */
+   void resume() {
+      dispatching = false;
+      if (!key.isValid()) return;
+
+      setInterest(SelectionKey.OP_READ, true);
+      processFrames();
+   } // resume
+
+
+   /**
+    * Queues the argument bytes for writing on the channel.
+    * @param bytes the bytes to write.
+    */
+   void send(ByteBuffer bytes) {
+      if (!key.isValid()) return;
+
+      outQueue.add(bytes);
+      try {
+         onWritable();
+      } catch (IOException ioEx) {
+         logger.warn(connectionID + ".send(): IOException", ioEx);
+         close();
+      } // try - catch
+   } // send
+
+
+   /**
+    * Writes as much of the queued output as the channel will accept.
+    * @throws IOException if the channel write fails.
+    */
+   void onWritable() throws IOException {
+      while (!outQueue.isEmpty()) {
+         ByteBuffer bytes = outQueue.getFirst();
+         channel.write(bytes);
+         if (bytes.hasRemaining()) break;
+         outQueue.removeFirst();
+      } // while
+
+      setInterest(SelectionKey.OP_WRITE, !outQueue.isEmpty());
+   } // onWritable
+
+
+   private void setInterest(int op, boolean on) {
+      if (!key.isValid()) return;
+      int ops = key.interestOps();
+      key.interestOps(on ? ops | op : ops & ~op);
+   } // setInterest
+
+
+   void close() {
+      if (key != null) key.cancel();
+      try {
+         channel.close();
+      } catch (IOException ioEx) {
+         logger.debug(connectionID + ".close(): IOException", ioEx);
+      } // try - catch
+   } // close
+
+} // HL7NIOConnection
+
+
+
+/**
+ * A selector loop, serving the i/o of any number of HL7NIOConnection objects
+ * on a single thread. Work for the loop from other threads is queued, and
+ * performed by the loop thread between selects.
+ */
+class HL7NIOLoop implements Runnable {
+   private static Logger                        logger = HL7Logger.getHL7Logger();
+   private final HL7NIOServer                   server;
+   private final Selector                       selector;
+   private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+   private volatile boolean                     isStopped = false;
+
+
+   HL7NIOLoop(HL7NIOServer server) throws IOException {
+      this.server = server;
+      selector = Selector.open();
+   } // HL7NIOLoop
+
+
+   HL7NIOServer server() {
+      return server;
+   } // server
+
+
+   /**
+    * Queues the argument task to be run on the loop thread.
+    */
+   void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+   } // execute
+
+
+   /**
+    * Hands the argument, newly accepted channel to the context loop.
+    */
+   void register(final SocketChannel channel) {
+      final HL7NIOLoop loop = this;
+      execute(new Runnable() {
+         public void run() {
+            HL7NIOConnection connection = new HL7NIOConnection(channel, loop);
+            try {
+               connection.register(selector);
+               logger.debug(connection.connectionID() + ": connected.");
+            } catch (IOException ioEx) {
+               logger.error(connection.connectionID() + ": registration failed.", ioEx);
+               connection.close();
+            } // try - catch
+         } // run
+      });
+   } // register
+
+
+   void stop() {
+      isStopped = true;
+      selector.wakeup();
+   } // stop
+
+
+   public void run() {
+      while (!isStopped) {
+         try {
+            selector.select();
+         } catch (IOException ioEx) {
+            logger.error("HL7NIOLoop.run(): select failed.", ioEx);
+            break;
+         } // try - catch
+
+         Runnable task;
+         while ((task = tasks.poll()) != null) task.run();
+
+         Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+         while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            HL7NIOConnection connection = (HL7NIOConnection)key.attachment();
+            try {
+               if (key.isValid() && key.isReadable()) connection.onReadable();
+               if (key.isValid() && key.isWritable()) connection.onWritable();
+            } catch (IOException ioEx) {
+               logger.warn(connection.connectionID() + ": IOException", ioEx);
+               connection.close();
+            } // try - catch
+         } // while
+      } // while
+
+      for (SelectionKey key : selector.keys()) {
+         ((HL7NIOConnection)key.attachment()).close();
+      } // for
+
+      try {
+         selector.close();
+      } catch (IOException ioEx) {
+         logger.debug("HL7NIOLoop.run(): IOException closing selector.", ioEx);
+      } // try - catch
+   } // run
+
+} // HL7NIOLoop
+
+
+
+/**
+ * A non-blocking HL7 MLLP Server, as an alternative to the thread per
+ * connection model of HL7Server, for sites with many concurrently connected,
+ * mostly idle, senders.
+ * Connections are accepted on the server thread, and spread over a few
+ * selector loops, each with its own thread. Received messages are parsed,
+ * acknowledged and dispatched by the server thread pool, so that a slow
+ * handler never holds up the i/o of other connections.
+ * Selected by the mode=nio query parameter of the server URI, as in
+ * mllp-server://localhost:2575?pool=8&mode=nio&io=2
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7NIOServer extends HL7Server {
+   /**
+    * The number of i/o threads used if none is specified.
+    */
+   public static final int    DEFAULT_IO_THREADS = 2;
+   private static Logger      logger = HL7Logger.getHL7Logger();
+
+   private int                   ioThreadCount;
+   private ServerSocketChannel   serverChannel;
+   private HL7NIOLoop[]          loops;
+
+
+   /**
+    * Create a non-blocking server, with localhost as host, registering the argument handler.
+    * @param port The port no. for the server to listen on for connection requests.
+    * @param poolSize The desired dispatch thread pool size.
+    * @param ioThreads The desired number of i/o threads, or 0 for DEFAULT_IO_THREADS.
+    * @param handler The dispatch handler for incoming HL7Message objects.
+    */
+   public HL7NIOServer(int port, int poolSize, int ioThreads, HL7MessageHandler handler) {
+      super(port, poolSize, handler);
+      ioThreadCount = (ioThreads < 1) ? DEFAULT_IO_THREADS : ioThreads;
+   } // HL7NIOServer constructor
+
+
+   /**
+    * Create a non-blocking server, with localhost as host, and DEFAULT_IO_THREADS
+    * i/o threads, registering the argument handler.
+    * @param port The port no. for the server to listen on for connection requests.
+    * @param poolSize The desired dispatch thread pool size.
+    * @param handler The dispatch handler for incoming HL7Message objects.
+    */
+   public HL7NIOServer(int port, int poolSize, HL7MessageHandler handler) {
+      this(port, poolSize, DEFAULT_IO_THREADS, handler);
+   } // HL7NIOServer constructor
+
+
+   /**
+    * Not applicable; the selector loops already hand each message off to the
+    * thread pool, and suspend reading its connection until it is dispatched.
+    * @param capacity ignored.
+    */
+   public void setQueueCapacity(int capacity) {
+      if (capacity > 0) {
+         logger.warn("HL7NIOServer(port:" + serverPort + ").setQueueCapacity(" + capacity + "): not applicable to a non-blocking server, ignored.");
+      } // if
+   } // setQueueCapacity
+
+
+   /**
+    * The required run method for the server thread, which accepts connection
+    * requests, and hands them off to the selector loops in turn.
+    */
+   public void run() {
+      synchronized (this) {
+         runningThread = Thread.currentThread();
+      } // synchronized
+
+      String detailedIDString = description() + ".run:";
+      try {
+         openServerChannel();
+      } catch (IOException ioEx) {
+         throw new RuntimeException("Cannot open port:" + serverPort, ioEx);
+      } // try - catch
+
+      status = HL7Stream.OPEN;
+      logger.info(detailedIDString + " Started.");
+
+      int next = 0;
+      while (!isStopped()) {
+         SocketChannel channel;
+         try {
+            channel = serverChannel.accept();
+            channel.configureBlocking(false);
+         } catch (IOException ioEx) {
+            if (isStopped()) break;
+            throw new RuntimeException("Error accepting client connection", ioEx);
+         } // try - catch
+
+         loops[next++ % loops.length].register(channel);
+      } // while
+
+      logger.info(detailedIDString + " Server Stopped.");
+   } // run
+
+
+   private synchronized boolean isStopped() {
+      return isStopped;
+   } // isStopped
+
+
+   private synchronized void openServerChannel() throws IOException {
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(new InetSocketAddress(serverPort));
+
+      loops = new HL7NIOLoop[ioThreadCount];
+      for (int index = 0; index < loops.length; ++index) {
+         loops[index] = new HL7NIOLoop(this);
+         Thread loopThread = new Thread(loops[index], "HL7NIOLoop-" + serverPort + "-" + index);
+         loopThread.setDaemon(true);
+         loopThread.start();
+      } // for
+   } // openServerChannel
+
+
+   /**
+    * Parses, acknowledges and dispatches the argument frame on the server
+    * thread pool, according to the acknowledgment mode, then resumes reading
+    * from the argument connection.
+    * As a connection is read one message at a time, ACK_BATCH acknowledges
+    * each message once a HL7DurableMessageHandler has synchronized it, relying
+    * on the handler to combine the synchronization of concurrent connections.
+    * The acknowledgment is encoded in the argument character set, in which
+    * the frame was decoded.
+    */
+   void dispatchFrame(final HL7NIOConnection connection, final String frame, final Charset charset) {
+      final HL7NIOLoop loop = connection.loop();
+      threadPool.execute(new Runnable() {
+         public void run() {
+            try {
+               HL7Message msg = new HL7Message(frame, true);
+               if (logger.isTraceEnabled()) {
+                  logger.trace(connection.connectionID() + ": got [" + msg.idString() + "].");
+               } // if
+
+               if (ACK_IMMEDIATE.equals(ackMode)) {
+                  acknowledge(connection, msg, null, charset);
+                  if (msgHandler != null) msgHandler.dispatch(msg);
+                  return;
+               } // if
+
+               String error = null;
+               try {
+                  if (msgHandler != null) msgHandler.dispatch(msg);
+                  if (ACK_BATCH.equals(ackMode) && msgHandler instanceof HL7DurableMessageHandler) {
+                     ((HL7DurableMessageHandler)msgHandler).sync();
+                  } // if
+               } catch (Exception ex) {
+                  logger.error(connection.connectionID() + ": dispatch(" + msg.idString() + "): Exception: ", ex);
+                  error = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+               } // try - catch
+
+               acknowledge(connection, msg, error, charset);
+            } catch (Exception ex) {
+               logger.error(connection.connectionID() + ": Exception: ", ex);
+            } finally {
+               loop.execute(new Runnable() {
+                  public void run() { connection.resume(); }
+               });
+            } // try - catch - finally
+         } // run
+      });
+   } // dispatchFrame
+
+
+   private void acknowledge(final HL7NIOConnection connection, HL7Message msg, String error, Charset charset) {
+      StringBuilder framed = new StringBuilder(256).append((char)HL7MLLPCodec.STX);
+      try {
+         HL7AckWriter.writeTo(framed, msg, error == null, error);
+      } catch (IOException ioEx) {
+         // * StringBuilder.append() does not throw IOException.
+         throw new IllegalStateException(ioEx);
+      } // try - catch
+
+      framed.append((char)HL7MLLPCodec.FS).append((char)HL7MLLPCodec.EOB);
+      final ByteBuffer ackBytes = ByteBuffer.wrap(framed.toString().getBytes(charset));
+      connection.loop().execute(new Runnable() {
+         public void run() { connection.send(ackBytes); }
+      });
+   } // acknowledge
+
+
+   /**
+    * A method for stopping the server, which closes all connections.
+    */
+   public synchronized void stop() {
+      isStopped = true;
+      try {
+         logger.info("Closing serverChannel.");
+         if (serverChannel != null) serverChannel.close();
+         status = HL7Stream.CLOSED;
+      } catch (IOException ioEx) {
+         throw new RuntimeException("Error closing server", ioEx);
+      } finally {
+         if (loops != null) {
+            for (HL7NIOLoop loop : loops) loop.stop();
+         } // if
+
+         threadPool.shutdown();
+      } // try - catch - finally
+   } // stop
+
+
+   /**
+    * Creates a status string for the context server instantiation.
+    * @return the created string.
+    */
+   public String description() {
+      return "HL7NIOServer(port:"
+         +   serverPort
+         +   ", poolSize:"
+         +   poolSize
+         +   ", ioThreads:"
+         +   ioThreadCount
+         +   ", handler:"
+         +   (msgHandler == null ? "none" : msgHandler.getClass().getSimpleName())
+         +   "):"
+         +   (isOpen() ? "OPEN" : isClosed() ? "CLOSED" : "UNINITIALIZED");
+   } // description
+
+} // HL7NIOServer
@@ -0,0 +1,285 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7PartitionedDispatcher.java : Dispatches messages on parallel lanes,
+ *                                  partitioned by a message key.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import us.conxio.hl7.hl7message.HL7Designator;
+import us.conxio.hl7.hl7message.HL7Message;
+import us.conxio.hl7.hl7system.HL7Logger;
+
+
+/**
+ * Dispatches messages to a handler on a fixed number of lanes, each a bounded
+ * queue served by a single thread, choosing the lane of each message by the
+ * hash of a key item, by default the patient identifier, PID.3.1, the ID
+ * number of the first repetition of PID.3, as the later repetitions, and the
+ * other components, often differ between the messages of a patient. The messages
+ * of any one key are therefore handled one at a time, in the order received,
+ * as downstream systems require of the messages of a patient, while those of
+ * different keys are handled in parallel, even when they all arrive on a
+ * single connection.
+ * <p>
+ * Messages without the key item share a lane, in which they remain in order.
+ * When a lane is full, dispatch() waits, which holds back the reader of the
+ * connection, and in turn the sender, by TCP flow control.
+ * <p>
+ * dispatch() returns once the message is queued, so that a server acknowledges
+ * it before it has been handled. A failure to handle a message is logged, and
+ * counted, but does not stop its lane.
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7PartitionedDispatcher implements HL7MessageHandler {
+   public static final String       DEFAULT_KEY = "PID.3.1";
+   public static final int          DEFAULT_QUEUE_SIZE = 1024;
+   private static Logger            logger = HL7Logger.getHL7Logger();
+   /**
+    * Queued, to stop a lane thread, once the messages ahead of it have been handled.
+    */
+   private static final HL7Message  END_OF_LANE = new HL7Message();
+
+   private final HL7MessageHandler  msgHandler;
+   private final HL7Designator      key;
+   private final String             keyStr;
+   private final int                queueSize;
+   private final String             name;
+   private final List<BlockingQueue<HL7Message>> lanes;
+   private final Thread[]           laneThreads;
+   private volatile boolean         isOpen = false;
+
+   private final AtomicLong         enqueued = new AtomicLong(),
+                                    dispatched = new AtomicLong(),
+                                    failed = new AtomicLong(),
+                                    stalls = new AtomicLong();
+
+
+   /**
+    * Creates a partitioned dispatcher, which is started by start().
+    * @param handler The handler of the dispatched messages, which must be
+    * safe to call from several lanes at once.
+    * @param laneCount The number of lanes, or 0 for the number of processors.
+    * @param queueSize The largest number of queued messages per lane, or 0
+    * for DEFAULT_QUEUE_SIZE.
+    * @param keyDesignator The designator of the key item, or null for DEFAULT_KEY.
+    * @param name The name of the lane threads.
+    */
+   public HL7PartitionedDispatcher( HL7MessageHandler handler,
+                                    int laneCount,
+                                    int queueSize,
+                                    String keyDesignator,
+                                    String name) {
+      if (handler == null) {
+         throw new IllegalArgumentException("HL7PartitionedDispatcher():Handler is null.");
+      } // if
+
+      msgHandler = handler;
+      keyStr = (keyDesignator == null || keyDesignator.trim().length() == 0) ? DEFAULT_KEY : keyDesignator.trim();
+      key = HL7Designator.compile(keyStr);
+      this.queueSize = (queueSize < 1) ? DEFAULT_QUEUE_SIZE : queueSize;
+      this.name = name;
+
+      int count = (laneCount < 1) ? Runtime.getRuntime().availableProcessors() : laneCount;
+      lanes = new ArrayList<BlockingQueue<HL7Message>>(count);
+      laneThreads = new Thread[count];
+      for (int index = 0; index < count; ++index) {
+         lanes.add(new ArrayBlockingQueue<HL7Message>(this.queueSize));
+      } // for
+   } // HL7PartitionedDispatcher
+
+
+   /**
+    * Starts a thread for each lane.
+    */
+   public synchronized void start() {
+      if (isOpen) return;
+
+      for (int index = 0; index < laneThreads.length; ++index) {
+         final BlockingQueue<HL7Message> lane = lanes.get(index);
+         laneThreads[index] = new Thread(new Runnable() {
+            public void run() { serve(lane); }
+         }, name + "-lane-" + index);
+         laneThreads[index].setDaemon(true);
+         laneThreads[index].start();
+      } // for
+
+      isOpen = true;
+      logger.info(description() + " started.");
+   } // start
+
+
+   /**
+    * Queues the argument message on the lane of its key, waiting while the lane is full.
+    * @param msg The message to be dispatched.
+    * @return 1.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if the dispatcher is not
+    * started, or the wait is interrupted.
+    */
+   public int dispatch(HL7Message msg) throws HL7IOException {
+      if (msg == null) throw new HL7IOException("null message argument.", HL7IOException.NULL_MSG);
+      if (!isOpen) {
+         throw new HL7IOException(description() + ".dispatch:Not started.", HL7IOException.INCONSISTENT_STATE);
+      } // if
+
+      BlockingQueue<HL7Message> lane = lanes.get(laneOf(msg));
+      try {
+         if (!lane.offer(msg)) {
+            stalls.incrementAndGet();
+            lane.put(msg);
+         } // if
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new HL7IOException(description() + ".dispatch: interrupted.", ex);
+      } // try - catch
+
+      enqueued.incrementAndGet();
+      return 1;
+   } // dispatch
+
+
+   /**
+    * @return the index of the lane of the argument message, by the hash of its key.
+    */
+   int laneOf(HL7Message msg) {
+      String keyValue = msg.get(key);
+      int hash = (keyValue == null) ? 0 : keyValue.hashCode();
+      // * spread the high bits, as the hash of similar identifiers differs mostly in the low ones.
+      hash ^= (hash >>> 16);
+      return (hash & Integer.MAX_VALUE) % lanes.size();
+   } // laneOf
+
+
+   /**
+    * Handles the messages of a lane, in order, until the end of the lane.
+    */
+   private void serve(BlockingQueue<HL7Message> lane) {
+      try {
+         for (HL7Message msg = lane.take(); msg != END_OF_LANE; msg = lane.take()) {
+            try {
+               msgHandler.dispatch(msg);
+               dispatched.incrementAndGet();
+            } catch (Exception ex) {
+               failed.incrementAndGet();
+               logger.error(description() + ".dispatch(" + msg.idString() + "): Exception: ", ex);
+            } // try - catch
+         } // for
+      } catch (InterruptedException ex) {
+         logger.warn(description() + ": " + Thread.currentThread().getName() + " interrupted, "
+                   + lane.size() + " message(s) not dispatched.");
+      } // try - catch
+   } // serve
+
+
+   /**
+    * Stops accepting messages, and waits for the queued messages to be handled.
+    */
+   public void close() {
+      synchronized (this) {
+         if (!isOpen) return;
+         isOpen = false;
+      } // synchronized
+
+      try {
+         for (BlockingQueue<HL7Message> lane : lanes) lane.put(END_OF_LANE);
+         for (Thread laneThread : laneThreads) laneThread.join();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         logger.warn(description() + ".close: interrupted.");
+      } // try - catch
+
+      logger.info(description() + " closed.");
+   } // close
+
+
+   public boolean isOpen() {
+      return isOpen;
+   } // isOpen
+
+
+   /**
+    * @return the number of lanes.
+    */
+   public int laneCount() {
+      return lanes.size();
+   } // laneCount
+
+
+   /**
+    * @return the number of messages currently queued, over all lanes.
+    */
+   public int depth() {
+      int depth = 0;
+      for (BlockingQueue<HL7Message> lane : lanes) depth += lane.size();
+      return depth;
+   } // depth
+
+
+   /**
+    * @return the number of messages queued since the dispatcher was created.
+    */
+   public long enqueuedCount() {
+      return enqueued.get();
+   } // enqueuedCount
+
+
+   /**
+    * @return the number of messages successfully handled.
+    */
+   public long dispatchedCount() {
+      return dispatched.get();
+   } // dispatchedCount
+
+
+   /**
+    * @return the number of messages which failed to be handled.
+    */
+   public long failedCount() {
+      return failed.get();
+   } // failedCount
+
+
+   /**
+    * @return the number of times dispatch() waited for a full lane.
+    */
+   public long stallCount() {
+      return stalls.get();
+   } // stallCount
+
+
+   public String description() {
+      return   "HL7PartitionedDispatcher(" + name + ", lanes:" + lanes.size() + ", queue:" + queueSize
+            +  ", key:" + keyStr + ", queued:" + depth() + ", dispatched:" + dispatched.get()
+            +  ", failed:" + failed.get() + ")";
+   } // description
+
+} // HL7PartitionedDispatcher
@@ -0,0 +1,423 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7PipelinedMLLPStream.java : A windowed MLLP writer, which keeps several
+ *                                messages outstanding.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.io.IOException;
+
+import java.net.SocketTimeoutException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import us.conxio.hl7.hl7message.HL7Message;
+
+/**
+ * A MLLP writer which keeps up to a window of messages outstanding, rather
+ * than waiting for the acknowledgment of each message before sending the next,
+ * so that throughput is not bounded by the round trip time to the destination.
+ * <p>
+ * Messages are written in order, on a single connection, and the returning
+ * acknowledgments are matched to the outstanding messages by MSA.2, on a
+ * reader thread. The outcome of each message is available from the
+ * HL7AckFuture returned by send(), which is shared by concurrent senders, each
+ * of which waits for the acknowledgment of its own message, as does HL7Route.
+ * <p>
+ * The HL7Stream write() method does not wait for the acknowledgment, for a
+ * single writer of a bulk transfer, which stops at the first failure; the
+ * rejection of a message so written, which names the rejected message, or the
+ * loss of its acknowledgment, is instead thrown by the following write(),
+ * drain() or close(). The failure of a message sent by send() is reported
+ * only by its HL7AckFuture.
+ * <p>
+ * When the acknowledgment of a message has not arrived within the socket
+ * timeout of its sending, that message fails as timed out, and the connection
+ * is closed, as when it is lost. When the connection is lost, every
+ * outstanding message fails, and the stream is closed, to be reopened by its
+ * next user.
+ * <p>
+ * Selected by the window=N query parameter of a socket URI, as in
+ * mllp://host:port?window=8
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7PipelinedMLLPStream extends HL7MLLPStream {
+   /**
+    * The number of outstanding messages used if none is specified.
+    */
+   public static final int    DEFAULT_WINDOW = 8;
+   private static Logger      logger = Logger.getLogger(HL7PipelinedMLLPStream.class);
+
+   private final int                                     window;
+   private final Semaphore                               slots;
+   /**
+    * The outstanding messages, by control id, in the order sent.
+    */
+   private final LinkedHashMap<String, HL7AckFuture>     pending = new LinkedHashMap<String, HL7AckFuture>();
+   private final Object                                  writeLock = new Object();
+   private HL7IOException                                deferredFailure;
+   private Thread                                        ackReader;
+   /**
+    * Set when the acknowledgment reader stops, after which nothing may be sent.
+    */
+   private boolean                                       readerStopped;
+
+
+   /**
+    * Creates a pipelined outgoing tcp socket stream to the argument host and port.
+    * @param host The host DNS name to which the connection is requested.
+    * @param port The tcp port number upon which the connection is requested.
+    * @param windowSize The maximum number of unacknowledged messages, or
+    * 0 for DEFAULT_WINDOW.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7PipelinedMLLPStream(String host, int port, int windowSize) throws HL7IOException {
+      super(host, port);
+      window = (windowSize < 1) ? DEFAULT_WINDOW : windowSize;
+      slots = new Semaphore(window, true);
+   } // HL7PipelinedMLLPStream
+
+
+   /**
+    * Opens the connection, and starts the acknowledgment reader.
+    * @return true if the operation is successful, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public synchronized boolean open() throws HL7IOException {
+      if (isOpen() && ackReader != null) return true;
+
+      super.open();
+      synchronized (pending) {
+         readerStopped = false;
+         // * the failures of the previous connection were reported to its senders.
+         deferredFailure = null;
+      } // synchronized
+
+      ackReader = new Thread(new Runnable() {
+         public void run() { readAcks(); }
+      }, "HL7PipelinedMLLPStream(" + host + ":" + port + ")");
+      ackReader.setDaemon(true);
+      ackReader.start();
+      return true;
+   } // open
+
+
+   /**
+    * Sends the argument message, waiting only if the window is full.
+    * @param msg the HL7Message object to be written.
+    * @return the pending acknowledgment of the message.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if the message could not be written.
+    */
+   public HL7AckFuture send(HL7Message msg) throws HL7IOException {
+      return send(msg, false);
+   } // send
+
+
+   private HL7AckFuture send(HL7Message msg, boolean deferred) throws HL7IOException {
+      if (msg == null) {
+         throw new HL7IOException("Null HL7 Msg.", HL7IOException.NULL_MSG);
+      } // if
+
+      // * a connection closed on its loss, or timeout, is reopened by its next user.
+      if (!isOpen()) open();
+
+      String msgCtlID = msg.controlID();
+      try {
+         slots.acquire();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new HL7IOException(pipelineID() + ".send(): interrupted.", ex);
+      } // try - catch
+
+      HL7AckFuture future = new HL7AckFuture(msg, deferred);
+      synchronized (pending) {
+         if (readerStopped) {
+            slots.release();
+            throw new HL7IOException(  pipelineID() + ".send(): acknowledgment reader stopped.",
+                                       HL7IOException.STREAM_CLOSED);
+         } // if
+
+         if (pending.containsKey(msgCtlID)) {
+            slots.release();
+            throw new HL7IOException(  pipelineID() + ".send(): " + msgCtlID + " is already outstanding.",
+                                       HL7IOException.WRONG_CTLID);
+         } // if
+
+         pending.put(msgCtlID, future);
+      } // synchronized
+
+      try {
+         synchronized (writeLock) {
+            writeMsg(msg);
+         } // synchronized
+      } catch (HL7IOException ioEx) {
+         synchronized (pending) {
+            pending.remove(msgCtlID);
+         } // synchronized
+
+         slots.release();
+         throw ioEx;
+      } // try - catch
+
+      if (logger.isTraceEnabled()) logger.trace("send(" + msg.idString() + "): sent.");
+      return future;
+   } // send
+
+
+   /**
+    * Sends the argument message, without waiting for its acknowledgment.
+    * @param hl7Msg the HL7Message object to be written.
+    * @return true if the operation is successful, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if a previously sent
+    * message was rejected, or the message could not be written.
+    */
+   public boolean write(HL7Message hl7Msg) throws HL7IOException {
+      throwDeferredFailure();
+      send(hl7Msg, true);
+      return true;
+   } // write
+
+
+   /**
+    * Waits for the acknowledgment of every outstanding message.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if a previously sent
+    * message was rejected.
+    */
+   public void drain() throws HL7IOException {
+      try {
+         slots.acquire(window);
+         slots.release(window);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new HL7IOException(pipelineID() + ".drain(): interrupted.", ex);
+      } // try - catch
+
+      throwDeferredFailure();
+   } // drain
+
+
+   /**
+    * Waits for the outstanding acknowledgments, and closes the stream.
+    * @return true if the operation is successful, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if a previously sent
+    * message was rejected.
+    */
+   public boolean close() throws HL7IOException {
+      try {
+         if (isOpen()) drain();
+      } finally {
+         super.close();
+      } // try - finally
+
+      return true;
+   } // close
+
+
+   /**
+    * @return the maximum number of unacknowledged messages.
+    */
+   public int window() {
+      return window;
+   } // window
+
+
+   /**
+    * @return the number of messages sent, but not yet acknowledged.
+    */
+   public int outstanding() {
+      synchronized (pending) {
+         return pending.size();
+      } // synchronized
+   } // outstanding
+
+
+   private void throwDeferredFailure() throws HL7IOException {
+      HL7IOException failure;
+      synchronized (pending) {
+         failure = deferredFailure;
+         deferredFailure = null;
+      } // synchronized
+
+      if (failure != null) throw failure;
+   } // throwDeferredFailure
+
+
+   private void readAcks() {
+      try {
+         while (isOpen()) {
+            String frame;
+            try {
+               frame = codec.readFrame(in);
+            } catch (SocketTimeoutException stEx) {
+               // * the read timed out, but a message sent since it began may not have.
+               if (failExpired(stEx) == 0) continue;
+               break;
+            } // try - catch
+
+            if (frame == null) break;
+
+            if (!frame.isEmpty()) acknowledge(new HL7Message(frame));
+         } // while
+      } catch (IOException ioEx) {
+         if (isOpen()) logger.error(pipelineID() + ": IOException", ioEx);
+      } finally {
+         synchronized (pending) {
+            readerStopped = true;
+         } // synchronized
+
+         failAll(new HL7IOException(pipelineID() + ": connection lost.",
+                                    HL7IOException.STREAM_CLOSED));
+         disconnect();
+      } // try - catch - finally
+   } // readAcks
+
+
+   /**
+    * Closes the connection of a stopped acknowledgment reader, unless the
+    * stream has since been closed, or reopened, so that the next user of the
+    * stream reconnects, rather than failing to send.
+    */
+   private synchronized void disconnect() {
+      if (ackReader != Thread.currentThread() || !isOpen()) return;
+
+      try {
+         super.close();
+      } catch (HL7IOException ioEx) {
+         logger.debug(pipelineID() + ": closing a lost connection:" + ioEx.getMessage());
+      } // try - catch
+   } // disconnect
+
+
+   private void acknowledge(HL7Message reply) {
+      String ackCode = reply.get("MSA.1");
+      String replyCtlID = reply.get("MSA.2");
+
+      HL7AckFuture future;
+      boolean inOrder;
+      synchronized (pending) {
+         Iterator<String> ids = pending.keySet().iterator();
+         inOrder = ids.hasNext() && ids.next().equals(replyCtlID);
+         future = replyCtlID == null ? null : pending.remove(replyCtlID);
+      } // synchronized
+
+      if (future == null) {
+         logger.warn(pipelineID() + ": unmatched acknowledgment " + reply.idString() + " for " + replyCtlID);
+         return;
+      } // if
+
+      if (!inOrder) {
+         logger.warn(pipelineID() + ": acknowledgment for " + replyCtlID + " out of order.");
+      } // if
+
+      slots.release();
+      if (HL7Message.ACK_CODE_OK.equals(ackCode)) {
+         future.complete(reply);
+         return;
+      } // if
+
+      HL7IOException hiEx = new HL7IOException( pipelineID()
+                                             +  ": NAck ("
+                                             +  ackCode
+                                             +  ") received with "
+                                             +  replyCtlID
+                                             +  " in "
+                                             +  reply.idString(),
+                                         HL7IOException.HL7_NACK);
+      logger.error(hiEx.getMessage());
+      if (future.isDeferred()) {
+         synchronized (pending) {
+            if (deferredFailure == null) deferredFailure = hiEx;
+         } // synchronized
+      } // if
+
+      future.fail(reply, hiEx);
+   } // acknowledge
+
+
+   /**
+    * Fails the outstanding messages sent at least the socket timeout ago.
+    * @return the number of messages failed.
+    */
+   private int failExpired(SocketTimeoutException stEx) {
+      long timeOutNanos = TimeUnit.SECONDS.toNanos(timeOutSeconds);
+      long now = System.nanoTime();
+      HL7IOException ex = new HL7IOException(pipelineID() + ": acknowledgment timed out.",
+                                             HL7IOException.IO_EXCEPTION, stEx);
+      List<HL7AckFuture> failed = new ArrayList<HL7AckFuture>();
+      synchronized (pending) {
+         // * the messages are in the order sent; the oldest first.
+         Iterator<HL7AckFuture> futures = pending.values().iterator();
+         while (futures.hasNext()) {
+            HL7AckFuture future = futures.next();
+            if (!future.sentBefore(timeOutNanos, now)) break;
+
+            futures.remove();
+            failed.add(future);
+            if (future.isDeferred() && deferredFailure == null) deferredFailure = ex;
+         } // while
+      } // synchronized
+
+      if (!failed.isEmpty()) logger.error(ex.getMessage() + " " + failed.size() + " message(s) unacknowledged.");
+      for (HL7AckFuture future : failed) {
+         future.fail(null, ex);
+         slots.release();
+      } // for
+
+      return failed.size();
+   } // failExpired
+
+
+   /**
+    * Fails every outstanding message, as when the connection is lost.
+    */
+   private void failAll(HL7IOException ex) {
+      List<HL7AckFuture> failed;
+      synchronized (pending) {
+         failed = new ArrayList<HL7AckFuture>(pending.values());
+         pending.clear();
+         for (HL7AckFuture future : failed) {
+            if (future.isDeferred() && deferredFailure == null) deferredFailure = ex;
+         } // for
+      } // synchronized
+
+      if (!failed.isEmpty()) logger.error(ex.getMessage() + " " + failed.size() + " message(s) unacknowledged.");
+      for (HL7AckFuture future : failed) {
+         future.fail(null, ex);
+         slots.release();
+      } // for
+   } // failAll
+
+
+   private String pipelineID() {
+      return "HL7PipelinedMLLPStream(" + host + ":" + port + ", window:" + window + ")";
+   } // pipelineID
+
+} // HL7PipelinedMLLPStream
@@ -27,10 +27,13 @@ package us.conxio.hl7.hl7stream;
 
 import java.io.IOException;
 
+import java.lang.reflect.Method;
+
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URI;
 
+import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -58,6 +61,9 @@ class HL7ServiceWorker  implements Runnable {
      * A flag to control use of SSL for network i/o.
      */
     private static Logger        logger         = HL7Logger.getHL7Logger();
+    private String               ackMode        = HL7Server.ACK_IMMEDIATE;
+    private int                  ackBatchSize   = HL7Server.DEFAULT_ACK_BATCH_SIZE;
+    private HL7DispatchQueue     dispatchQueue  = null;
     private int                  msgCount       = 0;
     private String               currentMsgID   = null;
     private String               threadID       = null;
@@ -77,6 +83,33 @@ class HL7ServiceWorker  implements Runnable {
     } // constructor
 
 
+    /**
+     * Creates an instance of the HL7MessageServiceWorker class, which
+     * acknowledges messages according to the argument acknowledgment mode.
+     * @param clientSocket A socket containing the connection request accepted by the server.
+     * @param svc The HL7MessageService which runs the server.
+     * @param ackMode The acknowledgment mode, as a HL7Server ACK_ value.
+     * @param ackBatchSize The largest number of acknowledgments to defer in ACK_BATCH mode.
+     */
+    public HL7ServiceWorker(Socket clientSocket, HL7MessageHandler svc, String ackMode, int ackBatchSize) {
+        this(clientSocket, svc);
+        if (ackMode != null) this.ackMode = ackMode;
+        if (ackBatchSize > 0) this.ackBatchSize = ackBatchSize;
+    } // constructor
+
+
+    /**
+     * Creates an instance of the HL7MessageServiceWorker class, which only
+     * reads messages, and hands them off to the argument dispatch queue.
+     * @param clientSocket A socket containing the connection request accepted by the server.
+     * @param queue The dispatch queue of the server.
+     */
+    public HL7ServiceWorker(Socket clientSocket, HL7DispatchQueue queue) {
+        this.clientSocket = clientSocket;
+        this.dispatchQueue = queue;
+    } // constructor
+
+
     /**
      * The run method for the thread pooled services under a HL7MessageServer.
      * <ul>This method
@@ -100,18 +133,128 @@ class HL7ServiceWorker  implements Runnable {
       try {
           inboundStream = new HL7MLLPStream(clientSocket, true);
 
-          HL7Message inboundMsg = null;
-          while ( (inboundMsg = this.inboundStream.read()) != null) {
-            currentMsgID = inboundMsg.idString();
-            if (msgHandler.dispatch(inboundMsg) > 0) {
-               ++msgCount;
-            } // if
-          } // while
+          if (dispatchQueue != null) {
+             runQueued();
+          } else if (HL7Server.ACK_AFTER_DISPATCH.equals(ackMode)) {
+             runAckAfterDispatch();
+          } else if (HL7Server.ACK_BATCH.equals(ackMode)) {
+             runAckBatch();
+          } else {
+             HL7Message inboundMsg = null;
+             while ( (inboundMsg = this.inboundStream.read()) != null) {
+               currentMsgID = inboundMsg.idString();
+               if (msgHandler.dispatch(inboundMsg) > 0) {
+                  ++msgCount;
+               } // if
+             } // while
+          } // if - else if - else
       } catch (Exception ex) {
           logger.error("Exception: ", ex);
       } // try - catch
    } // run
 
+
+   /**
+    * Reads messages, and hands them off to the dispatch queue, acknowledging
+    * them first if the queue acknowledges on receipt. Once the connection ends,
+    * waits for the messages still queued to be dispatched.
+    */
+   private void runQueued() throws HL7IOException {
+      HL7DispatchQueue.Lane lane = dispatchQueue.newLane(inboundStream);
+      try {
+         HL7Message inboundMsg = null;
+         while ( (inboundMsg = this.inboundStream.receive()) != null) {
+            currentMsgID = inboundMsg.idString();
+            if (dispatchQueue.isAckOnReceipt()) inboundStream.acknowledge(inboundMsg, null);
+            lane.put(inboundMsg);
+            ++msgCount;
+         } // while
+      } finally {
+         try {
+            lane.awaitDrained();
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         } // try - catch
+      } // try - finally
+   } // runQueued
+
+
+   /**
+    * Dispatches the argument message, reporting rather than throwing any failure.
+    * @return null if the message was dispatched, otherwise the reason it was not.
+    */
+   private String dispatchQuietly(HL7Message inboundMsg) {
+      currentMsgID = inboundMsg.idString();
+      try {
+         if (msgHandler.dispatch(inboundMsg) > 0) ++msgCount;
+         return null;
+      } catch (Exception ex) {
+         logger.error("dispatch(" + currentMsgID + "): Exception: ", ex);
+         return ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+      } // try - catch
+   } // dispatchQuietly
+
+
+   /**
+    * Acknowledges each message once it has been dispatched, rejecting (AE)
+    * any which fail to dispatch.
+    */
+   private void runAckAfterDispatch() throws HL7IOException {
+      HL7Message inboundMsg = null;
+      while ( (inboundMsg = this.inboundStream.receive()) != null) {
+         inboundStream.acknowledge(inboundMsg, dispatchQuietly(inboundMsg));
+      } // while
+   } // runAckAfterDispatch
+
+
+   /**
+    * Dispatches messages as they arrive, but defers their acknowledgments until
+    * no more input is pending, or ackBatchSize messages have been dispatched.
+    * A HL7DurableMessageHandler is then synchronized once, for all of the
+    * deferred messages, before they are acknowledged together.
+    */
+   private void runAckBatch() throws HL7IOException {
+      ArrayList<HL7Message> received = new ArrayList<HL7Message>();
+      ArrayList<String>     errors = new ArrayList<String>();
+
+      HL7Message inboundMsg = null;
+      while ( (inboundMsg = this.inboundStream.receive()) != null) {
+         received.add(inboundMsg);
+         errors.add(dispatchQuietly(inboundMsg));
+         if (received.size() >= ackBatchSize || !inboundStream.isInputPending()) {
+            acknowledgeBatch(received, errors);
+         } // if
+      } // while
+
+      acknowledgeBatch(received, errors);
+   } // runAckBatch
+
+
+   private void acknowledgeBatch(ArrayList<HL7Message> received, ArrayList<String> errors)
+   throws HL7IOException {
+      if (received.isEmpty()) return;
+
+      String syncError = null;
+      if (msgHandler instanceof HL7DurableMessageHandler) {
+         try {
+            ((HL7DurableMessageHandler)msgHandler).sync();
+         } catch (HL7IOException ioEx) {
+            logger.error("sync(): HL7IOException: ", ioEx);
+            syncError = "Not stored:" + ioEx.getMessage();
+         } // try - catch
+      } // if
+
+      if (syncError != null) {
+         for (int index = 0; index < errors.size(); ++index) {
+            if (errors.get(index) == null) errors.set(index, syncError);
+         } // for
+      } // if
+
+      inboundStream.acknowledgeAll(received, errors);
+      received.clear();
+      errors.clear();
+   } // acknowledgeBatch
+
 } // HL7ServiceWorker
 
 
@@ -122,6 +265,25 @@ class HL7ServiceWorker  implements Runnable {
  * @author scott herman <scott.herman@unconxio.us>
  */
 public class HL7Server implements Runnable, HL7Stream {
+   /**
+    * Acknowledgment mode: each message is acknowledged as soon as it is received.
+    */
+   public static final String    ACK_IMMEDIATE = "immediate";
+   /**
+    * Acknowledgment mode: each message is acknowledged once it has been
+    * dispatched, and rejected (AE), with the failure in MSA-3, if the dispatch fails.
+    */
+   public static final String    ACK_AFTER_DISPATCH = "dispatch";
+   /**
+    * Acknowledgment mode: acknowledgments are deferred over several dispatched
+    * messages, until a HL7DurableMessageHandler has made them durable.
+    */
+   public static final String    ACK_BATCH = "batch";
+   /**
+    * The largest number of deferred acknowledgments, if none is specified.
+    */
+   public static final int       DEFAULT_ACK_BATCH_SIZE = 32;
+
    /**
     * The port at which the server will listen for connection requests.
     */
@@ -150,8 +312,28 @@ public class HL7Server implements Runnable, HL7Stream {
     * The socket which the server uses to accept connection requests.
     */
    protected ServerSocket        serverSock;
+   /**
+    * The acknowledgment mode, as an ACK_ value.
+    */
+   protected String              ackMode = ACK_IMMEDIATE;
+   /**
+    * The largest number of deferred acknowledgments in ACK_BATCH mode.
+    */
+   protected int                 ackBatchSize = DEFAULT_ACK_BATCH_SIZE;
+   /**
+    * The largest number of queued messages per connection, or 0 to dispatch
+    * messages on the thread which reads the connection.
+    */
+   protected int                 queueCapacity = 0;
+   /**
+    * The hand-off queue to the dispatch threads, if queueCapacity is set.
+    */
+   protected HL7DispatchQueue    dispatchQueue;
    private static Logger         logger = HL7Logger.getHL7Logger();
-   private int                   status;
+   /**
+    * The status of the server, as a HL7Stream status value.
+    */
+   protected int                 status;
    
    
    private HL7Server() {
@@ -202,6 +384,85 @@ public class HL7Server implements Runnable, HL7Stream {
    } // HL7Server constructor
 
 
+   /**
+    * Create a server, with localhost as host, which runs its HL7ServiceWorker
+    * instances on the argument executor, rather than on a fixed thread pool,
+    * registering the argument handler.
+    * @param port The port no. for the server to listen on for connection requests.
+    * @param executor The executor on which to run a HL7ServiceWorker per connection.
+    * @param handler The dispatch handler for incoming HL7Message objects.
+    */
+   public HL7Server(int port, ExecutorService executor, HL7MessageHandler handler) {
+      this();
+      serverPort = port;
+      threadPool = executor;
+      msgHandler = handler;
+   } // HL7Server constructor
+
+
+   /**
+    * Creates an executor which starts a new virtual thread for each task,
+    * so that the number of concurrent connections of a server is not bounded by
+    * a pool size, as blocking reads park the virtual thread rather than
+    * holding a platform thread.
+    * Virtual threads are looked up by reflection, so that the server may still be
+    * built for, and run on, earlier Java versions, where an unbounded
+    * cached thread pool is created instead.
+    * @return the created executor.
+    */
+   public static ExecutorService newVirtualThreadExecutor() {
+      try {
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService)factory.invoke(null);
+      } catch (Exception ex) {
+         logger.warn("HL7Server.newVirtualThreadExecutor(): virtual threads not available, "
+                   + "using a cached thread pool:" + ex.toString());
+         return Executors.newCachedThreadPool();
+      } // try - catch
+   } // newVirtualThreadExecutor
+
+
+   /**
+    * Sets the acknowledgment mode of the server.
+    * @param mode ACK_IMMEDIATE, ACK_AFTER_DISPATCH or ACK_BATCH, or null for ACK_IMMEDIATE.
+    * @param batchSize The largest number of deferred acknowledgments in ACK_BATCH
+    * mode, or 0 for DEFAULT_ACK_BATCH_SIZE.
+    */
+   public void setAckMode(String mode, int batchSize) {
+      if (mode != null
+      &&  !mode.equals(ACK_IMMEDIATE)
+      &&  !mode.equals(ACK_AFTER_DISPATCH)
+      &&  !mode.equals(ACK_BATCH)) {
+         throw new IllegalArgumentException("HL7Server.setAckMode(" + mode + "):Unknown acknowledgment mode.");
+      } // if
+
+      ackMode = (mode == null) ? ACK_IMMEDIATE : mode;
+      ackBatchSize = (batchSize < 1) ? DEFAULT_ACK_BATCH_SIZE : batchSize;
+   } // setAckMode
+
+
+   /**
+    * Sets the number of messages per connection which may be queued for
+    * dispatch by a separate pool of poolSize threads (or of a thread per
+    * processor, for a server on an executor), so that the connections are
+    * read independently of the dispatch of their messages.
+    * @param capacity the largest number of queued messages per connection,
+    * or 0 to dispatch each message on the thread which read it.
+    */
+   public void setQueueCapacity(int capacity) {
+      queueCapacity = Math.max(capacity, 0);
+   } // setQueueCapacity
+
+
+   /**
+    * @return the dispatch queue of the running server, for monitoring, or null
+    * if messages are not queued.
+    */
+   public HL7DispatchQueue getDispatchQueue() {
+      return dispatchQueue;
+   } // getDispatchQueue
+
+
    /**
     * Set the message dispatch handler to the argument object.
     * @param handler
@@ -221,6 +482,17 @@ public class HL7Server implements Runnable, HL7Stream {
       } // synchronized
 
       String detailedIDString = detailedIDString() + ".run:";
+      synchronized (this) {
+         if (queueCapacity > 0 && dispatchQueue == null) {
+            dispatchQueue = new HL7DispatchQueue(  queueCapacity,
+                                                   poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors(),
+                                                   msgHandler,
+                                                   ackMode,
+                                                   ackBatchSize,
+                                                   "HL7Server-" + serverPort);
+         } // if
+      } // synchronized
+
       logger.info(detailedIDString + " Started.");
 
       while (!isStopped) {
@@ -244,7 +516,9 @@ public class HL7Server implements Runnable, HL7Stream {
          } // try - catch
 
          if (clientSocket != null) {
-            threadPool.execute(new HL7ServiceWorker(clientSocket, msgHandler) );
+            threadPool.execute(dispatchQueue != null
+                             ? new HL7ServiceWorker(clientSocket, dispatchQueue)
+                             : new HL7ServiceWorker(clientSocket, msgHandler, ackMode, ackBatchSize) );
          } // if
       } // while
       
@@ -278,7 +552,9 @@ public class HL7Server implements Runnable, HL7Stream {
             status = HL7Stream.CLOSED;
         } catch (IOException ioEx) {
             throw new RuntimeException("Error closing server", ioEx);
-        } // try - catch
+        } finally {
+            if (dispatchQueue != null) dispatchQueue.shutdown();
+        } // try - catch - finally
     } // stop
 
 
@@ -25,10 +25,9 @@
 
 package us.conxio.hl7.hl7stream;
 
-import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 
 import java.net.Socket;
@@ -39,6 +38,7 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
 
 
+import us.conxio.hl7.hl7message.HL7AckWriter;
 import us.conxio.hl7.hl7message.HL7Message;
 
 
@@ -71,9 +71,13 @@ public class HL7SocketStream extends HL7StreamBase implements HL7Stream {
     */
    Socket                  socket;
    /**
-    * The BufferedReader used for reading the socket.
+    * The InputStream used for reading the socket.
     */
-   BufferedReader          in;
+   InputStream             in;
+   /**
+    * The codec which buffers the socket input, and decodes MLLP frames from it.
+    */
+   HL7MLLPCodec            codec = new HL7MLLPCodec();
    /**
     * The BufferedWriter used for writing to the socket.
     */
@@ -180,7 +184,7 @@ public class HL7SocketStream extends HL7StreamBase implements HL7Stream {
    private boolean openReader() throws HL7IOException {
       try {
          this.out = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream()));
-         this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+         this.in = this.socket.getInputStream();
       } catch (IOException ioEx) {
          throw new HL7IOException("HL7SocketStream(sock):IOException", ioEx);
       } // try - catch
@@ -197,7 +201,7 @@ public class HL7SocketStream extends HL7StreamBase implements HL7Stream {
          sock = new Socket(this.host, this.port);
          sock.setSoTimeout(this.timeOutSeconds * 1000);
          this.out = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
-         this.in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+         this.in = sock.getInputStream();
       } catch (UnknownHostException uhEx) {
          throw new HL7IOException(  "HL7SocketStream(" + host + ", " + port + "):UnknownHost.",
                                     HL7IOException.UNKNOWN_HOST);
@@ -235,31 +239,8 @@ public class HL7SocketStream extends HL7StreamBase implements HL7Stream {
 
 
    private String _readMsg() throws HL7IOException {
-      StringBuilder  hl7Msg = new StringBuilder();
-      int            inData;
-      boolean        startFound = false,
-                     fsFound = false;
-
       try {
-         while ( (inData = in.read()) != -1) {
-            if (inData == STX) {
-               startFound = true;
-               continue;
-            } // if
-
-            if (inData == FS) {
-               fsFound = true;
-               continue;
-            } // if
-
-            if (inData == EOB && fsFound == true) {
-               return(hl7Msg.toString());
-            } // if
-
-            if (startFound == true) {
-               hl7Msg.append( (char)inData);
-            } // if
-         } // while
+         return codec.readFrame(in);
       } catch (IOException ioEx) {
          throw new HL7IOException(  "HL7SocketStream("
                                  +  this.host
@@ -267,12 +248,6 @@ public class HL7SocketStream extends HL7StreamBase implements HL7Stream {
                                  +  this.port
                                  +  "):IOException", ioEx);
       } // try - catch
-
-      if (hl7Msg.length() > 0) {
-         return hl7Msg.toString();
-      } // if
-
-      return null;
    } // _readMsg
 
 
@@ -328,7 +303,7 @@ public class HL7SocketStream extends HL7StreamBase implements HL7Stream {
          return null;
       } // if
 
-      HL7Message msg = new HL7Message(msgStr);
+      HL7Message msg = new HL7Message(msgStr, true);
       String msgCtlID = msg.get("MSH.10");
       String traceHeader = new StringBuffer( "read(): got [")
                                     .append( msg.idString())
@@ -336,17 +311,14 @@ public class HL7SocketStream extends HL7StreamBase implements HL7Stream {
                                     .append( msgCtlID)
                                     .append( "]:").toString();
       HL7SocketStream.logger.trace(traceHeader);
-      HL7SocketStream.logger.trace(msg.toHL7String());
-
-      HL7Message ack = msg.acknowledgment(true, "ok", null, null);
-      traceHeader = new StringBuffer( "read(): Sending acknowledgment [")
-                              .append(ack.idString())
-                              .append("].[")
-                              .append(ack.get("MSH.10"))
-                              .append( "]:").toString();
-      this.writeMsg(ack.toHL7String());
-      HL7SocketStream.logger.trace(traceHeader);
-      HL7SocketStream.logger.trace(ack.toHL7String());
+      if (HL7SocketStream.logger.isTraceEnabled()) HL7SocketStream.logger.trace(msg.toHL7String());
+
+      String ack = HL7AckWriter.toHL7String(msg, true);
+      this.writeMsg(ack);
+      if (HL7SocketStream.logger.isTraceEnabled()) {
+         HL7SocketStream.logger.trace("read(): Sent acknowledgment [" + msgCtlID + "]:");
+         HL7SocketStream.logger.trace(ack);
+      } // if
 
       return(msg);
    } // read
@@ -383,23 +355,57 @@ public class HL7SocketStream extends HL7StreamBase implements HL7Stream {
    } // writeMsg
 
 
+   /**
+    * Writes the argument HL7Message object on the context outbound stream,
+    * serializing it directly to the stream within the MLLP frame.
+    * @param msg the HL7Message object to be written.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public void writeMsg(HL7Message msg) throws HL7IOException {
+      if (msg == null) {
+         throw new HL7IOException(  "HL7SocketStream.writeMsg:Null HL7 Msg.",
+                                    HL7IOException.NULL_MSG);
+      } // if
+
+      if (!this.isOpen() || this.out == null) {
+         this.open();
+      } // if
+
+      try {
+         this.out.write(HL7SocketStream.STX);
+         msg.writeTo(this.out);
+         this.out.write(HL7SocketStream.FS);
+         this.out.write(HL7SocketStream.EOB);
+         this.out.flush();
+      } catch (IOException ioEx) {
+         throw new HL7IOException(  "HL7SocketStream("
+                                 +  this.host
+                                 +  ", "
+                                 +  this.port
+                                 +  ").writeMsg:IOException", ioEx);
+      } // try - catch
+   } // writeMsg
+
+
    /**
     * Writes the argument HL7Message object on the context outbound stream.
     * @param hl7Msg the HL7Message object to be written.
     * @return true if the operation is successful, otherwise false.
     * @throws us.conxio.HL7.HL7Stream.HL7IOException
     */
-   @SuppressWarnings("empty-statement")
    public boolean write(HL7Message hl7Msg) throws HL7IOException {
       String msgCtlID = hl7Msg.controlID();
       String traceHeader = "write(" + hl7Msg.idString() + "):";
       HL7SocketStream.logger.trace(traceHeader + " writing.");
-      this.writeMsg(hl7Msg.toHL7String());
+      this.writeMsg(hl7Msg);
       HL7SocketStream.logger.trace(traceHeader + " wrote.");
 
-      String hl7MsgStr;
-      while ( (hl7MsgStr = this.readMsg() ) == null)
-         ;
+      // * the frame reader blocks until a frame arrives, so null means no acknowledgment will.
+      String hl7MsgStr = this.readMsg();
+      if (hl7MsgStr == null) {
+         throw new HL7IOException(  "HL7SocketStream(" + host + ", " + port + "):No acknowledgment received for " + msgCtlID,
+                                    HL7IOException.STREAM_CLOSED);
+      } // if
 
       // * If sent msg has no encoding characters then the ack will have no encoders either.
       logger.trace("read:" + hl7MsgStr);
@@ -0,0 +1,282 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7StreamPool.java : A pool of outbound HL7 socket streams to a single
+ *                       destination.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import us.conxio.hl7.hl7message.HL7Message;
+
+/**
+ * A thread safe pool of outbound socket streams to a single destination, so
+ * that concurrent writers, such as the worker threads of a HL7Server, deliver
+ * in parallel, rather than through one shared connection.
+ * <p>
+ * Every connection is opened when the pool is opened. Each write leases an idle,
+ * connected stream, waiting for one if need be, and returns it to the pool
+ * once the message is acknowledged. A stream which fails, or is found to be
+ * disconnected, is closed, and reconnected in the background, with an
+ * exponential backoff, while the other streams carry on.
+ * A rejected message (NAck) does not affect the stream on which it was sent.
+ * <p>
+ * Selected by the connections=N query parameter of a socket URI, as in
+ * mllp://host:port?connections=4. The window=N parameter is rejected with it,
+ * as a write holds its stream until its own message is acknowledged, so that
+ * a pipelined stream would carry but one message at a time.
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7StreamPool extends HL7StreamBase {
+   /**
+    * The longest time, in milliseconds, for which a write waits for a connection.
+    */
+   public static final long      DEFAULT_LEASE_TIMEOUT = 30 * 1000;
+   private static final long     INITIAL_BACKOFF = 500,
+                                 MAX_BACKOFF = 60 * 1000;
+   private static Logger         logger = Logger.getLogger(HL7StreamPool.class);
+
+   private final HL7StreamURI                      uri;
+   private final ArrayList<HL7Stream>              members = new ArrayList<HL7Stream>();
+   private final LinkedBlockingQueue<HL7Stream>    idle = new LinkedBlockingQueue<HL7Stream>();
+   private ScheduledExecutorService                reconnector;
+   private long                                    leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+
+
+   /**
+    * Creates a pool of the argument number of socket streams to the destination
+    * of the argument URI. No connection is made until the pool is opened.
+    * @param streamURI The socket URI of the destination.
+    * @param connections The number of connections to maintain.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if the URI also specifies a window.
+    */
+   public HL7StreamPool(HL7StreamURI streamURI, int connections) throws HL7IOException {
+      if (streamURI.uriWindowSize() > 1) {
+         throw new HL7IOException(  "HL7StreamPool():window cannot be combined with connections:" + streamURI,
+                                    HL7IOException.UNINTERPERABLE_URI);
+      } // if
+
+      uri = streamURI;
+      directive = WRITER;
+      mediaType = SOCKET_TYPE;
+      for (int index = 0; index < Math.max(connections, 1); ++index) {
+         members.add(uri.getSocketWriter());
+      } // for
+   } // HL7StreamPool
+
+
+   /**
+    * Sets the longest time for which a write waits for an available connection.
+    * @param millis the lease timeout, in milliseconds.
+    */
+   public void setLeaseTimeout(long millis) {
+      leaseTimeout = millis;
+   } // setLeaseTimeout
+
+
+   /**
+    * Opens the pool, connecting every stream. A stream which cannot be
+    * connected is retried in the background.
+    * @return true, once the pool is open, whether or not any stream is connected.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public synchronized boolean open() throws HL7IOException {
+      if (isOpen()) return true;
+
+      reconnector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "HL7StreamPool(" + uri + ")");
+            thread.setDaemon(true);
+            return thread;
+         } // newThread
+      });
+
+      statusValue = OPEN;
+      for (HL7Stream member : members) connect(member, INITIAL_BACKOFF);
+      logger.debug(description() + " opened.");
+      return true;
+   } // open
+
+
+   private void connect(HL7Stream member, long backoff) {
+      try {
+         member.open();
+         idle.offer(member);
+      } catch (HL7IOException ioEx) {
+         logger.warn(description() + ": connection failed, retrying in " + backoff + "ms:" + ioEx.getMessage());
+         reconnect(member, backoff);
+      } // try - catch
+   } // connect
+
+
+   private void reconnect(final HL7Stream member, final long backoff) {
+      if (!isOpen()) return;
+
+      try {
+         reconnector.schedule(new Runnable() {
+            public void run() {
+               if (isOpen()) connect(member, Math.min(backoff << 1, MAX_BACKOFF));
+            } // run
+         }, backoff, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException reEx) {
+         logger.debug(description() + ": closed, not reconnecting.");
+      } // try - catch
+   } // reconnect
+
+
+   /**
+    * Takes an idle, connected stream from the pool, waiting for one if need be.
+    */
+   private HL7Stream lease() throws HL7IOException {
+      long deadline = System.currentTimeMillis() + leaseTimeout;
+      while (true) {
+         if (!isOpen()) {
+            throw new HL7IOException(description() + ".write(): closed.", HL7IOException.STREAM_CLOSED);
+         } // if
+
+         HL7Stream member;
+         try {
+            member = idle.poll(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HL7IOException(description() + ".write(): interrupted.", ex);
+         } // try - catch
+
+         if (member == null) {
+            throw new HL7IOException(  description() + ".write(): no connection available.",
+                                       HL7IOException.IO_EXCEPTION);
+         } // if
+
+         if (isConnected(member)) return member;
+         discard(member);
+      } // while
+   } // lease
+
+
+   private static boolean isConnected(HL7Stream member) {
+      if (!member.isOpen()) return false;
+      return !(member instanceof HL7MLLPStream) || ((HL7MLLPStream)member).isConnected();
+   } // isConnected
+
+
+   /**
+    * Closes the argument stream, and reconnects it in the background.
+    */
+   private void discard(HL7Stream member) {
+      try {
+         member.close();
+      } catch (HL7IOException ioEx) {
+         logger.debug(description() + ": closing a failed connection:" + ioEx.getMessage());
+      } // try - catch
+
+      reconnect(member, INITIAL_BACKOFF);
+   } // discard
+
+
+   /**
+    * Writes the argument message on a leased stream.
+    * @param msg the HL7Message object to be written.
+    * @return true if the operation is successful, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if the message is rejected,
+    * no connection is available, or the write fails.
+    */
+   public boolean write(HL7Message msg) throws HL7IOException {
+      HL7Stream member = lease();
+      boolean wrote;
+      try {
+         wrote = member.write(msg);
+      } catch (HL7IOException ioEx) {
+         int errorType = ioEx.errorType();
+         if (errorType == HL7IOException.HL7_NACK || errorType == HL7IOException.WRONG_CTLID) {
+            idle.offer(member);
+         } else {
+            discard(member);
+         } // if - else
+
+         throw ioEx;
+      } // try - catch
+
+      idle.offer(member);
+      return wrote;
+   } // write
+
+
+   /**
+    * Disallowed operation.
+    * @return Always throws a Inappropriate operation HL7IOException.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7Message read() throws HL7IOException {
+      throw new HL7IOException( "HL7StreamPool.read:Inappropriate operation.",
+                                 HL7IOException.INAPPROPRIATE_OPERATION);
+   } // read
+
+
+   /**
+    * Closes every stream of the pool, and stops reconnecting.
+    * @return true if the operation is successful, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException if any stream fails to close.
+    */
+   public synchronized boolean close() throws HL7IOException {
+      if (isClosed()) return true;
+
+      statusValue = CLOSED;
+      if (reconnector != null) reconnector.shutdownNow();
+      idle.clear();
+
+      HL7IOException failure = null;
+      for (HL7Stream member : members) {
+         try {
+            if (!member.isClosed()) member.close();
+         } catch (HL7IOException ioEx) {
+            if (failure == null) failure = ioEx;
+         } // try - catch
+      } // for
+
+      if (failure != null) throw failure;
+      return true;
+   } // close
+
+
+   /**
+    * @return the number of connected streams which are not currently leased.
+    */
+   public int idleCount() {
+      return idle.size();
+   } // idleCount
+
+
+   public String description() {
+      return "HL7StreamPool(" + uri + ", connections:" + members.size() + "):" + super.description();
+   } // description
+
+} // HL7StreamPool
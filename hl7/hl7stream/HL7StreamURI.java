@@ -30,6 +30,8 @@ package us.conxio.hl7.hl7stream;
  * @author scott herman <scott.herman@unconxio.us>
  */
 
+import java.io.File;
+
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -51,6 +53,7 @@ public class HL7StreamURI {
    public static final String HL7STREAM_URI_SCHEME_FILE_WRITER          = "file-writer";
    public static final String HL7STREAM_URI_SCHEME_FILE_APPENDER        = "file-appender";
    public static final String HL7STREAM_URI_SCHEME_FILE                 = "file";
+   public static final String HL7STREAM_URI_SCHEME_DIR_READER           = "dir-reader";
 
    public static final String HL7STREAM_URI_SCHEME_MLLP_WRITER          = "mllp-writer";
    public static final String HL7STREAM_URI_SCHEME_MLLP_READER          = "mllp-reader";
@@ -82,6 +85,56 @@ public class HL7StreamURI {
 
    public static String HL7STREAM_URI_SCHEME_AMQP_CONSUMER = "amqp-consumer";
 
+   public static final String QUERY_PARAM_POOL        = "pool";
+   public static final String QUERY_PARAM_MODE        = "mode";
+   public static final String QUERY_PARAM_IO_THREADS  = "io";
+   public static final String QUERY_PARAM_WINDOW      = "window";
+   public static final String QUERY_PARAM_CONNECTIONS = "connections";
+   public static final String QUERY_PARAM_ACK         = "ack";
+   public static final String QUERY_PARAM_ACK_BATCH   = "batch";
+   public static final String QUERY_PARAM_QUEUE       = "queue";
+   public static final String QUERY_PARAM_ORDER       = "order";
+   public static final String QUERY_PARAM_CHUNK       = "chunk";
+   public static final String QUERY_PARAM_FLUSH       = "flush";
+   public static final String QUERY_PARAM_FLUSH_INTERVAL = "interval";
+   public static final String QUERY_PARAM_FSYNC       = "fsync";
+   public static final String QUERY_PARAM_OFFSET      = "offset";
+   public static final String QUERY_PARAM_WORKERS     = "workers";
+   public static final String QUERY_PARAM_PATTERN     = "pattern";
+   public static final String QUERY_PARAM_DONE        = "done";
+   public static final String QUERY_PARAM_ERROR       = "error";
+   public static final String QUERY_PARAM_FRAMING     = "framing";
+   public static final String QUERY_PARAM_RATE        = "rate";
+   public static final String QUERY_PARAM_START       = "start";
+
+   /**
+    * The server mode value which selects the selector based HL7NIOServer.
+    */
+   public static final String SERVER_MODE_NIO         = "nio";
+   /**
+    * The server mode value which selects a HL7Server with a virtual thread per connection.
+    */
+   public static final String SERVER_MODE_VIRTUAL     = "virtual";
+   /**
+    * The file reader mode value which selects the memory mapped HL7MappedFileReader.
+    */
+   public static final String READER_MODE_MAPPED      = "mapped";
+   /**
+    * The file reader mode value which selects the HL7TailingFileReader, which
+    * waits for messages to be appended to the file.
+    */
+   public static final String READER_MODE_TAIL        = "tail";
+   /**
+    * The read order value which lets a HL7MappedFileReader return messages
+    * in the order in which they are parsed.
+    */
+   public static final String ORDER_UNORDERED         = "unordered";
+   /**
+    * The framing value which stores each message of a file in its MLLP frame,
+    * as written to a socket, so that the file may be replayed by HL7MLLPReplay.
+    */
+   public static final String FRAMING_MLLP            = "mllp";
+
    private static final String URI_SCHEME_TERMINATOR = ":";
    private static final String URI_AUTH_PREFIX = "//";
    private static final String URI_PORT_PREFIX = URI_SCHEME_TERMINATOR;
@@ -203,6 +256,23 @@ public class HL7StreamURI {
    } // fileURIOf
 
 
+   /**
+    * Determines the file referred to by the context URI, ignoring any query.
+    * @return the file referred to by the context URI.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public File fileOf() throws HL7IOException {
+      URI fileURI = fileURIOf();
+      if (fileURI.getRawQuery() == null) return new File(fileURI);
+
+      try {
+         return new File(new URI(fileURI.getScheme(), fileURI.getAuthority(), fileURI.getPath(), null, null));
+      } catch (URISyntaxException uEx) {
+         throw new HL7IOException("HL7StreamURI:fileOf():URISyntaxException:", uEx);
+      } // try - catch
+   } // fileOf
+
+
    /**
     * Access to the context URI itself.
     * @param uriArg The context URI itself.
@@ -235,24 +305,298 @@ public class HL7StreamURI {
    } // isFileAppenderURI
 
 
+   /**
+    * Determines whether the context URI is a directory reader.
+    * @return true if the context URI refers to a directory reader, otherwise false.
+    */
+   public boolean isDirectoryReaderURI() {
+      return schemeHas(HL7STREAM_URI_SCHEME_DIR_READER);
+   } // isDirectoryReaderURI
+
+
+   /**
+    * Retrieves the value of the argument parameter from the query string of
+    * the context URI, which may hold several parameters, as in
+    * "pool=8&mode=nio".
+    * @param name The name of the parameter, which is matched regardless of case.
+    * @return The value of the parameter, an empty string if the parameter has
+    * no value, or null if it is not specified.
+    */
+   public String queryParameter(String name) {
+      String queryStr = hasURI() ? uri.getQuery() : null;
+      if (StringUtils.isEmpty(queryStr) || name == null) return null;
+
+      for (String param : queryStr.split("&")) {
+         int eqIndex = param.indexOf("=");
+         String paramName = eqIndex < 0 ? param : param.substring(0, eqIndex);
+         if (paramName.trim().equalsIgnoreCase(name)) {
+            return eqIndex < 0 ? "" : param.substring(eqIndex + 1).trim();
+         } // if
+      } // for
+
+      return null;
+   } // queryParameter
+
+
+   private int intQueryParameter(String name) {
+      String valueStr = queryParameter(name);
+      return StringUtils.isEmpty(valueStr) ? 0 : Integer.parseInt(valueStr);
+   } // intQueryParameter
+
+
   /**
     * Determines the server thread pool size specified in the context URI
     * @return 0 or the specified thread pool size for the context server URI.
     */
    public int uriServerPoolSize() {
-      int poolSize = 0;
-
-      String queryStr = uri.getQuery();
-      if ( StringUtils.isNotEmpty(queryStr)
-      &&   queryStr.toLowerCase().startsWith("pool")) {
-         int eqIndex = queryStr.indexOf("=");
-         if (eqIndex >= 0) {
-            poolSize = Integer.parseInt(queryStr.substring(eqIndex + 1));
-         } // if
+      return intQueryParameter(QUERY_PARAM_POOL);
+   } // uriServerPoolSize
+
+
+   /**
+    * Determines the server mode specified in the context URI, such as
+    * SERVER_MODE_NIO.
+    * @return the specified server mode, in lower case, or null if none is specified.
+    */
+   public String uriServerMode() {
+      String mode = queryParameter(QUERY_PARAM_MODE);
+      return StringUtils.isEmpty(mode) ? null : mode.toLowerCase();
+   } // uriServerMode
+
+
+   /**
+    * Determines the number of server i/o threads specified in the context URI.
+    * @return 0 or the specified number of i/o threads for the context server URI.
+    */
+   public int uriServerIOThreadCount() {
+      return intQueryParameter(QUERY_PARAM_IO_THREADS);
+   } // uriServerIOThreadCount
+
+
+   /**
+    * Determines the number of outstanding messages specified for a socket
+    * writer by the context URI.
+    * @return 0 or the specified window size.
+    */
+   public int uriWindowSize() {
+      return intQueryParameter(QUERY_PARAM_WINDOW);
+   } // uriWindowSize
+
+
+   /**
+    * Determines the number of pooled connections specified for a socket
+    * writer by the context URI, which may not be combined with a window.
+    * @return 0 or the specified number of connections.
+    */
+   public int uriConnectionCount() {
+      return intQueryParameter(QUERY_PARAM_CONNECTIONS);
+   } // uriConnectionCount
+
+
+   /**
+    * Creates a single socket writer to the destination of the context URI,
+    * pipelined if a window is specified.
+    * @return the created stream, which is not yet open.
+    * @throws HL7IOException
+    */
+   HL7Stream getSocketWriter() throws HL7IOException {
+      if (uriWindowSize() > 1) {
+         return new HL7PipelinedMLLPStream(uri.getHost(), getPortNo(), uriWindowSize());
       } // if
 
-      return poolSize;
-   } // uriServerPoolSize
+      return new HL7MLLPStream(uri.getHost(), getPortNo());
+   } // getSocketWriter
+
+
+   /**
+    * Determines the server acknowledgment mode specified in the context URI,
+    * as one of the HL7Server ACK_ values.
+    * @return the specified acknowledgment mode, in lower case, or null if none is specified.
+    */
+   public String uriAckMode() {
+      String mode = queryParameter(QUERY_PARAM_ACK);
+      return StringUtils.isEmpty(mode) ? null : mode.toLowerCase();
+   } // uriAckMode
+
+
+   /**
+    * Determines the largest number of deferred acknowledgments specified in
+    * the context URI, for the batch acknowledgment mode.
+    * @return 0 or the specified batch size.
+    */
+   public int uriAckBatchSize() {
+      return intQueryParameter(QUERY_PARAM_ACK_BATCH);
+   } // uriAckBatchSize
+
+
+   /**
+    * Determines the number of messages per connection which a server may
+    * queue for dispatch, as specified in the context URI.
+    * @return 0 or the specified queue capacity.
+    */
+   public int uriQueueCapacity() {
+      return intQueryParameter(QUERY_PARAM_QUEUE);
+   } // uriQueueCapacity
+
+
+   /**
+    * Determines the read order specified for a file reader by the context URI.
+    * @return the specified order, in lower case, or null if none is specified.
+    */
+   public String uriReadOrder() {
+      String order = queryParameter(QUERY_PARAM_ORDER);
+      return StringUtils.isEmpty(order) ? null : order.toLowerCase();
+   } // uriReadOrder
+
+
+   /**
+    * Determines the offset file specified for a tailing file reader, or a
+    * replay, by the context URI.
+    * @return the specified offset file, or null if none is specified.
+    */
+   public File uriOffsetFile() {
+      String fileName = queryParameter(QUERY_PARAM_OFFSET);
+      return StringUtils.isEmpty(fileName) ? null : new File(fileName);
+   } // uriOffsetFile
+
+
+   /**
+    * Determines the number of worker threads specified for a directory reader
+    * by the context URI.
+    * @return 0 or the specified number of workers.
+    */
+   public int uriWorkerCount() {
+      return intQueryParameter(QUERY_PARAM_WORKERS);
+   } // uriWorkerCount
+
+
+   /**
+    * Determines the file name pattern specified for a directory reader by the
+    * context URI.
+    * @return the specified glob pattern, or null if none is specified.
+    */
+   public String uriPattern() {
+      String pattern = queryParameter(QUERY_PARAM_PATTERN);
+      return StringUtils.isEmpty(pattern) ? null : pattern;
+   } // uriPattern
+
+
+   /**
+    * Determines the directory specified for the files read by a directory
+    * reader by the context URI.
+    * @return the specified directory, or null if none is specified.
+    */
+   public File uriDoneDirectory() {
+      String dirName = queryParameter(QUERY_PARAM_DONE);
+      return StringUtils.isEmpty(dirName) ? null : new File(dirName);
+   } // uriDoneDirectory
+
+
+   /**
+    * Determines the directory specified for the files which a directory
+    * reader fails to read by the context URI.
+    * @return the specified directory, or null if none is specified.
+    */
+   public File uriErrorDirectory() {
+      String dirName = queryParameter(QUERY_PARAM_ERROR);
+      return StringUtils.isEmpty(dirName) ? null : new File(dirName);
+   } // uriErrorDirectory
+
+
+   /**
+    * Determines whether the context file URI specifies MLLP framed messages.
+    * @return true if the URI specifies framing=mllp, otherwise false.
+    */
+   public boolean isMLLPFramed() {
+      return FRAMING_MLLP.equalsIgnoreCase(queryParameter(QUERY_PARAM_FRAMING));
+   } // isMLLPFramed
+
+
+   /**
+    * Determines the largest number of messages per second at which a replay
+    * is to send, as specified in the context URI.
+    * @return 0, for no limit, or the specified rate.
+    */
+   public int uriRate() {
+      return intQueryParameter(QUERY_PARAM_RATE);
+   } // uriRate
+
+
+   /**
+    * Determines the file offset at which a replay is to start, as specified
+    * in the context URI.
+    * @return the specified offset, or -1 if none is specified.
+    */
+   public long uriStartOffset() {
+      String valueStr = queryParameter(QUERY_PARAM_START);
+      return StringUtils.isEmpty(valueStr) ? -1 : Long.parseLong(valueStr);
+   } // uriStartOffset
+
+
+   /**
+    * Determines the chunk size specified, in megabytes, for a mapped file
+    * reader by the context URI.
+    * @return 0 or the specified chunk size, in bytes.
+    */
+   public int uriChunkSize() {
+      return intQueryParameter(QUERY_PARAM_CHUNK) * 1024 * 1024;
+   } // uriChunkSize
+
+
+   /**
+    * Determines the number of messages after which a file writer is to flush,
+    * as specified in the context URI.
+    * @return 0 or the specified message count.
+    */
+   public int uriFlushCount() {
+      return intQueryParameter(QUERY_PARAM_FLUSH);
+   } // uriFlushCount
+
+
+   /**
+    * Determines the longest time for which a file writer may buffer a
+    * message, as specified in the context URI.
+    * @return 0 or the specified interval, in milliseconds.
+    */
+   public long uriFlushInterval() {
+      return intQueryParameter(QUERY_PARAM_FLUSH_INTERVAL);
+   } // uriFlushInterval
+
+
+   /**
+    * Determines whether a file writer is to force each flush to the storage
+    * device, as specified in the context URI.
+    * @return true if fsync=true is specified, otherwise false.
+    */
+   public boolean uriFsync() {
+      return Boolean.parseBoolean(queryParameter(QUERY_PARAM_FSYNC));
+   } // uriFsync
+
+
+   /**
+    * Creates a server of the mode, and with the acknowledgment mode and
+    * dispatch queue capacity, specified in the context URI.
+    * @param portNo The port number on which the server is to listen.
+    * @param poolSize The size of the server thread pool, which is unused by a
+    * server with a virtual thread per connection.
+    * @param handler The dispatch handler for incoming HL7Message objects.
+    * @return the server, as a HL7Server.
+    */
+   public HL7Server createServer(int portNo, int poolSize, HL7MessageHandler handler) {
+      String mode = uriServerMode();
+      HL7Server server;
+      if (SERVER_MODE_NIO.equals(mode)) {
+         server = new HL7NIOServer(portNo, poolSize, uriServerIOThreadCount(), handler);
+      } else if (SERVER_MODE_VIRTUAL.equals(mode)) {
+         server = new HL7Server(portNo, HL7Server.newVirtualThreadExecutor(), handler);
+      } else {
+         server = new HL7Server(portNo, poolSize, handler);
+      } // if - else if - else
+
+      server.setAckMode(uriAckMode(), uriAckBatchSize());
+      server.setQueueCapacity(uriQueueCapacity());
+      return server;
+   } // createServer
 
 
    /**
@@ -277,9 +621,14 @@ public class HL7StreamURI {
     */
    public HL7Stream getHL7StreamReader() throws HL7IOException {
       if (isFileURI() && !isFileWriterURI()) {
+         String mode = uriServerMode();
+         if (READER_MODE_MAPPED.equals(mode)) return new HL7MappedFileReader(this);
+         if (READER_MODE_TAIL.equals(mode)) return new HL7TailingFileReader(this);
          return new HL7FileReader(fileURIOf());
       } else if (isServerURI()) {
-         return new HL7Server(getPortNo(), uriServerPoolSize());
+         return createServer(getPortNo(), uriServerPoolSize(), null);
+      } else if (isDirectoryReaderURI()) {
+         return new HL7DirectoryReader(this, null);
       } // if - else if
 
       throw new HL7IOException(  "HL7StreamURI.getHL7StreamReader():Uninterpreable URI:"
@@ -297,7 +646,8 @@ public class HL7StreamURI {
       if (canWriteFiles()) {
          return new HL7FileWriter(uri);
       } else if (isSimpleSocketURI()) {
-         return new HL7MLLPStream(uri.getHost(), getPortNo());
+         if (uriConnectionCount() > 1) return new HL7StreamPool(this, uriConnectionCount());
+         return getSocketWriter();
       } else if (isXMLURI()) {
          return new HL7XMLFileWriter(uri);
       } // if - else if
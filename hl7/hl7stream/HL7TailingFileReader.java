@@ -0,0 +1,476 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7TailingFileReader.java : Reads HL7 transaction messages from a file
+ *                              as they are appended to it.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7.hl7stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import us.conxio.hl7.hl7message.HL7Message;
+
+/**
+ * Reads HL7 (v.2.x) transaction messages from a file to which another system
+ * appends them, as does "tail -f". At the end of the file, read() blocks on a
+ * WatchService of the directory of the file, waking only when the file grows,
+ * or is replaced, as when it is rotated, or truncated. Messages are delimited
+ * as by HL7FileReader.
+ * <p>
+ * A message is complete when the next MSH, BHS or BTS segment is read. The
+ * last message of the file is returned once it ends with a segment
+ * terminator, and the file has not grown for the settle time.
+ * <p>
+ * The offset following the last message returned, together with the identity
+ * of the file, is persisted in an offset file, at the next read(), once the
+ * message has been dispatched, and at close(). A reader resumes at the
+ * persisted offset, unless the file has since been replaced, so that a
+ * message is never lost, although one may be read twice.
+ * <p>
+ * Selected by the mode=tail query parameter of a file reader URI, as in
+ * file-reader:///feeds/lab.hl7?mode=tail&offset=/var/hl7/lab.offset
+ * where offset names the offset file, which is otherwise the file name with
+ * the extension ".offset".
+ * @author scott herman <scott.herman@unconxio.us>
+ */
+public class HL7TailingFileReader extends HL7StreamBase implements HL7Stream {
+   public static final String    OFFSET_FILE_EXTENSION = ".offset";
+   public static final long      DEFAULT_SETTLE_MILLIS = 500;
+   /**
+    * The longest wait for a watch event, as a guard against a missed event.
+    */
+   private static final long     MAX_WAIT_MILLIS = 60 * 1000;
+   private static final int      BUFFER_SIZE = 64 * 1024;
+   /**
+    * The shortest text, with segment terminators, which is returned as a
+    * message, rather than discarded, as by HL7FileReader.
+    */
+   private static final int      MIN_MESSAGE_LENGTH = 11;
+   private static Logger         logger = Logger.getLogger(HL7TailingFileReader.class);
+
+   private final Path            path;
+   private final File            offsetFile;
+   private final Charset         charset = Charset.defaultCharset();
+   private long                  settleMillis = DEFAULT_SETTLE_MILLIS;
+
+   private WatchService          watcher;
+   private FileChannel           channel;
+   private Object                fileKey;
+   private RandomAccessFile      offsetStore;
+   private final ByteBuffer      buffer = ByteBuffer.allocate(BUFFER_SIZE);
+   /**
+    * The file offset of the next byte to be read into the buffer.
+    */
+   private long                  position;
+   /**
+    * The offset following the last message returned, and the last persisted offset.
+    */
+   private long                  committed,
+                                 persisted = -1;
+   /**
+    * The pending message, with CR segment terminators.
+    */
+   private byte[]                text = new byte[4 * 1024];
+   private int                   textLength,
+                                 lineBegin;
+   private long                  lineOffset;
+   private boolean               lineStart = true;
+
+
+   /**
+    * Constructs a new reader of the argument file.
+    * @param hl7File The file to be read, which need not yet exist.
+    * @param offsetFile The file in which the read offset is persisted, or
+    * null for the file name with the extension ".offset".
+    */
+   public HL7TailingFileReader(File hl7File, File offsetFile) {
+      if (hl7File == null) {
+         throw new NullPointerException("HL7TailingFileReader():File is null.");
+      } // if
+
+      path = hl7File.getAbsoluteFile().toPath();
+      this.offsetFile = (offsetFile != null) ? offsetFile : new File(hl7File.getPath() + OFFSET_FILE_EXTENSION);
+      directive = READER;
+      mediaType = FILE_TYPE;
+   } // HL7TailingFileReader
+
+
+   /**
+    * Constructs a new reader from the argument file reader URI, and its
+    * offset query parameter.
+    * @param streamURI The file reader URI.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7TailingFileReader(HL7StreamURI streamURI) throws HL7IOException {
+      this(streamURI.fileOf(), streamURI.uriOffsetFile());
+   } // HL7TailingFileReader
+
+
+   /**
+    * Sets the time for which the file must not grow, before its last message
+    * is returned.
+    * @param millis The settle time, in milliseconds.
+    */
+   public void setSettleTime(long millis) {
+      settleMillis = millis;
+   } // setSettleTime
+
+
+   /**
+    * Opens the file, at the persisted offset, and begins to watch its directory.
+    * @return true if the operation succeeded, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public boolean open() throws HL7IOException {
+      if (isOpen()) return true;
+
+      long     resumeOffset = 0;
+      String   resumeKey = null;
+      try {
+         watcher = FileSystems.getDefault().newWatchService();
+         path.getParent().register( watcher,
+                                    StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY);
+         offsetStore = new RandomAccessFile(offsetFile, "rw");
+         String persistedText = offsetStore.length() > 0 ? offsetStore.readLine() : null;
+         if (persistedText != null) {
+            String[] items = persistedText.trim().split(" ", 2);
+            resumeOffset = Long.parseLong(items[0]);
+            resumeKey = items.length > 1 ? items[1] : null;
+         } // if
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7TailingFileReader.open:IOException:" + path, ioEx);
+      } catch (NumberFormatException nfEx) {
+         logger.warn("HL7TailingFileReader.open: unreadable offset file " + offsetFile + ", reading from the beginning.");
+         resumeOffset = 0;
+      } // try - catch
+
+      statusValue = OPEN;
+      if (openFile() && resumeOffset > 0) {
+         try {
+            if (String.valueOf(fileKey).equals(resumeKey) && resumeOffset <= channel.size()) {
+               reset(resumeOffset);
+               logger.info("HL7TailingFileReader(" + path + "): resumed at offset " + resumeOffset + ".");
+            } else {
+               logger.warn("HL7TailingFileReader(" + path + "): replaced since offset " + resumeOffset
+                         + " was persisted, reading from the beginning.");
+            } // if - else
+         } catch (IOException ioEx) {
+            throw new HL7IOException("HL7TailingFileReader.open:IOException:" + path, ioEx);
+         } // try - catch
+      } // if
+
+      persisted = committed;
+      return true;
+   } // open
+
+
+   /**
+    * Opens the file, if it exists.
+    * @return true if the file was opened.
+    */
+   private boolean openFile() throws HL7IOException {
+      if (!Files.exists(path)) return false;
+
+      try {
+         channel = FileChannel.open(path, StandardOpenOption.READ);
+         fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7TailingFileReader:IOException opening " + path, ioEx);
+      } // try - catch
+
+      reset(0);
+      return true;
+   } // openFile
+
+
+   private void reset(long offset) {
+      buffer.clear().limit(0);
+      position = committed = offset;
+      textLength = 0;
+      lineStart = true;
+   } // reset
+
+
+   /**
+    * Persists the committed offset, and closes the file and the watch service,
+    * which ends any blocked read().
+    * @return true if the operation succeeded, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public boolean close() throws HL7IOException {
+      if (!isOpen()) return true;
+
+      statusValue = CLOSED;
+      try {
+         persist();
+         watcher.close();
+         if (channel != null) channel.close();
+         offsetStore.close();
+      } catch (IOException ioEx) {
+         throw new HL7IOException("HL7TailingFileReader.close:IOException", ioEx);
+      } // try - catch
+
+      return true;
+   } // close
+
+
+   /**
+    * Reads the next message, waiting for it to be appended to the file, if need be.
+    * @return the next HL7Message, or null once the reader is closed.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public HL7Message read() throws HL7IOException {
+      String msgText = readMsg();
+      return msgText == null ? null : new HL7Message(msgText, true);
+   } // read
+
+
+   /**
+    * Reads the next message text, waiting for it to be appended to the file,
+    * if need be.
+    * @return the message text, or null once the reader is closed.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public String readMsg() throws HL7IOException {
+      if (!isOpen()) {
+         if (statusValue == CLOSED) return null;
+         open();
+      } // if
+
+      try {
+         persist();
+         long settleDeadline = 0;
+         while (isOpen()) {
+            if (channel == null && !openFile()) {
+               await(MAX_WAIT_MILLIS);
+               continue;
+            } // if
+
+            String msgText = scan();
+            if (msgText != null) return msgText;
+
+            if (channel.size() > position) {
+               settleDeadline = 0;
+               continue;
+            } // if
+
+            if (isRotated()) {
+               logger.info("HL7TailingFileReader(" + path + "): replaced or truncated at offset " + position + ".");
+               // * the last message of the prior file is complete.
+               msgText = isPending() ? take(position) : null;
+               channel.close();
+               channel = null;
+               openFile();
+               if (msgText != null) return msgText;
+               continue;
+            } // if
+
+            // * at the end of the file; the pending message is complete once the file settles.
+            if (isPending()) {
+               long now = System.currentTimeMillis();
+               if (settleDeadline == 0) settleDeadline = now + settleMillis;
+               if (now >= settleDeadline) return take(position);
+               await(settleDeadline - now);
+            } else {
+               await(MAX_WAIT_MILLIS);
+            } // if - else
+         } // while
+      } catch (ClosedWatchServiceException cwsEx) {
+         // * closed, while waiting.
+      } catch (IOException ioEx) {
+         if (isClosed()) return null;
+         throw new HL7IOException("HL7TailingFileReader.read:IOException:" + path, ioEx);
+      } // try - catch
+
+      return null;
+   } // readMsg
+
+
+   /**
+    * Scans the bytes appended to the file, until a message is complete.
+    * @return the completed message text, or null at the end of the file.
+    */
+   private String scan() throws IOException {
+      for (;;) {
+         if (!buffer.hasRemaining()) {
+            buffer.clear();
+            int count = channel.read(buffer, position);
+            buffer.flip();
+            if (count <= 0) return null;
+         } // if
+
+         while (buffer.hasRemaining()) {
+            byte inData = buffer.get();
+            ++position;
+            if (inData == CR || inData == LF) {
+               if (!lineStart) {
+                  append((byte)CR);
+                  lineStart = true;
+               } // if
+
+               continue;
+            } // if
+
+            if (lineStart) {
+               lineStart = false;
+               lineBegin = textLength;
+               lineOffset = position - 1;
+            } // if
+
+            append(inData);
+            if (textLength - lineBegin == 3 && isHeader(lineBegin)) {
+               if (lineBegin == 0) continue;
+
+               String msgText = lineBegin >= MIN_MESSAGE_LENGTH ? new String(text, 0, lineBegin, charset) : null;
+               // * the header begins the next message.
+               System.arraycopy(text, lineBegin, text, 0, 3);
+               textLength = 3;
+               lineBegin = 0;
+               committed = lineOffset;
+               if (msgText != null) return msgText;
+            } // if
+         } // while
+      } // for
+   } // scan
+
+
+   private void append(byte inData) {
+      if (textLength == text.length) text = Arrays.copyOf(text, text.length << 1);
+      text[textLength++] = inData;
+   } // append
+
+
+   private boolean isHeader(int offset) {
+      byte  first = text[offset],
+            second = text[offset + 1],
+            third = text[offset + 2];
+      return (first == 'M' && second == 'S' && third == 'H')
+      ||     (first == 'B' && second == 'H' && third == 'S')
+      ||     (first == 'B' && second == 'T' && third == 'S');
+   } // isHeader
+
+
+   /**
+    * Takes the pending message, as complete.
+    * @param nextOffset The offset following the message.
+    */
+   private String take(long nextOffset) {
+      String msgText = new String(text, 0, textLength, charset);
+      textLength = 0;
+      committed = nextOffset;
+      return msgText;
+   } // take
+
+
+   /**
+    * @return true if the pending message ends with a segment terminator, and
+    * is long enough to be returned.
+    */
+   private boolean isPending() {
+      return lineStart && textLength >= MIN_MESSAGE_LENGTH;
+   } // isPending
+
+
+   /**
+    * @return true if the file has been replaced, as when it is rotated, or
+    * truncated.
+    */
+   private boolean isRotated() throws IOException {
+      if (!Files.exists(path)) return false;
+
+      Object currentKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+      return (currentKey != null && !currentKey.equals(fileKey)) || channel.size() < position;
+   } // isRotated
+
+
+   /**
+    * Waits for the directory of the file to change, for at most the argument time.
+    */
+   private void await(long millis) throws IOException {
+      WatchKey key;
+      try {
+         key = watcher.poll(millis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new IOException("HL7TailingFileReader: interrupted.", ex);
+      } // try - catch
+
+      if (key == null) return;
+
+      // * any event in the directory is cause to check the file.
+      key.pollEvents();
+      key.reset();
+   } // await
+
+
+   /**
+    * Persists the committed offset, if it has changed.
+    */
+   private void persist() throws IOException {
+      if (committed == persisted) return;
+
+      offsetStore.seek(0);
+      offsetStore.writeBytes(committed + " " + fileKey + "\n");
+      offsetStore.setLength(offsetStore.getFilePointer());
+      persisted = committed;
+   } // persist
+
+
+   /**
+    * This method will always throw a INAPPROPRIATE_OPERATION HL7IOException.
+    * @param msg
+    * @return true if the operation succeeded, otherwise false.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public boolean write(HL7Message msg) throws HL7IOException {
+      throw new HL7IOException( "HL7TailingFileReader.write:Innapropriate operation.",
+                                 HL7IOException.INAPPROPRIATE_OPERATION);
+   } // write
+
+
+   public String description() {
+      return "HL7TailingFileReader(" + path + ", offset " + committed + "):" + super.description();
+   } // description
+
+} // HL7TailingFileReader
@@ -36,6 +36,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 
+import us.conxio.hl7.hl7message.HL7Designator;
 import us.conxio.hl7.hl7message.HL7Message;
 
 /**
@@ -48,6 +49,10 @@ public class HL7XMLFileWriter extends HL7StreamBase implements HL7Stream {
    private File      filePath = null;
 
    private static final String STRING_XML    = "xml";
+   /**
+    * The items from which a file name is formed, when there is no control ID.
+    */
+   private static final HL7Designator[] FILE_NAME_ITEMS = HL7Designator.compileAll("MSH.7", "MSH.9.1", "MSH.9.2");
 
    /**
     * Fundamental parameterless constructor.
@@ -151,9 +156,11 @@ public class HL7XMLFileWriter extends HL7StreamBase implements HL7Stream {
       String msgID = msg.controlID();
 
       if (StringUtils.isEmpty(msgID)) {
-         String msgTypeCode = msg.get("MSH.9.1");
-         String msgEventCode = msg.get("MSH.9.2");
-         String msgDateTime = msg.get("MSH.7");
+         String[] items = new String[FILE_NAME_ITEMS.length];
+         msg.extract(FILE_NAME_ITEMS, items);
+         String msgDateTime = items[0];
+         String msgTypeCode = items[1];
+         String msgEventCode = items[2];
          StringBuilder msgIDBuffer = new StringBuilder();
 
          if (StringUtils.isNotEmpty(msgTypeCode)) msgIDBuffer.append(msgTypeCode);
@@ -0,0 +1,62 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7BenchmarkRunner.java : Runs the HL7 benchmarks with the GC profiler.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7Benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the HL7 benchmarks, reporting the throughput of each operation, and,
+ * by way of the JMH GC profiler, the bytes allocated per operation
+ * (gc.alloc.rate.norm).
+ * <ul>Usage: HL7BenchmarkRunner [regexp]
+ * <li>regexp optionally selects the benchmarks to run, for example
+ * "HL7MessageBenchmark.parse". All of the HL7 benchmarks are run by default.
+ * </ul>
+ * The benchmarks are built by the pom.xml of this directory, which runs the
+ * JMH annotation processor, and packages them, together with the hl7 classes
+ * and their dependencies, as target/benchmarks.jar, which may also be run as
+ * java -jar target/benchmarks.jar -prof gc [regexp]
+ * @author scott
+ */
+public class HL7BenchmarkRunner {
+
+   public static void main(String[] args) throws RunnerException {
+      String include = args.length > 0
+                     ? args[0]
+                     : HL7BenchmarkRunner.class.getPackage().getName() + ".*";
+
+      Options options = new OptionsBuilder()
+                              .include(include)
+                              .addProfiler(GCProfiler.class)
+                              .build();
+      new Runner(options).run();
+   } // main
+
+} // HL7BenchmarkRunner
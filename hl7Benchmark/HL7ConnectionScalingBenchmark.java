@@ -0,0 +1,160 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7ConnectionScalingBenchmark.java : JMH benchmark of HL7 server round trip
+ *                                       latency against the number of open
+ *                                       connections.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7Benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.ConnectException;
+import java.net.Socket;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import us.conxio.hl7.hl7message.HL7Message;
+import us.conxio.hl7.hl7stream.HL7MessageHandler;
+import us.conxio.hl7.hl7stream.HL7Server;
+import us.conxio.hl7.hl7stream.HL7StreamURI;
+
+/**
+ * A JMH benchmark of the MLLP round trip latency of a single active sender,
+ * while a number of idle, but open, sender connections are held by the server,
+ * for each of the server modes.
+ * <ul>
+ * <li>pool: the thread pooled HL7Server, with pool=idle+1, as a fixed pool any
+ * smaller would leave the active sender waiting forever for a free thread.
+ * <li>virtual: HL7Server with a virtual thread per connection (mode=virtual).
+ * <li>nio: the selector based HL7NIOServer (mode=nio).
+ * </ul>
+ * The larger connection counts require an open file limit above 10,000.
+ * @author scott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HL7ConnectionScalingBenchmark {
+   private static final int   PORT = 23575;
+   private static final int   STX = 0x0b,
+                              FS  = 0x1c,
+                              EOB = 0x0d;
+   private static final long  CONNECT_TIMEOUT = 10 * 1000;
+
+   @Param({ "pool", "virtual", "nio" })
+   public String mode;
+
+   @Param({ "10", "100", "1000", "5000" })
+   public int idle;
+
+   private HL7Server    server;
+   private Socket[]     idleSenders;
+   private Socket       sender;
+   private InputStream  in;
+   private OutputStream out;
+   private byte[]       frame;
+
+
+   @Setup
+   public void setUp() throws Exception {
+      String query = "pool".equals(mode) ? "pool=" + (idle + 1) : "mode=" + mode;
+      HL7StreamURI uri = new HL7StreamURI("mllp-server://localhost:" + PORT + "?" + query);
+      server = uri.createServer(PORT, uri.uriServerPoolSize(), new HL7MessageHandler() {
+         public int dispatch(HL7Message msg) { return 1; }
+      });
+      new Thread(server).start();
+
+      idleSenders = new Socket[idle];
+      for (int index = 0; index < idle; ++index) idleSenders[index] = connect();
+
+      sender = connect();
+      in = new BufferedInputStream(sender.getInputStream());
+      out = sender.getOutputStream();
+      frame = ((char)STX + HL7Samples.ADT_A01 + (char)FS + (char)EOB).getBytes();
+   } // setUp
+
+
+   private static Socket connect() throws IOException, InterruptedException {
+      long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+      while (true) {
+         try {
+            Socket socket = new Socket("localhost", PORT);
+            socket.setTcpNoDelay(true);
+            return socket;
+         } catch (ConnectException connEx) {
+            // * the server may not yet be listening.
+            if (System.currentTimeMillis() > deadline) throw connEx;
+            Thread.sleep(10);
+         } // try - catch
+      } // while
+   } // connect
+
+
+   @TearDown
+   public void tearDown() throws IOException {
+      sender.close();
+      for (Socket socket : idleSenders) socket.close();
+      server.stop();
+   } // tearDown
+
+
+   /**
+    * Sends a message, and reads its acknowledgment.
+    * @return the length of the acknowledgment frame.
+    */
+   @Benchmark
+   public int roundTrip() throws IOException {
+      out.write(frame);
+      out.flush();
+
+      int length = 0, inData, previous = -1;
+      while ((inData = in.read()) != -1) {
+         ++length;
+         if (inData == EOB && previous == FS) break;
+         previous = inData;
+      } // while
+
+      return length;
+   } // roundTrip
+
+} // HL7ConnectionScalingBenchmark
@@ -0,0 +1,85 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7EncodingBenchmark.java : JMH benchmarks of HL7Encoding escaping.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7Benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import us.conxio.hl7.hl7message.HL7Encoding;
+
+/**
+ * JMH benchmarks of HL7Encoding escaping, of content which contains no
+ * encoding characters, which is by far the most common case, and of content
+ * which does.
+ * @author scott
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HL7EncodingBenchmark {
+   private static final String   PLAIN = "2222 HOME STREET, GREENSBORO NC 27401-1020",
+                                 DELIMITED = "Result verified & repeated | see prior report ^ ~",
+                                 ESCAPED = "Result verified \\T\\ repeated\\F\\see prior report";
+
+   private final HL7Encoding encoders = HL7Encoding.getDefaultEncoding();
+
+
+   @Benchmark
+   public String escapePlain() {
+      return encoders.escape(PLAIN);
+   } // escapePlain
+
+
+   @Benchmark
+   public String escapeDelimited() {
+      return encoders.escape(DELIMITED);
+   } // escapeDelimited
+
+
+   @Benchmark
+   public String encodeDelimited() {
+      return encoders.encode(DELIMITED);
+   } // encodeDelimited
+
+
+   @Benchmark
+   public String decodeEscaped() {
+      return encoders.decode(ESCAPED);
+   } // decodeEscaped
+
+} // HL7EncodingBenchmark
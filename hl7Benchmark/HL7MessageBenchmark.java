@@ -0,0 +1,165 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7MessageBenchmark.java : JMH benchmarks of HL7Message operations.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7Benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import us.conxio.hl7.hl7message.HL7Designator;
+import us.conxio.hl7.hl7message.HL7Encoding;
+import us.conxio.hl7.hl7message.HL7Message;
+
+/**
+ * JMH benchmarks of the principal HL7Message operations, over each of the
+ * HL7Samples messages. Run by way of HL7BenchmarkRunner, to include the
+ * allocation rate per operation.
+ * @author scott
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HL7MessageBenchmark {
+   @Param({ "ADT_A01", "ORM_O01", "ORU_R01" })
+   public String sample;
+
+   private String          msgText;
+   private HL7Message      msg;
+   private HL7Message      deferredMsg;
+   private HL7Encoding     encoders,
+                           altEncoders;
+   private HL7Designator[] designators;
+   private String[]        values;
+
+
+   @Setup
+   public void setup() {
+      msgText = HL7Samples.get(sample);
+      msg = new HL7Message(msgText);
+      deferredMsg = new HL7Message(msgText, true);
+      encoders = new HL7Encoding(msgText.substring(3, 8));
+      altEncoders = new HL7Encoding("#$%!*");
+      designators = HL7Designator.compileAll(HL7Samples.DESIGNATORS);
+      values = new String[designators.length];
+   } // setup
+
+
+   @Benchmark
+   public HL7Message parse() {
+      return new HL7Message(msgText);
+   } // parse
+
+
+   @Benchmark
+   public HL7Message parseDeferred() {
+      return new HL7Message(msgText, true);
+   } // parseDeferred
+
+
+   /**
+    * Serializes an unmodified message, without the retained serialized form.
+    */
+   @Benchmark
+   public String toHL7String() {
+      return msg.toHL7String(encoders);
+   } // toHL7String
+
+
+   /**
+    * Serializes the whole element tree, with escaping, by way of a different
+    * set of encoding characters.
+    */
+   @Benchmark
+   public String toHL7StringReencoded() {
+      return msg.toHL7String(altEncoders);
+   } // toHL7StringReencoded
+
+
+   @Benchmark
+   public void get(Blackhole hole) {
+      for (String designator : HL7Samples.DESIGNATORS) hole.consume(msg.get(designator));
+   } // get
+
+
+   @Benchmark
+   public void getDeferred(Blackhole hole) {
+      for (String designator : HL7Samples.DESIGNATORS) hole.consume(deferredMsg.get(designator));
+   } // getDeferred
+
+
+   @Benchmark
+   public String[] extract() {
+      deferredMsg.extract(designators, values);
+      return values;
+   } // extract
+
+
+   @Benchmark
+   public HL7Message set() {
+      msg.set("MSH.7", "201012311159");
+      msg.set("PID.5.2", "JOHN");
+      msg.set("ZPI.2.1", "value");
+      return msg;
+   } // set
+
+
+   /**
+    * A parse, modify and serialize cycle, as by a route with a transform.
+    */
+   @Benchmark
+   public String parseSetSerialize() {
+      HL7Message workMsg = new HL7Message(msgText, true).copy();
+      workMsg.set("MSH.5", "ROUTED");
+      return workMsg.toHL7String();
+   } // parseSetSerialize
+
+
+   @Benchmark
+   public HL7Message acknowledgment() {
+      return msg.acknowledgment(true, "ok", null, null);
+   } // acknowledgment
+
+
+   @Benchmark
+   public String toXMLString() {
+      return msg.toXMLString();
+   } // toXMLString
+
+} // HL7MessageBenchmark
@@ -0,0 +1,116 @@
+/*
+ *  $Id$
+ *
+ *  This code is derived from public domain sources. Commercial use is allowed.
+ *  However, all rights remain permanently assigned to the public domain.
+ *
+ *  HL7Samples.java : Representative HL7 transaction messages for benchmarking.
+ *
+ *  Copyright (c) 2009, 2010  Scott Herman
+ *
+ *  This is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package us.conxio.hl7Benchmark;
+
+
+/**
+ * Representative HL7 transaction messages for benchmarking: an ADT^A01
+ * admission, an ORM^O01 order, and a large ORU^R01 result message.
+ * @author scott
+ */
+public class HL7Samples {
+   public static final String ADT_A01 =
+        "MSH|^~\\&|ADT1|GOOD HEALTH HOSPITAL|GHH LAB, INC.|GOOD HEALTH HOSPITAL|201001011200||ADT^A01^ADT_A01|MSG00001|P|2.5.1\r"
+      + "EVN||201001011200||||201001011200\r"
+      + "PID|1||PATID1234^^^GOOD HEALTH HOSPITAL^MR~123456789^^^USSSA^SS||EVERYMAN^ADAM^A^III||19610615|M||C|"
+      +    "2222 HOME STREET^^GREENSBORO^NC^27401-1020|GL|(555) 555-2004|(555)555-2004||S||PATID12345001^2^M10^ADT1^AN^A|444333333|987654^NC\r"
+      + "NK1|1|NUCLEAR^NELDA^W|SPO^SPOUSE||||NK^NEXT OF KIN\r"
+      + "PV1|1|I|2000^2012^01||||004777^ATTEND^AARON^A|||SUR||||ADM|A0|||||||||||||||||||||||||201001011200\r"
+      + "AL1|1||^ASPIRIN\r"
+      + "DG1|1|I9|71596^OSTEOARTHROS NOS-L/LEG ^I9|OSTEOARTHROS NOS-L/LEG ||A\r"
+      + "IN1|1|0|BC1|BLUE CROSS|1234 MAIN STREET^^ANYTOWN^NC^27401||(555)555-5555|90||||||50 OK\r";
+
+   public static final String ORM_O01 =
+        "MSH|^~\\&|ORDERENTRY|GHH OE|LAB|GHH LAB|201002151200||ORM^O01^ORM_O01|MSG00002|P|2.5.1\r"
+      + "PID|1||PATID1234^^^GOOD HEALTH HOSPITAL^MR||EVERYWOMAN^EVE^E^^^^L||19620320|F|||"
+      +    "153 FERNWOOD DR.^^STATESVILLE^OH^35292||(206)3345232|(206)752-121||||AC555444444\r"
+      + "PV1|1|O|OP^PAREG^^^^^^^^|||||||||||||||||||||||||||||||||||||201002151200\r"
+      + "ORC|NW|845439^GHH OE|||||^^^201002151200^^R||201002151200|555-55-5555^PRIMARY^PATRICIA P\r"
+      + "OBR|1|845439^GHH OE||1554-5^GLUCOSE^LN|||201002151200|||||||||555-55-5555^PRIMARY^PATRICIA P^^^^MD\r"
+      + "OBR|2|845440^GHH OE||24331-1^LIPID PANEL^LN|||201002151200|||||||||555-55-5555^PRIMARY^PATRICIA P^^^^MD\r"
+      + "NTE|1||Fasting specimen \\T\\ patient notified\r";
+
+   /**
+    * The number of OBX segments of ORU_R01.
+    */
+   public static final int OBSERVATION_COUNT = 400;
+
+   public static final String ORU_R01 = largeResult(OBSERVATION_COUNT);
+
+   /**
+    * The benchmarked designators, of items commonly read by routes and transforms.
+    */
+   public static final String[] DESIGNATORS = {
+      "MSH.9.1", "MSH.10", "PID.3.1", "PID.5.2", "PID.11.3", "OBR.4.2"
+   };
+
+
+   private static String largeResult(int observationCount) {
+      StringBuilder msgBuffer = new StringBuilder()
+         .append("MSH|^~\\&|GHH LAB|ELAB-3|GHH OE|BLDG4|201002151230||ORU^R01^ORU_R01|MSG00003|P|2.5.1\r")
+         .append("PID|1||555-44-4444^^^GOOD HEALTH HOSPITAL^MR||EVERYWOMAN^EVE^E^^^^L|JONES|19620320|F|||")
+         .append("153 FERNWOOD DR.^^STATESVILLE^OH^35292||(206)3345232|(206)752-121||||AC555444444||67-A4335^OH^20030520\r")
+         .append("OBR|1|845439^GHH OE|1045813^GHH LAB|15545^CHEMISTRY PANEL|||201002150730|||||||||")
+         .append("555-55-5555^PRIMARY^PATRICIA P^^^^MD^^|||||||||F||||||444-44-4444^HIPPOCRATES^HOWARD H^^^^MD\r");
+
+      for (int index = 1; index <= observationCount; ++index) {
+         msgBuffer.append("OBX|")
+                  .append(index)
+                  .append("|NM|")
+                  .append(1000 + index)
+                  .append("-5^ANALYTE ")
+                  .append(index)
+                  .append("^LN||")
+                  .append(index % 200)
+                  .append(".")
+                  .append(index % 10)
+                  .append("|mg/dL^milligrams per deciliter^UCUM|70-105|")
+                  .append(index % 7 == 0 ? "H" : "N")
+                  .append("|||F|||201002151200|GHH LAB^^^^^^^^^^^^^^^^^^CLIA\r");
+
+         if (index % 25 == 0) {
+            msgBuffer.append("NTE|")
+                     .append(index / 25)
+                     .append("||Result verified \\T\\ repeated\\F\\see prior report\r");
+         } // if
+      } // for
+
+      return msgBuffer.toString();
+   } // largeResult
+
+
+   /**
+    * @param name The name of a sample message, ADT_A01, ORM_O01 or ORU_R01.
+    * @return The named sample message.
+    */
+   public static String get(String name) {
+      if ("ADT_A01".equals(name)) return ADT_A01;
+      if ("ORM_O01".equals(name)) return ORM_O01;
+      if ("ORU_R01".equals(name)) return ORU_R01;
+      throw new IllegalArgumentException("HL7Samples.get:Unknown sample:" + name);
+   } // get
+
+} // HL7Samples
@@ -35,7 +35,10 @@ import org.apache.log4j.Logger;
 
 import us.conxio.hl7.hl7message.HL7Message;
 import us.conxio.hl7.hl7service.HL7Route;
+import us.conxio.hl7.hl7stream.HL7DirectoryReader;
 import us.conxio.hl7.hl7stream.HL7IOException;
+import us.conxio.hl7.hl7stream.HL7MLLPReplay;
+import us.conxio.hl7.hl7stream.HL7MessageHandler;
 import us.conxio.hl7.hl7stream.HL7Stream;
 import us.conxio.hl7.hl7stream.HL7StreamURI;
 import us.conxio.hl7.hl7system.HL7Logger;
@@ -66,8 +69,18 @@ public class HL7MessageAgent {
       HL7Stream msgReader = null;
       HL7Stream msgWriter = null;
       try {
+         if (isReplay(new HL7StreamURI(sourceURI), new HL7StreamURI(deliveryURI))) {
+            replay(new HL7StreamURI(sourceURI), new HL7StreamURI(deliveryURI));
+            return;
+         } // if
+
          msgReader = new HL7StreamURI(sourceURI).getHL7StreamReader();
          msgWriter = new HL7StreamURI(deliveryURI).getHL7StreamWriter();
+         if (msgReader instanceof HL7DirectoryReader) {
+            transferDirectory((HL7DirectoryReader)msgReader, msgWriter);
+            return;
+         } // if
+
          HL7Message hl7Msg;
 
          while ( (hl7Msg = msgReader.read() ) != null) {
@@ -97,6 +110,50 @@ public class HL7MessageAgent {
       } // try - catch
    } // adHocTransfer
 
+
+   /**
+    * Determines whether the transfer is a replay of a file of MLLP frames
+    * to a socket, which need not be parsed.
+    */
+   private static boolean isReplay(HL7StreamURI source, HL7StreamURI delivery) {
+      return source.isFileURI() && source.isMLLPFramed() && delivery.isSimpleSocketURI();
+   } // isReplay
+
+
+   /**
+    * Replays a file of MLLP frames to a socket, as it is stored.
+    */
+   private static void replay(HL7StreamURI source, HL7StreamURI delivery) throws HL7IOException {
+      HL7MLLPReplay replay = new HL7MLLPReplay(source, delivery);
+      try {
+         replay.replay();
+      } finally {
+         logger.info("HL7MessageAgent: replayed " + replay.frameCount() + " message(s).");
+      } // try - finally
+   } // replay
+
+
+   /**
+    * Transfers the messages of the files of a directory, read concurrently,
+    * to the argument writer, until the directory is empty.
+    */
+   private static void transferDirectory(HL7DirectoryReader dirReader, final HL7Stream msgWriter) throws HL7IOException {
+      dirReader.setHandler(new HL7MessageHandler() {
+         public int dispatch(HL7Message hl7Msg) throws HL7IOException {
+            hl7Msg.fresh();
+            synchronized (msgWriter) {
+               msgWriter.write(hl7Msg);
+            } // synchronized
+
+            return 1;
+         } // dispatch
+      });
+
+      dirReader.drain();
+      logger.info(  "HL7MessageAgent: transferred " + dirReader.messageCount() + " message(s) from "
+                  + dirReader.doneCount() + " file(s), " + dirReader.errorCount() + " file(s) failed.");
+   } // transferDirectory
+
    
    /**
     * A stand alone HL7 message transfer agent.
@@ -200,5 +257,8 @@ public class HL7MessageAgent {
  * $Revision$, $Date$, $Author$
  * Renamed, to avoid collision, and corrected package declaration.
  *
+ * Replays a file source with framing=mllp to a socket destination by way of
+ * HL7MLLPReplay, without parsing the messages.
+ *
  */
 
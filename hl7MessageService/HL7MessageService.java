@@ -25,9 +25,13 @@
 
 package us.conxio.hl7MessageService;
 
+import java.io.File;
+
 import java.net.URI;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -37,9 +41,15 @@ import us.conxio.hl7.hl7message.HL7Message;
 
 import us.conxio.hl7.hl7service.HL7Route;
 import us.conxio.hl7.hl7service.HL7ServiceElement;
-import us.conxio.hl7.hl7stream.HL7FileReader;
+import us.conxio.hl7.hl7stream.HL7AckFuture;
+import us.conxio.hl7.hl7stream.HL7DirectoryReader;
+import us.conxio.hl7.hl7stream.HL7DurableMessageHandler;
+import us.conxio.hl7.hl7stream.HL7FileWriter;
 import us.conxio.hl7.hl7stream.HL7IOException;
+import us.conxio.hl7.hl7stream.HL7Journal;
+import us.conxio.hl7.hl7stream.HL7JournalCursor;
 import us.conxio.hl7.hl7stream.HL7MessageHandler;
+import us.conxio.hl7.hl7stream.HL7PartitionedDispatcher;
 import us.conxio.hl7.hl7stream.HL7Server;
 import us.conxio.hl7.hl7stream.HL7Stream;
 import us.conxio.hl7.hl7stream.HL7StreamURI;
@@ -49,7 +59,7 @@ import us.conxio.hl7.hl7stream.HL7StreamURI;
  *
  * @author scott
  */
-public class HL7MessageService extends HL7ServiceElement implements HL7MessageHandler {
+public class HL7MessageService extends HL7ServiceElement implements HL7DurableMessageHandler {
    /**
     * A URI referencing/specifying the source of inbound HL7 transaction messages for this service.
     */
@@ -68,6 +78,20 @@ public class HL7MessageService extends HL7ServiceElement implements HL7MessageHa
     * A list of route specification objects, used to route the incoming HL7 transaction messages.
     */
    ArrayList<HL7Route>  routes = new ArrayList<HL7Route>();
+   /**
+    * The journal of inbound messages, when the service specifies one, from
+    * which each route is delivered by a thread of its own.
+    */
+   HL7Journal           journal = null;
+   /**
+    * The dispatcher which routes the inbound messages on parallel lanes, by
+    * patient, when the service specifies one, and has no journal.
+    */
+   HL7PartitionedDispatcher dispatcher = null;
+   /**
+    * The longest delay between attempts to deliver a message which a route has failed to deliver.
+    */
+   private static final long MAX_RETRY_MILLIS = 60 * 1000;
 
    private static Logger logger = Logger.getLogger("us.conxio.hl7");
 
@@ -106,9 +130,58 @@ public class HL7MessageService extends HL7ServiceElement implements HL7MessageHa
 
       int routeCount = routeNodes.size();
       for (int index = 0; index < routeCount; ++index) subscribe(new HL7Route(routeNodes.get(index) ) );
+
+      // * <HL7Journal dir="..." segmentsize="MB"/> is optional.
+      Node journalNode = getElement("HL7Journal");
+      if (journalNode != null) {
+         String dir = getAttribute(journalNode, "dir");
+         if (StringUtils.isEmpty(dir)) throw new HL7IOException("HL7Journal dir attribute not found.");
+
+         journal = new HL7Journal(new File(dir), intAttribute(journalNode, "segmentsize") * 1024 * 1024);
+      } // if
+
+      // * <HL7PartitionedDispatcher lanes="N" queuesize="N" key="PID.3.1"/> is optional.
+      Node dispatcherNode = getElement("HL7PartitionedDispatcher");
+      if (dispatcherNode != null) {
+         dispatcher = new HL7PartitionedDispatcher(new HL7MessageHandler() {
+                                                      public int dispatch(HL7Message msg) throws HL7IOException {
+                                                         return route(msg);
+                                                      } // dispatch
+                                                   },
+                                                   intAttribute(dispatcherNode, "lanes"),
+                                                   intAttribute(dispatcherNode, "queuesize"),
+                                                   getAttribute(dispatcherNode, "key"),
+                                                   "HL7MessageService(" + id() + ")");
+         if (journal != null) {
+            logger.warn(   "HL7MessageService(" + id() + "): HL7PartitionedDispatcher ignored, "
+                        +  "the journal delivers each route on a thread of its own.");
+         } else if (   HL7Server.ACK_AFTER_DISPATCH.equals(hl7SourceURI.uriAckMode())
+                    || HL7Server.ACK_BATCH.equals(hl7SourceURI.uriAckMode())) {
+            // * a message is dispatched once it is queued, so it would be accepted before it is routed.
+            throw new HL7IOException(  "HL7MessageService(" + id() + "): the " + hl7SourceURI.uriAckMode()
+                                    +  " ack mode of " + hl7SourceURI + " is not supported by a HL7PartitionedDispatcher, "
+                                    +  "which dispatches a message once it is queued; specify a HL7Journal.",
+                                       HL7IOException.UNINTERPERABLE_URI);
+         } // if - else if
+      } // if
    } // initializeHL7MessageService
 
 
+   /**
+    * @return the value of the argument integer attribute, or 0 if it is absent.
+    */
+   private int intAttribute(Node node, String attributeName) throws HL7IOException {
+      String valueStr = getAttribute(node, attributeName);
+      if (StringUtils.isEmpty(valueStr)) return 0;
+
+      try {
+         return Integer.parseInt(valueStr.trim());
+      } catch (NumberFormatException nfEx) {
+         throw new HL7IOException(node.getNodeName() + " " + attributeName + " is not a number:" + valueStr, nfEx);
+      } // try - catch
+   } // intAttribute
+
+
    private HL7StreamURI extractURI(String uriTagName) throws HL7IOException {
       if (StringUtils.isEmpty(uriTagName)) throw new HL7IOException("Empty Tag name.");
 
@@ -161,10 +234,18 @@ public class HL7MessageService extends HL7ServiceElement implements HL7MessageHa
          throw new HL7IOException("HL7MessageService.open(): Source URI not specified.");
       } // if
 
+      if (journal != null) {
+         startDelivery();
+      } else if (dispatcher != null) {
+         dispatcher.start();
+      } // if - else if
+
       if (isServerURI(hl7SourceURI)) {
          runServer();
       } else if (isFileURI(hl7SourceURI) ) {
          runFileReader();
+      } else if (hl7SourceURI.isDirectoryReaderURI()) {
+         runDirectoryReader();
       } // if - else if
    } // runService
 
@@ -182,7 +263,12 @@ public class HL7MessageService extends HL7ServiceElement implements HL7MessageHa
                                     HL7IOException.UNINTERPERABLE_URI);
       } // if
 
-      pooledServer = new HL7Server(portNo, poolSize, this);
+      pooledServer = hl7SourceURI.createServer(portNo, poolSize, this);
+      // * with a journal, acknowledge a message once it has been journaled, rather than on receipt.
+      if (journal != null && hl7SourceURI.uriAckMode() == null) {
+         pooledServer.setAckMode(HL7Server.ACK_AFTER_DISPATCH, hl7SourceURI.uriAckBatchSize());
+      } // if
+
       new Thread(pooledServer).start();
       while (true) {
          try {
@@ -195,16 +281,213 @@ public class HL7MessageService extends HL7ServiceElement implements HL7MessageHa
    } // runServer
 
 
-   @SuppressWarnings("empty-statement")
+   /**
+    * Reads and dispatches the messages of the source file. A tailing reader
+    * (mode=tail) waits for more to be appended, until the service is closed;
+    * any other reader ends at the end of the file.
+    */
    private void runFileReader() throws HL7IOException {
-      HL7FileReader reader = new HL7FileReader(hl7SourceURI);
-      HL7Message inboundMsg = null;
-      while (true) {
-         if ( (inboundMsg = reader.read()) != null) dispatch(inboundMsg);
-      } // while
+      HL7Stream reader = hl7SourceURI.getHL7StreamReader();
+      inputStream = reader;
+      try {
+         HL7Message inboundMsg;
+         while ( (inboundMsg = reader.read()) != null) dispatch(inboundMsg);
+      } finally {
+         reader.close();
+      } // try - finally
    } // runFileReader
 
 
+   /**
+    * Reads and dispatches the files dropped into the source directory, on the
+    * worker threads of a HL7DirectoryReader, until the service is closed.
+    */
+   private void runDirectoryReader() throws HL7IOException {
+      HL7DirectoryReader reader = new HL7DirectoryReader(hl7SourceURI, this);
+      inputStream = reader;
+      reader.run();
+   } // runDirectoryReader
+
+
+   /**
+    * Opens the journal, and starts a delivery thread for each route, which
+    * reads the journal from a cursor of its own, named for the route.
+    */
+   private void startDelivery() throws HL7IOException {
+      journal.open();
+      int routeCount = routes.size();
+      for (int index = 0; index < routeCount; ++index) {
+         HL7Route route = routes.get(index);
+         String name = StringUtils.isEmpty(route.getID()) ? "route" + index : route.getID();
+         Thread delivery = new Thread(new Delivery(route, journal.cursor(name)), id() + ":" + name);
+         delivery.setDaemon(true);
+         delivery.start();
+      } // for
+   } // startDelivery
+
+
+   /**
+    * Delivers the journaled messages to a route, keeping up to the window of
+    * its pipelined destinations outstanding, and committing its cursor past
+    * each message only once the route has delivered it, and every message
+    * before it. A message which the route fails to deliver is retried, after
+    * a growing delay, before any later message is committed. A message which
+    * a destination rejects (AE, AR) would be rejected again, and is instead
+    * diverted to the rejected file of the cursor, in the journal directory.
+    */
+   private class Delivery implements Runnable {
+      private final HL7Route           route;
+      private final HL7JournalCursor   cursor;
+      /**
+       * The messages sent, but not yet committed, in journal order.
+       */
+      private final ArrayDeque<Sent>   outstanding = new ArrayDeque<Sent>();
+      private HL7FileWriter            rejected;
+
+      Delivery(HL7Route route, HL7JournalCursor cursor) {
+         this.route = route;
+         this.cursor = cursor;
+      } // Delivery
+
+      public void run() {
+         try {
+            for (;;) {
+               while (!outstanding.isEmpty() && outstanding.peekFirst().isDone()) settle();
+
+               if (outstanding.size() >= route.window()) {
+                  settle();
+                  continue;
+               } // if
+
+               // * while messages are outstanding, a wait for the next delays their commit.
+               HL7Message msg = outstanding.isEmpty() ? cursor.next() : cursor.next(0);
+               if (msg == null) {
+                  if (outstanding.isEmpty()) break;
+                  settle();
+                  continue;
+               } // if
+
+               List<HL7AckFuture> acks;
+               try {
+                  acks = route.send(msg);
+               } catch (HL7IOException ioEx) {
+                  // * the messages sent before it are settled first, so that it is retried in order.
+                  while (!outstanding.isEmpty()) settle();
+                  fail(msg, ioEx);
+                  cursor.commit();
+                  continue;
+               } // try - catch
+
+               outstanding.addLast(new Sent(msg, cursor.position(), acks));
+            } // for
+         } catch (HL7IOException ioEx) {
+            logger.error("HL7MessageService(" + id() + "):" + cursor.name() + ": delivery ended.", ioEx);
+         } catch (InterruptedException ex) {
+            logger.debug("HL7MessageService(" + id() + "):" + cursor.name() + ": delivery interrupted.");
+         } finally {
+            cursor.close();
+            closeRejected();
+         } // try - catch - finally
+      } // run
+
+
+      /**
+       * Waits for the acknowledgments of the oldest outstanding message,
+       * retrying it if it failed, and commits the cursor past it.
+       */
+      private void settle() throws HL7IOException, InterruptedException {
+         Sent sent = outstanding.removeFirst();
+         HL7IOException failure = null;
+         for (HL7AckFuture ack : sent.acks) {
+            try {
+               ack.await();
+            } catch (HL7IOException ioEx) {
+               failure = ioEx;
+            } // try - catch
+         } // for
+
+         if (failure != null) fail(sent.msg, failure);
+         cursor.commit(sent.position);
+      } // settle
+
+
+      /**
+       * Handles the argument failure to deliver the argument message, by
+       * diverting the message if it was rejected, or otherwise routing it
+       * again, until it is either delivered or rejected.
+       */
+      private void fail(HL7Message msg, HL7IOException failure) throws HL7IOException, InterruptedException {
+         long retryMillis = 100;
+         while (failure.errorType() != HL7IOException.HL7_NACK) {
+            logger.error(  "HL7MessageService(" + id() + "):" + cursor.name()
+                        +  ": delivery failed, retrying in " + retryMillis + " ms.", failure);
+            Thread.sleep(retryMillis);
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            try {
+               route.route(msg);
+               return;
+            } catch (HL7IOException ioEx) {
+               failure = ioEx;
+            } // try - catch
+         } // while
+
+         reject(msg, failure);
+      } // fail
+
+
+      /**
+       * Appends the argument rejected message to the rejected file of the
+       * cursor, and forces it to the storage device, before the cursor is
+       * committed past it.
+       */
+      private void reject(HL7Message msg, HL7IOException failure) throws HL7IOException {
+         File rejectedFile = journal.rejectedFile(cursor.name());
+         logger.error(  "HL7MessageService(" + id() + "):" + cursor.name()
+                     +  ": " + msg.idString() + " rejected, diverted to " + rejectedFile + ".", failure);
+         if (rejected == null) {
+            rejected = new HL7FileWriter(rejectedFile);
+            rejected.setFlushPolicy(1, 0, true);
+            rejected.open(true);
+         } // if
+
+         rejected.write(msg);
+      } // reject
+
+
+      private void closeRejected() {
+         if (rejected == null) return;
+
+         try {
+            rejected.close();
+         } catch (HL7IOException ioEx) {
+            logger.error("HL7MessageService(" + id() + "):" + cursor.name() + ": closing the rejected file.", ioEx);
+         } // try - catch
+      } // closeRejected
+   } // Delivery
+
+
+   /**
+    * A journaled message sent by a Delivery, with the cursor position
+    * following it, and its pending acknowledgments.
+    */
+   private static final class Sent {
+      final HL7Message           msg;
+      final long                 position;
+      final List<HL7AckFuture>   acks;
+
+      Sent(HL7Message msg, long position, List<HL7AckFuture> acks) {
+         this.msg = msg;
+         this.position = position;
+         this.acks = acks;
+      } // Sent
+
+      boolean isDone() {
+         for (HL7AckFuture ack : acks) if (!ack.isDone()) return false;
+         return true;
+      } // isDone
+   } // Sent
+
+
    /**
     * Closes the service and all subordinate streams, threads, etc.
     */
@@ -215,6 +498,9 @@ public class HL7MessageService extends HL7ServiceElement implements HL7MessageHa
       } catch (HL7IOException hl7Ex) {
          logger.error(this, hl7Ex);
       } // try - catch
+
+      if (dispatcher != null) dispatcher.close();
+      if (journal != null) journal.close();
    } // close
 
 
@@ -230,13 +516,33 @@ public class HL7MessageService extends HL7ServiceElement implements HL7MessageHa
       return passCount;
    } // route
 
+   /**
+    * Routes the argument message, or queues it on the lane of its patient,
+    * when the service has a partitioned dispatcher, or, when the service has a
+    * journal, appends it to the journal, from which the delivery threads route
+    * it. Unless the source acknowledges in batches, which calls sync() once
+    * per batch, the journal is synced before the message is acknowledged.
+    */
    public int dispatch(HL7Message msg) throws HL7IOException {
       if (msg == null) throw new HL7IOException(  "null message argument.",
                                     HL7IOException.NULL_MSG);
 
-      return route(msg);
+      if (journal == null) return (dispatcher == null) ? route(msg) : dispatcher.dispatch(msg);
+
+      journal.append(msg);
+      if (!HL7Server.ACK_BATCH.equals(hl7SourceURI.uriAckMode())) journal.sync();
+      return 1;
    } // dispatch
 
+
+   /**
+    * Makes the messages journaled by the calling thread durable.
+    * @throws us.conxio.HL7.HL7Stream.HL7IOException
+    */
+   public void sync() throws HL7IOException {
+      if (journal != null) journal.sync();
+   } // sync
+
    /**
     * A simple configuration/specification dump to aid in test and debugging.
     */